@@ -13,7 +13,9 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import org.apache.commons.math3.random.RandomGenerator;
 import com.github.rinde.rinsim.core.model.comm.CommDevice;
@@ -26,6 +28,7 @@ import com.github.rinde.rinsim.core.model.road.MovingRoadUser;
 import com.github.rinde.rinsim.core.model.road.RoadModel;
 import com.github.rinde.rinsim.core.model.time.TickListener;
 import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Connection;
 import com.github.rinde.rinsim.geom.Point;
 import com.google.common.base.Optional;
 
@@ -39,29 +42,38 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 	private Optional<CollisionGraphRoadModel> roadModel;
 	private Optional<Point> destination;
 	private Optional<CommDevice> device;
-	private static double range = 15d;
+	private final double range;
 	
 	private Optional<Point> rerouteDestination;
 	
 	// handles PDP requests
 	CNPAGVAgent deliveryAgent;
 	
-	private static int AVGCounter = 0;
-	
+	private final SimulationContext context;
 
 	private Queue<Point> path;
-	private Optional<Point> initialPosition;
+	private final Point initialPosition;
 	private int AVGId;
 	
-	private static final double CHARGE_CAPACITY = 600d;
-	private static final double CHARGE_PER_METRE_EMPTY = 0.2d;
-	private static final double CHARGE_PER_METRE_LOADED = 0.5d;
-	private static final double RECHARGE_RATE = 0.5d;
-	private static final double CRITICAL_CHARGE_LEVEL = 60d;
+	private final double chargeCapacity;
+	private final double chargePerMetreEmpty;
+	private final double chargePerMetreLoaded;
+	private final double rechargeRate;
+	private final double criticalChargeLevel;
 	
-	private double chargeLevel = CHARGE_CAPACITY;
+	private double chargeLevel;
 	private boolean hasPackage;
 	
+	private double emptyDistance = 0;
+	private double loadedDistance = 0;
+	
+	// station booked for charging, with charge reservation
+	private ChargeStation chargeStation = null;
+	
+	private int chargeDetours = 0;
+	private int batteryDeaths = 0;
+	private int yields = 0;
+	
 	
 	
 	public enum AGVHeading {
@@ -88,11 +100,23 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 
 
 
-	AGV(RandomGenerator r, Point loc) {
+	AGV(SimulationContext ctx, RandomGenerator r, Point loc) {
+		this(ctx, r, loc, -1);
+	}
+
+	/**
+	 * @param ctx
+	 * @param r
+	 * @param loc
+	 * @param id - the id to use, e.g. when restoring a snapshot; -1 for the 
+	 * next free id
+	 */
+	AGV(SimulationContext ctx, RandomGenerator r, Point loc, int id) {
+		context = ctx;
 		rng = r;
 		roadModel = Optional.absent();
 		destination = Optional.absent();
-		initialPosition = Optional.of(loc);
+		initialPosition = loc;
 		path = new LinkedList<>();
 		device = Optional.absent();
 		heading = AGVHeading.RANDOM;
@@ -102,27 +126,132 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 		hasPackage = false;
 		deliveryAgent = new CNPAGVAgent(this);
 		
-		AVGId = AVGCounter;
-		AVGCounter++;
+		AVGId = context.addAGV(this, id);
+		
+		SimulationConfig cfg = context.getConfig();
+		range = cfg.getAgvCommRange();
+		chargeCapacity = cfg.getChargeCapacity();
+		chargePerMetreEmpty = cfg.getChargePerMetreEmpty();
+		chargePerMetreLoaded = cfg.getChargePerMetreLoaded();
+		rechargeRate = cfg.getRechargeRate();
+		criticalChargeLevel = cfg.getCriticalChargeLevel();
+		chargeLevel = chargeCapacity;
 	}
 
 	@Override
 	public void initRoadUser(RoadModel model) {
 		roadModel = Optional.of((CollisionGraphRoadModel) model);
 		
-		Point p;
-		if (initialPosition.isPresent())
+		// whoever places the AGV makes sure the node is free, e.g. a zone 
+		// taking it over from another
+		roadModel.get().addObjectAt(this, initialPosition);
+
+		// a restored AGV resumes its route
+		if (destination.isPresent())
+			path = planPath(destination.get());
+	}
+	
+	/**
+	 * @return the current position if on a node, otherwise the next node 
+	 * on the path; AGVs can only be placed on nodes
+	 */
+	Point getNodePosition()
+	{
+		Point p = roadModel.get().getPosition(this);
+		if (roadModel.get().getGraph().containsNode(p) || path.isEmpty())
+			return p;
+		return path.peek();
+	}
+	
+	/**
+	 * @return the next node on the path, or null if none
+	 */
+	Point getNextNode()
+	{
+		Point here = roadModel.get().getPosition(this);
+		for (Point p : path)
 		{
-			p = initialPosition.get();
+			if (!p.equals(here))
+				return p;
 		}
+		return null;
+	}
+	
+	/**
+	 * @param to
+	 * @return the route to to; with congestion-aware routing the cheapest 
+	 * under the current edge costs, otherwise the shortest
+	 */
+	private Queue<Point> planPath(Point to)
+	{
+		TrafficModel traffic = context.getTrafficModel();
+		if (traffic == null || !traffic.isReady())
+			return new LinkedList<>(roadModel.get().getShortestPathTo(this, to));
+		
+		// between nodes, the AGV cannot turn back
+		Point here = roadModel.get().getPosition(this);
+		Optional<? extends Connection<?>> conn = roadModel.get().getConnection(this);
+		List<Point> route = traffic.getShortestPath(
+			(conn.isPresent() ? conn.get().to() : here), to);
+		if (route == null)
+			return new LinkedList<>(roadModel.get().getShortestPathTo(this, to));
+		
+		LinkedList<Point> retVal = new LinkedList<>(route);
+		if (conn.isPresent())
+			retVal.addFirst(here);
+		return retVal;
+	}
+	
+	/**
+	 * @return the destination, or null if none
+	 */
+	Point getDestination()
+	{
+		// a detour is temporary; report where the AGV was going before it 
+		if (heading == AGVHeading.REROUTE || heading == AGVHeading.END_REROUTE)
+			return rerouteDestination.orNull();
+		return destination.orNull();
+	}
+	
+	/**
+	 * @return the heading, ignoring any detour in progress
+	 */
+	AGVHeading getPlannedHeading()
+	{
+		if (heading == AGVHeading.REROUTE || heading == AGVHeading.END_REROUTE)
+			return rerouteHeading;
+		return heading;
+	}
+	
+	/**
+	 * @return ticks left of loading, unloading or waiting to be moved 
+	 */
+	int getCountdown()
+	{
+		return heading == AGVHeading.BATTERY_DEAD ? 
+			moveDeadAGVCountdown : loadingCountDown;
+	}
+	
+	/**
+	 * restore state from a snapshot; must be called before registration
+	 * 
+	 * @param h
+	 * @param dest
+	 * @param charge
+	 * @param loaded
+	 * @param countdown
+	 */
+	void restore(AGVHeading h, Point dest, double charge, boolean loaded, 
+			int countdown)
+	{
+		heading = h;
+		destination = Optional.fromNullable(dest);
+		chargeLevel = charge;
+		hasPackage = loaded;
+		if (heading == AGVHeading.BATTERY_DEAD)
+			moveDeadAGVCountdown = countdown;
 		else
-		{
-			do {
-				p = getRandomDestination().get();
-			} while (roadModel.get().isOccupied(p));
-		}
-		roadModel.get().addObjectAt(this, p);
-
+			loadingCountDown = countdown;
 	}
 	
 
@@ -147,18 +276,34 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			to = Optional.of(roadModel.get().getRandomPosition(rng));			
 		}
 		while (!to.isPresent() 
-			|| PDPStation.isTransportAgentLocation(to)
-			|| ChargeStation.isChargeStationLocation(to));
+			|| PDPStation.isTransportAgentLocation(context, to)
+			|| ChargeStation.isChargeStationLocation(context, to));
 		
 		return to;
 	}
 	
+	/**
+	 * @return where to go while idle; a staging node near expected demand, 
+	 * if enabled and demand is known, otherwise a random destination
+	 */
+	private Optional<Point> getIdleDestination()
+	{
+		if (context.getConfig().isDemandRepositioning())
+		{
+			Optional<Point> to = context.getIdlePositioning()
+				.getStagingDestination(this, roadModel.get(), rng);
+			if (to.isPresent())
+				return to;
+		}
+		return getRandomDestination();
+	}
+	
 	private void addCharge(TimeLapse timeLapse)
 	{
 		if (heading == AGV.AGVHeading.CHARGING 
-		 && chargeLevel < AGV.CHARGE_CAPACITY)
-			chargeLevel = Math.min(CHARGE_CAPACITY, 
-				chargeLevel + timeLapse.getTickLength()/1000 * RECHARGE_RATE);
+		 && chargeLevel < chargeCapacity)
+			chargeLevel = Math.min(chargeCapacity, 
+				chargeLevel + timeLapse.getTickLength()/1000 * rechargeRate);
 	}
 	
 	public boolean hasPackage()
@@ -170,7 +315,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 	{
 		if (heading != AGV.AGVHeading.CHARGING) 
 			chargeLevel -= (!hasPackage ? 
-				CHARGE_PER_METRE_EMPTY : CHARGE_PER_METRE_LOADED) * distance;
+				chargePerMetreEmpty : chargePerMetreLoaded) * distance;
 		chargeLevel = Math.max(0, chargeLevel);
 	}
 	
@@ -190,7 +335,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 		b.append(chargeLevel);
 		b.append(" }");
 		b.append(" [" + getPosition().get() + "]"); 
-		System.out.println(b.toString());
+		context.log(b.toString());
 	}
 
 	/**
@@ -214,7 +359,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 				moveDeadAGVCountdown--;
 				if (moveDeadAGVCountdown == 0)
 				{
-					Optional<Point> chargeLoc = ChargeStation.findNearestChargeStation(this).getPosition();
+					Optional<Point> chargeLoc = ChargeStation.findNearestChargeStation(context, this).getPosition();
 					roadModel.get().removeObject(this);
 					roadModel.get().addObjectAt(this, chargeLoc.get());
 					destination = chargeLoc;
@@ -228,19 +373,19 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			// if charged, get random destination
 			if (heading == AGVHeading.CHARGING)
 			{
-				if (chargeLevel == CHARGE_CAPACITY)
+				if (chargeLevel == chargeCapacity)
 				{
+					releaseCharge();
 					heading = AGVHeading.RANDOM;
-					destination = getRandomDestination();
+					destination = getIdleDestination();
 				}
 			}
 			else if (heading == AGVHeading.RANDOM 
-					&& chargeLevel <= AGV.CRITICAL_CHARGE_LEVEL)
+					&& chargeLevel <= criticalChargeLevel)
 			{
-				heading = AGVHeading.TO_CHARGING;
-				ChargeStation c = ChargeStation.findNearestChargeStation(this);
+				ChargeStation c = ChargeStation.findNearestChargeStation(context, this);
 				newHeading = true;
-				destination = c.getPosition();			
+				goCharging(c);
 			}
 			else if (heading == AGVHeading.TO_CHARGING)
 			{
@@ -248,8 +393,16 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			}
 			else
 			{
-				heading = AGVHeading.RANDOM;
-				destination = getRandomDestination();
+				ChargeStation c = getTopUpStation();
+				if (c != null)
+				{
+					goCharging(c);
+				}
+				else
+				{
+					heading = AGVHeading.RANDOM;
+					destination = getIdleDestination();
+				}
 				newHeading = true;
 			}
 		}
@@ -267,7 +420,11 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 				while (rerouteDestination.get().equals(destination.get()));
 				//heading = AGVHeading.END_REROUTE;
 				break;
+			// charging is interrupted for a contract
+			case TO_CHARGING:
+			case CHARGING:
 			case RANDOM:
+				releaseCharge();
 				destination = Optional.of(deliveryAgent.getContract().getOrigin());
 				newHeading = true;
 				heading = AGVHeading.TO_PICKUP;
@@ -293,13 +450,24 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			case PICKUP_TO_DROP:
 				if (loadingCountDown == 0)
 				{
-					DeliveryRecorder.setDeliveryDropoffTime(deliveryAgent.getContract().getContractId(), timeIndex);
+					context.getDeliveryRecorder().setDeliveryDropoffTime(deliveryAgent.getContract().getContractId(), timeIndex);
 
-					destination = getRandomDestination();
 					newHeading = true;
 					hasPackage = false;
-					heading = AGVHeading.RANDOM;
-					deliveryAgent.clear();
+					deliveryAgent.complete();
+					
+					// go straight on to a chained contract
+					if (deliveryAgent.getContract() != null)
+					{
+						destination = Optional.of(deliveryAgent.getContract().getOrigin());
+						heading = AGVHeading.TO_PICKUP;
+						loadingCountDown = loadingTime;
+					}
+					else
+					{
+						destination = getIdleDestination();
+						heading = AGVHeading.RANDOM;
+					}
 				}
 				else
 				{
@@ -318,8 +486,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 		}
 		if (!destination.isPresent())
 			System.out.println("Uh-oh");
-		path = new LinkedList<>(roadModel.get().getShortestPathTo(this,
-			destination.get()));
+		path = planPath(destination.get());
 
 		if (newHeading)
 		{
@@ -358,8 +525,14 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 	
 	private void reroute(Exception e)
 	{
+		TrafficHeatmap heatmap = context.getTrafficHeatmap();
+		if (heatmap != null)
+			heatmap.recordReroute(this, e);
+		
 		if (heading == AGVHeading.TO_CHARGING)
 		{
+			chargeDetours++;
+			releaseCharge();
 			heading = AGVHeading.RANDOM;
 		}
 		else if (heading != AGVHeading.REROUTE)
@@ -375,23 +548,227 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 				b.append(", ");
 				b.append(e);
 			}
-			System.out.println(b.toString());
+			context.log(b.toString());
 		}	
 		nextDestination();		
 	}
 	
+	/**
+	 * cost of stepping aside to side to break a deadlock: the extra 
+	 * distance to the destination, weighed by who waits for it; nobody 
+	 * waits for an idle AGV, and a package waits for a loaded one
+	 * 
+	 * @param side a neighbouring node
+	 * @return the cost
+	 */
+	double getYieldCost(Point side)
+	{
+		if (heading == AGVHeading.RANDOM)
+			return 0;
+		
+		Point here = roadModel.get().getPosition(this);
+		double detour = Point.distance(here, side) 
+			+ legLength(side, destination.get()) - legLength(null, destination.get());
+		if (heading == AGVHeading.TO_CHARGING)
+			return 2 * detour;
+		return (hasPackage ? 2 : 1) * detour;
+	}
+	
+	/**
+	 * step aside to side, a free neighbouring node, to break a deadlock; 
+	 * the AGV resumes its route once it has moved
+	 * 
+	 * @param side
+	 */
+	void yieldTo(Point side)
+	{
+		yields++;
+		TrafficHeatmap heatmap = context.getTrafficHeatmap();
+		if (heatmap != null)
+			heatmap.recordReroute(this, null);
+		
+		// as when rerouting, a booked charge station is given up
+		if (heading == AGVHeading.TO_CHARGING)
+		{
+			chargeDetours++;
+			releaseCharge();
+			heading = AGVHeading.RANDOM;
+		}
+		
+		if (heading != AGVHeading.REROUTE)
+		{
+			rerouteHeading = heading;
+			rerouteDestination = destination;
+			heading = AGVHeading.REROUTE;
+		}
+		destination = Optional.of(side);
+		path = planPath(side);
+		
+		StringBuilder b = new StringBuilder();
+		b.append("[AGV] Yield: ");
+		b.append(AVGId);
+		b.append(" [" + side + "]");
+		context.log(b.toString());
+	}
+	
 	public boolean validateContract(ProtocolMessage pm)
 	{
 		double batteryUse = getContractBatteryUse(pm);
 		
 		// if doing contract would leave AGV dead, ignore 
-		if (chargeLevel - batteryUse < CRITICAL_CHARGE_LEVEL * 1.1)
+		if (chargeLevel - batteryUse < criticalChargeLevel * 1.1)
 			return false;
 		else
 			return true;
 		
 	}
 
+	/**
+	 * don't process messages if we are heading for charge station, or while 
+	 * charging
+	 * 
+	 * @return true if protocol messages should be processed in this tick
+	 */
+	boolean acceptsMessages()
+	{
+		if (heading != AGV.AGVHeading.TO_CHARGING 
+		 && heading != AGV.AGVHeading.CHARGING)
+			return true;
+		
+		// with opportunistic charging, charging may be cut short for a 
+		// contract once the minimum charge is reached
+		return context.getConfig().isOpportunisticCharging()
+			&& chargeLevel >= context.getConfig().getMinimumChargeToLeave();
+	}
+	
+	/**
+	 * an idle AGV tops up its charge at a nearby free charge station when 
+	 * its charge is below the top-up level and demand is low
+	 * 
+	 * @return the station to top up at, or null
+	 */
+	private ChargeStation getTopUpStation()
+	{
+		SimulationConfig cfg = context.getConfig();
+		if (!cfg.isOpportunisticCharging() || heading != AGVHeading.RANDOM
+		 || chargeLevel >= cfg.getTopUpChargeLevel()
+		 || !context.getIdlePositioning().isDemandLow(timeIndex))
+			return null;
+		
+		return ChargeStation.findNearestFreeChargeStation(context, this, 
+			cfg.getTopUpDistance());
+	}
+
+	/**
+	 * head for a charge station; with charge reservation, book a slot there 
+	 * on the way
+	 * 
+	 * @param c
+	 */
+	private void goCharging(ChargeStation c)
+	{
+		heading = AGVHeading.TO_CHARGING;
+		destination = c.getPosition();
+		
+		if (!context.getConfig().isChargeReservation())
+			return;
+		
+		if (chargeStation != null && chargeStation != c)
+			releaseCharge();
+		chargeStation = c;
+		
+		double dist = legLength(null, c.getPosition().get());
+		double charge = Math.max(0, chargeLevel - dist * chargePerMetreEmpty);
+		long arrival = timeIndex + (long) Math.ceil(dist / getSpeed());
+		long departure = arrival 
+			+ (long) Math.ceil((chargeCapacity - charge) / rechargeRate);
+		
+		deliveryAgent.outbox.send(new ChargeReservationMessage(context, this, c, 
+			ProtocolMessage.MessageType.RESERVE_CHARGE, getNodePosition(), 
+			arrival, departure, chargeLevel / chargePerMetreEmpty), c);
+	}
+	
+	/**
+	 * send an idle AGV to charge ahead of time, e.g. to spread charging over
+	 * the fleet
+	 * 
+	 * @return whether the AGV is on its way to a charge station
+	 */
+	boolean chargeNow()
+	{
+		if (heading != AGVHeading.RANDOM || deliveryAgent.getContract() != null
+		 || deliveryAgent.getState() != ContractNet.AGVState.VOTING
+		 || chargeLevel >= chargeCapacity)
+			return false;
+		
+		ChargeStation c = ChargeStation.findNearestFreeChargeStation(context, 
+			this, Double.MAX_VALUE);
+		if (c == null)
+			return false;
+		
+		goCharging(c);
+		path = planPath(destination.get());
+		headingMessage();
+		return true;
+	}
+	
+	/**
+	 * the AGV is handed over to another zone; charge stations are not 
+	 * shared between zones, so its bookings are dropped here, without a 
+	 * message the AGV would not be around to send
+	 */
+	void leaveZone()
+	{
+		for (ChargeStation c : context.getChargeStations())
+			c.release(this);
+		chargeStation = null;
+	}
+	
+	/**
+	 * give up the booked charge station, if any
+	 */
+	private void releaseCharge()
+	{
+		if (chargeStation == null)
+			return;
+		
+		deliveryAgent.outbox.send(new ChargeReservationMessage(context, this, 
+			chargeStation, ProtocolMessage.MessageType.RELEASE_CHARGE, 
+			getNodePosition(), timeIndex, timeIndex, 0), chargeStation);
+		chargeStation = null;
+	}
+	
+	/**
+	 * on refusal, head for the alternative booked by the station; without 
+	 * one, carry on to the station as without reservation
+	 * 
+	 * @param m
+	 */
+	private void receiveChargeReply(ChargeReservationMessage m)
+	{
+		// the AGV has given up this booking in the meantime; an alternative 
+		// booked for it is released
+		if (m.getSender() != chargeStation || heading != AGVHeading.TO_CHARGING)
+		{
+			if (m.getStation() != null && m.getStation() != chargeStation)
+				deliveryAgent.outbox.send(new ChargeReservationMessage(context, 
+					this, m.getStation(), ProtocolMessage.MessageType.RELEASE_CHARGE, 
+					getNodePosition(), timeIndex, timeIndex, 0), m.getStation());
+			return;
+		}
+		
+		if (m.getType() != ProtocolMessage.MessageType.CHARGE_REFUSED)
+			return;
+		
+		chargeStation = m.getStation();
+		if (chargeStation == null)
+			return;
+		
+		destination = chargeStation.getPosition();
+		path = planPath(destination.get());
+		headingMessage();
+	}
+
 	private boolean destinationBlocked()
 	{
 		boolean retVal = false;
@@ -416,12 +793,24 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 	@Override
 	public void tick(TimeLapse timeLapse) 
 	{
-		timeIndex = timeLapse.getEndTime()/1000;
+		timeIndex = context.getTimeIndex(timeLapse);
 		
-		// don't process messages if we are haading for charge station, or while charging
-		if (heading != AGV.AGVHeading.TO_CHARGING && heading != AGV.AGVHeading.CHARGING)
+		// messages may already have been handled by a message phase; while 
+		// charging, only the replies of charge stations are of interest
+		if (!acceptsMessages() && chargeStation != null)
+			deliveryAgent.readChargeReplies();
+		else if (!context.hasMessagePhase() && acceptsMessages())
 			deliveryAgent.processMessages();
 		
+		ChargeReservationMessage reply = deliveryAgent.takeChargeReply();
+		if (reply != null)
+			receiveChargeReply(reply);
+		
+		// a contract won on the way to charge, or while charging, is started 
+		// at once: the booking is released and the AGV heads for the pickup
+		if (deliveryAgent.getContract() != null 
+		 && (heading == AGVHeading.TO_CHARGING || heading == AGVHeading.CHARGING))
+			nextDestination();
 		
 		if (!destination.isPresent()) {
 			nextDestination();
@@ -455,13 +844,19 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 		// handle charging
 		if (m != null)
 		{
+			if (hasPackage)
+				loadedDistance += m.distance().getValue();
+			else
+				emptyDistance += m.distance().getValue();
 			depleteCharge(m.distance().getValue());
 			if (chargeLevel == 0)
 			{
 				heading = AGVHeading.BATTERY_DEAD;
+				batteryDeaths++;
+				releaseCharge();
 				if (deliveryAgent.getContract() != null)
 				{
-					DeliveryRecorder.setDeliveryFailed(deliveryAgent.getContract().getContractId(),
+					context.getDeliveryRecorder().setDeliveryFailed(deliveryAgent.getContract().getContractId(),
 						timeIndex);
 					deliveryAgent.clear();
 				}
@@ -473,7 +868,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			addCharge(timeLapse);
 
 		
-		if (heading == AGVHeading.RANDOM && chargeLevel <= AGV.CRITICAL_CHARGE_LEVEL)
+		if (heading == AGVHeading.RANDOM && chargeLevel <= criticalChargeLevel)
 		{
 			StringBuilder b = new StringBuilder();
 			b.append("[AGV-Charge] { AGV: ");
@@ -482,7 +877,7 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 			b.append(chargeLevel);
 			b.append(" }"); 
 			
-			System.out.println(b.toString());
+			context.log(b.toString());
 
 			//heading = AGVHeading.TO_CHARGING;
 			// find nearest available chargestation and head there
@@ -521,27 +916,159 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 	}
 	
 	
+	/**
+	 * @param from start, or null for the current position
+	 * @param to
+	 * @return length of the shortest path
+	 */
+	private double legLength(Point from, Point to)
+	{
+		if (from == null)
+			return AGV.pathLength(new LinkedList<>(roadModel.get()
+				.getShortestPathTo(this, to)));
+		return AGV.pathLength(new LinkedList<>(roadModel.get()
+				.getShortestPathTo(from, to)));
+	}
+	
+	/**
+	 * @param from start, or null for the current position
+	 * @param to
+	 * @return cost of the cheapest path under the congestion-aware edge 
+	 * costs; its length without congestion-aware routing
+	 */
+	private double legCost(Point from, Point to)
+	{
+		TrafficModel traffic = context.getTrafficModel();
+		if (traffic == null || !traffic.isReady())
+			return legLength(from, to);
+		
+		double retVal = 0;
+		if (from == null)
+		{
+			from = getNodePosition();
+			retVal = Point.distance(roadModel.get().getPosition(this), from);
+		}
+		double cost = traffic.getPathCost(from, to);
+		if (Double.isInfinite(cost))
+			return legLength(from, to);
+		return retVal + cost;
+	}
+	
+	/**
+	 * travel for the contracts committed to, if pm would be queued after 
+	 * them
+	 * 
+	 * @param pm
+	 * @param travel receives the empty and loaded distance
+	 * @param cost whether to give the congestion-aware cost of the travel 
+	 * rather than its length
+	 * @return the last drop-off, or null if pm is not queued
+	 */
+	private Point getCommittedTravel(ProtocolMessage pm, double[] travel, 
+			boolean cost)
+	{
+		Proposal current = deliveryAgent.getContract();
+		if (!deliveryAgent.queuesAhead() 
+		 || current.getContractId().equals(pm.getContractId()))
+			return null;
+		
+		ArrayList<Proposal> jobs = new ArrayList<Proposal>();
+		jobs.add(current);
+		jobs.addAll(deliveryAgent.getQueuedContracts());
+		
+		Point pos = null;
+		for (Proposal job : jobs)
+		{
+			if (job.getContractId().equals(pm.getContractId()))
+				break;
+			
+			// the current contract may have been picked up already
+			if (job != current || !hasPackage)
+			{
+				travel[0] += (cost ? legCost(pos, job.getOrigin()) 
+					: legLength(pos, job.getOrigin()));
+				pos = job.getOrigin();
+			}
+			travel[1] += (cost ? legCost(pos, job.getDestination()) 
+				: legLength(pos, job.getDestination()));
+			pos = job.getDestination();
+		}
+		return pos;
+	}
+	
+	/**
+	 * cost of a contract is the distance travelled until it is delivered; 
+	 * for a contract queued after others, this includes doing those first. 
+	 * With congestion-aware routing, distances are weighed by congestion.
+	 */
 	@Override
 	public double getContractCost(ProtocolMessage pm)
 	{
-		Queue<Point> currToPickup = new LinkedList<>(roadModel.get()
-				.getShortestPathTo(this, pm.getOrigin()));
-		Queue<Point> pickupToDelivery = new LinkedList<>(roadModel.get()
-				.getShortestPathTo(pm.getOrigin(), pm.getDestination()));
-		return AGV.pathLength(currToPickup) + AGV.pathLength(pickupToDelivery);
+		double[] travel = new double[2];
+		Point start = getCommittedTravel(pm, travel, true);
+		return travel[0] + travel[1] + legCost(start, pm.getOrigin()) 
+			+ legCost(pm.getOrigin(), pm.getDestination());
 	}
 	
 	double getContractBatteryUse(ProtocolMessage pm)
 	{
-		Queue<Point> currToPickup = new LinkedList<>(roadModel.get()
-				.getShortestPathTo(this, pm.getOrigin()));
-		Queue<Point> pickupToDelivery = new LinkedList<>(roadModel.get()
-				.getShortestPathTo(pm.getOrigin(), pm.getDestination()));
-		return AGV.pathLength(currToPickup) * CHARGE_PER_METRE_EMPTY + 
-			   AGV.pathLength(pickupToDelivery) * CHARGE_PER_METRE_LOADED;
+		double[] travel = new double[2];
+		Point start = getCommittedTravel(pm, travel, false);
+		return (travel[0] + legLength(start, pm.getOrigin())) * chargePerMetreEmpty + 
+			   (travel[1] + legLength(pm.getOrigin(), pm.getDestination())) * chargePerMetreLoaded;
+	}
+	
+	/**
+	 * @return distance travelled without a package
+	 */
+	public double getEmptyDistance() {
+		return emptyDistance;
+	}
+	
+	/**
+	 * @return distance travelled with a package
+	 */
+	public double getLoadedDistance() {
+		return loadedDistance;
 	}
 	
 
+	/**
+	 * @return the number of trips to a charge station given up because it 
+	 * was taken
+	 */
+	public int getChargeDetours() {
+		return chargeDetours;
+	}
+	
+	/**
+	 * @return the number of times the battery ran flat
+	 */
+	public int getBatteryDeaths() {
+		return batteryDeaths;
+	}
+
+	/**
+	 * @return the number of times the AGV stepped aside to break a deadlock
+	 */
+	public int getYieldCount() {
+		return yields;
+	}
+
+	/**
+	 * @return whether the AGV carries a package
+	 */
+	boolean isLoaded() {
+		return hasPackage;
+	}
+
+	/**
+	 * @return the current charge level
+	 */
+	public double getChargeLevel() {
+		return chargeLevel;
+	}
+
 	/**
 	 * @return the aVGId
 	 */
@@ -568,5 +1095,15 @@ class AGV implements TickListener, MovingRoadUser, CommUser, CNPUser {
 		return device;
 	}
 
+	@Override
+	public SimulationContext getContext() {
+		return context;
+	}
+
+	@Override
+	public long getTimeIndex() {
+		return timeIndex;
+	}
+
 
 }
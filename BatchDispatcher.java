@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * assigns open calls to idle AGVs for the whole fleet at once
+ *
+ * an alternative to the greedy choice of {@link CNPTransportAgent}, where
+ * each station takes the cheapest bid for each of its calls, and each AGV
+ * keeps the cheapest accept. Stations and AGVs still exchange CFPs and
+ * proposals as usual, but stations leave the proposals to the dispatcher.
+ * Each tick, the dispatcher matches the calls still AWARDING with the AGVs
+ * which are idle, minimising the total cost of the bids with the Hungarian
+ * algorithm, and has the stations send PROVISIONAL_ACCEPT for the matched
+ * bids. Assigned calls are not reconsidered, so there are no aborts. A
+ * call retracted by its AGV is open again, without the bid of that AGV,
+ * which does not bid on it again.
+ *
+ * must be registered after all agents
+ */
+public class BatchDispatcher implements TickListener {
+
+	private final SimulationContext context;
+
+	/**
+	 * bids on calls which have not been bound yet, by contract id and AGV
+	 * id; AGVs update the cost of their proposal in place when they see the
+	 * CFP again, so the pool holds the current cost
+	 */
+	private final Map<String, Map<Integer, Proposal>> bids = new LinkedHashMap<String, Map<Integer, Proposal>>();
+
+	/**
+	 * station which issued each call in the pool
+	 */
+	private final Map<String, PDPStation> issuers = new LinkedHashMap<String, PDPStation>();
+
+	/**
+	 * AGVs sent an accept in the previous tick, which has not been read yet
+	 */
+	private Set<Integer> pending = new HashSet<Integer>();
+
+	private long assignments = 0;
+	private double totalCost = 0;
+
+	BatchDispatcher(SimulationContext ctx)
+	{
+		context = ctx;
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse)
+	{
+		collectBids();
+
+		// open calls
+		List<String> calls = new ArrayList<String>();
+		for (String contractId : bids.keySet())
+		{
+			if (issuers.get(contractId).transportAgent.state.get(contractId)
+					== ContractNet.TransportAgentState.AWARDING)
+				calls.add(contractId);
+		}
+
+		// idle AGVs, and AGVs which can queue a call after their current one
+		List<AGV> agvs = new ArrayList<AGV>();
+		for (AGV a : context.getAGVs())
+		{
+			if (!a.acceptsMessages() || pending.contains(a.getId()))
+				continue;
+			
+			if ((a.getState() == ContractNet.AGVState.VOTING
+			  && a.deliveryAgent.getContract() == null)
+			 || a.deliveryAgent.bidsAhead())
+				agvs.add(a);
+		}
+
+		pending = new HashSet<Integer>();
+		if (calls.isEmpty() || agvs.isEmpty())
+			return;
+
+		double[][] cost = new double[calls.size()][agvs.size()];
+		for (int i = 0; i < calls.size(); i++)
+		{
+			Map<Integer, Proposal> b = bids.get(calls.get(i));
+			for (int j = 0; j < agvs.size(); j++)
+			{
+				Proposal p = b.get(agvs.get(j).getId());
+				cost[i][j] = (p != null ? p.getCost() : Double.POSITIVE_INFINITY);
+			}
+		}
+
+		int[] match = solve(cost);
+		for (int i = 0; i < calls.size(); i++)
+		{
+			if (match[i] < 0)
+				continue;
+
+			String contractId = calls.get(i);
+			AGV a = agvs.get(match[i]);
+			Proposal p = bids.get(contractId).get(a.getId());
+
+			issuers.get(contractId).transportAgent.assign(p);
+			pending.add(a.getId());
+			assignments++;
+			totalCost += p.getCost();
+		}
+	}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse) {}
+
+	/**
+	 * move the proposals read by the stations this tick into the pool, drop
+	 * the bids of AGVs which retracted, and drop calls which have been bound
+	 */
+	private void collectBids()
+	{
+		for (PDPStation s : context.getTransportAgents())
+		{
+			CNPTransportAgent ta = s.transportAgent;
+			for (Map.Entry<String, ArrayList<Proposal>> e : ta.incomingProposals.entrySet())
+			{
+				Map<Integer, Proposal> b = bids.get(e.getKey());
+				if (b == null)
+				{
+					b = new LinkedHashMap<Integer, Proposal>();
+					bids.put(e.getKey(), b);
+					issuers.put(e.getKey(), s);
+				}
+				for (Proposal p : e.getValue())
+					b.put(p.getAVGId(), p);
+			}
+			ta.incomingProposals.clear();
+			
+			for (Proposal p : ta.retractedProposals)
+			{
+				Map<Integer, Proposal> b = bids.get(p.getContractId());
+				if (b != null)
+					b.remove(p.getAVGId());
+			}
+			ta.retractedProposals.clear();
+		}
+
+		for (Iterator<String> it = bids.keySet().iterator(); it.hasNext();)
+		{
+			String contractId = it.next();
+			ContractNet.TransportAgentState st =
+					issuers.get(contractId).transportAgent.state.get(contractId);
+			if (st != ContractNet.TransportAgentState.AWARDING
+			 && st != ContractNet.TransportAgentState.ASSIGNED)
+			{
+				it.remove();
+				issuers.remove(contractId);
+			}
+		}
+	}
+
+	/**
+	 * minimum cost assignment of rows to columns, Hungarian algorithm with
+	 * potentials, O(n^2 m) for n rows and m columns
+	 *
+	 * infinite costs mark pairs which may not be matched
+	 *
+	 * @param cost
+	 * @return for each row the matched column, or -1
+	 */
+	static int[] solve(double[][] cost)
+	{
+		int rows = cost.length;
+		int cols = cost[0].length;
+
+		// the algorithm needs rows <= columns
+		if (rows > cols)
+		{
+			double[][] t = new double[cols][rows];
+			for (int i = 0; i < rows; i++)
+				for (int j = 0; j < cols; j++)
+					t[j][i] = cost[i][j];
+
+			int[] colMatch = solve(t);
+			int[] retVal = new int[rows];
+			Arrays.fill(retVal, -1);
+			for (int j = 0; j < cols; j++)
+			{
+				if (colMatch[j] >= 0)
+					retVal[colMatch[j]] = j;
+			}
+			return retVal;
+		}
+
+		// forbidden pairs get a cost above any feasible assignment
+		double big = 1;
+		for (double[] r : cost)
+			for (double c : r)
+				if (!Double.isInfinite(c))
+					big += Math.abs(c);
+		big *= rows + 1;
+
+		// 1-based, as in the textbook version; row 0 and column 0 are dummies
+		double[] u = new double[rows + 1];
+		double[] v = new double[cols + 1];
+		int[] p = new int[cols + 1];
+		int[] way = new int[cols + 1];
+
+		for (int i = 1; i <= rows; i++)
+		{
+			p[0] = i;
+			int j0 = 0;
+			double[] minv = new double[cols + 1];
+			boolean[] used = new boolean[cols + 1];
+			Arrays.fill(minv, Double.POSITIVE_INFINITY);
+
+			do
+			{
+				used[j0] = true;
+				int i0 = p[j0], j1 = 0;
+				double delta = Double.POSITIVE_INFINITY;
+				for (int j = 1; j <= cols; j++)
+				{
+					if (used[j])
+						continue;
+
+					double c = cost[i0 - 1][j - 1];
+					double cur = (Double.isInfinite(c) ? big : c) - u[i0] - v[j];
+					if (cur < minv[j])
+					{
+						minv[j] = cur;
+						way[j] = j0;
+					}
+					if (minv[j] < delta)
+					{
+						delta = minv[j];
+						j1 = j;
+					}
+				}
+				for (int j = 0; j <= cols; j++)
+				{
+					if (used[j])
+					{
+						u[p[j]] += delta;
+						v[j] -= delta;
+					}
+					else
+						minv[j] -= delta;
+				}
+				j0 = j1;
+			}
+			while (p[j0] != 0);
+
+			do
+			{
+				int j1 = way[j0];
+				p[j0] = p[j1];
+				j0 = j1;
+			}
+			while (j0 != 0);
+		}
+
+		int[] retVal = new int[rows];
+		Arrays.fill(retVal, -1);
+		for (int j = 1; j <= cols; j++)
+		{
+			if (p[j] != 0 && !Double.isInfinite(cost[p[j] - 1][j - 1]))
+				retVal[p[j] - 1] = j - 1;
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the number of calls assigned so far
+	 */
+	public long getAssignmentCount() {
+		return assignments;
+	}
+
+	/**
+	 * @return the total cost of the bids assigned so far
+	 */
+	public double getTotalCost() {
+		return totalCost;
+	}
+}
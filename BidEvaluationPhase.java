@@ -0,0 +1,97 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * handles the protocol messages of all AGVs at the start of a tick,
+ * computing the cost of every waiting CFP in parallel
+ *
+ * must be registered before the AGVs, so that it runs before any of them
+ * move; messages are read and sent in order of AGV id, so the outcome does
+ * not depend on the number of threads
+ */
+public class BidEvaluationPhase implements TickListener {
+
+	/**
+	 * number of AGVs evaluated by a single task
+	 */
+	private static final int THRESHOLD = 4;
+
+	private final SimulationContext context;
+	private final ForkJoinPool pool;
+
+	BidEvaluationPhase(SimulationContext ctx, ForkJoinPool p)
+	{
+		context = ctx;
+		pool = p;
+		context.setMessagePhase(true);
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse)
+	{
+		List<AGV> agvs = context.getAGVs();
+		boolean[] active = new boolean[agvs.size()];
+
+		for (int i = 0; i < agvs.size(); i++)
+		{
+			active[i] = agvs.get(i).acceptsMessages();
+			if (active[i])
+				agvs.get(i).deliveryAgent.readMessages();
+		}
+
+		pool.invoke(new Evaluate(agvs, active, 0, agvs.size()));
+
+		for (int i = 0; i < agvs.size(); i++)
+		{
+			if (active[i])
+				agvs.get(i).deliveryAgent.respondToMessages();
+		}
+	}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse) {}
+
+	/**
+	 * evaluate CFP costs for a range of AGVs, splitting until the range is
+	 * small enough
+	 */
+	static class Evaluate extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<AGV> agvs;
+		private final boolean[] active;
+		private final int from;
+		private final int to;
+
+		Evaluate(List<AGV> a, boolean[] act, int f, int t)
+		{
+			agvs = a;
+			active = act;
+			from = f;
+			to = t;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= THRESHOLD)
+			{
+				for (int i = from; i < to; i++)
+				{
+					if (active[i])
+						agvs.get(i).deliveryAgent.evaluateCallForProposals();
+				}
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new Evaluate(agvs, active, from, mid),
+					new Evaluate(agvs, active, mid, to));
+		}
+	}
+}
@@ -1,7 +1,12 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import com.github.rinde.rinsim.core.model.comm.Message;
+import com.github.rinde.rinsim.geom.Point;
 import com.google.common.collect.ImmutableList;
 
 
@@ -14,12 +19,42 @@ public class CNPAGVAgent {
 	private HashMap<String, Proposal> offers = new HashMap<String, Proposal>();
 	private Proposal currentContract = null;
 	private Proposal switchedContract = null;
+	
+	/**
+	 * switches since the current contract was first taken on
+	 */
+	private int switchCount = 0;
+	
+	private int switches = 0;
+	private int switchesAvoided = 0;
+	
+	/**
+	 * number of proposals created so far, for proposal ids
+	 */
+	private int proposalCounter = 0;
+	
+	/**
+	 * contracts committed to after the current one, in order of execution
+	 */
+	private final LinkedList<Proposal> queuedContracts = new LinkedList<Proposal>();
+	
+	/**
+	 * costs of the calls in incomingCFPs, in the same order
+	 */
+	private double[] cfpCosts = new double[0];
+	
+	/**
+	 * latest reply of a charge station, until taken by the AGV
+	 */
+	private ChargeReservationMessage chargeReply = null;
 	CNPUser parent = null;
 	ContractNet.AGVState deliveryState = ContractNet.AGVState.VOTING;
+	final MessageOutbox outbox;
 	
 	CNPAGVAgent(CNPUser agv)
 	{
 		parent = agv;
+		outbox = new MessageOutbox(agv);
 	}
 	
 	public ContractNet.AGVState getState() {
@@ -42,25 +77,145 @@ public class CNPAGVAgent {
 		return currentContract;
 	}
 	
+	/**
+	 * @return the contracts to do after the current one, in order
+	 */
+	public List<Proposal> getQueuedContracts()
+	{
+		return Collections.unmodifiableList(queuedContracts);
+	}
+	
+	/**
+	 * @return the number of contracts which may be queued after the current
+	 * one; bundle bidding needs a queue of at least one
+	 */
+	int getQueueCapacity()
+	{
+		SimulationConfig c = parent.getContext().getConfig();
+		return Math.max(c.getTaskQueueLength(), c.isBundleBidding() ? 1 : 0);
+	}
+	
+	/**
+	 * an AGV with a contract may commit to further contracts, to be done 
+	 * one after the other; it then bids on calls priced from the end of its
+	 * queue, instead of bidding to switch. With bundle bidding only, this 
+	 * starts once the current contract is executing
+	 * 
+	 * @return whether bids and accepts are for the end of the queue
+	 */
+	boolean queuesAhead()
+	{
+		if (currentContract == null || getQueueCapacity() == 0)
+			return false;
+		
+		return deliveryState == ContractNet.AGVState.EXECUTING
+			|| (deliveryState == ContractNet.AGVState.INTENTIONAL
+			 && parent.getContext().getConfig().getTaskQueueLength() > 0);
+	}
+	
+	/**
+	 * @return whether the AGV bids on calls to add to its queue
+	 */
+	boolean bidsAhead()
+	{
+		return queuesAhead() && queuedContracts.size() < getQueueCapacity();
+	}
+	
+	/**
+	 * @return the contract committed to last
+	 */
+	private Proposal getLastCommitted()
+	{
+		return (queuedContracts.isEmpty() ? currentContract : queuedContracts.getLast());
+	}
+	
+	/**
+	 * @param contractId
+	 * @return whether the contract is the current one or queued
+	 */
+	private boolean isCommitted(String contractId)
+	{
+		if (currentContract != null && currentContract.getContractId().equals(contractId))
+			return true;
+		for (Proposal p : queuedContracts)
+		{
+			if (p.getContractId().equals(contractId))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param cfp
+	 * @return whether cfp can be added to the queue; with bundle bidding,
+	 * its pickup must be near the last drop-off
+	 */
+	private boolean canChain(CallForProposalMessage cfp)
+	{
+		if (isCommitted(cfp.getContractId()))
+			return false;
+		
+		SimulationConfig c = parent.getContext().getConfig();
+		return !c.isBundleBidding() 
+			|| Point.distance(getLastCommitted().getDestination(), cfp.getOrigin())
+				<= c.getBundleRadius();
+	}
+	
 	
 	/**
 	 * send a proposal for all waiting calls
 	 */
 	void receiveCallForProposal()
 	{
+		evaluateCallForProposals();
+		sendProposals();
+	}
+	
+	/**
+	 * determine the cost of all waiting calls, without sending anything
+	 * 
+	 * only reads this agent and the road model, so may run for several 
+	 * agents at once while no AGV is moving
+	 */
+	void evaluateCallForProposals()
+	{
+		boolean ahead = bidsAhead();
+		
 		// if we are currently bound to a contract, or there are no incomingCFPs do nothing
-		if (deliveryState == ContractNet.AGVState.EXECUTING || 
+		if ((deliveryState == ContractNet.AGVState.EXECUTING && !ahead) || 
+			(queuesAhead() && !ahead) ||
 			incomingCFPs.isEmpty())
 			return;
 		
-		double len;
+		if (cfpCosts.length < incomingCFPs.size())
+			cfpCosts = new double[incomingCFPs.size()];
 		
-		// determine the cost of the proposal
-		for (CallForProposalMessage cfp : incomingCFPs)
+		for (int i = 0; i < incomingCFPs.size(); i++)
 		{
-			len = parent.getContractCost(cfp);
-			
-			sendProposal(cfp, len);
+			// when queueing, only calls which can be chained get a bid
+			if (ahead && !canChain(incomingCFPs.get(i)))
+				cfpCosts[i] = Double.POSITIVE_INFINITY;
+			else
+				cfpCosts[i] = parent.getContractCost(incomingCFPs.get(i));
+		}
+	}
+	
+	/**
+	 * send a proposal for all waiting calls, at the cost found by
+	 * evaluateCallForProposals
+	 */
+	void sendProposals()
+	{
+		boolean ahead = bidsAhead();
+		if ((deliveryState == ContractNet.AGVState.EXECUTING && !ahead) || 
+			(queuesAhead() && !ahead) ||
+			incomingCFPs.isEmpty())
+			return;
+		
+		for (int i = 0; i < incomingCFPs.size(); i++)
+		{
+			if (cfpCosts[i] != Double.POSITIVE_INFINITY)
+				sendProposal(incomingCFPs.get(i), cfpCosts[i]);
 		}
 	}
 	
@@ -70,6 +225,12 @@ public class CNPAGVAgent {
 	 */
 	void receiveProvisionalAccept()
 	{
+		if (queuesAhead())
+		{
+			receiveQueuedAccept();
+			return;
+		}
+		
 		// if we are currently bound to a contract, or there are no incomingCFPs do nothing
 		if (deliveryState == ContractNet.AGVState.EXECUTING || 
 			deliveryState == ContractNet.AGVState.SWITCH_INITIATOR || 
@@ -112,22 +273,38 @@ public class CNPAGVAgent {
 		{
 			deliveryState = ContractNet.AGVState.INTENTIONAL;			
 			currentContract = offers.get(chosen.getContractId());
+			switchCount = 0;
 			
 			accepts.remove(chosen);
 		}
-		// we are in INTENTIONAL state; consider switching
-		else if (!(chosen.getContractId().equals(currentContract.getContractId()))
-			&& minCost < parent.getContractCost(currentContract))
+		// we are in INTENTIONAL state; consider switching, unless the gain 
+		// is small or we have switched too often already
+		else if (!(chosen.getContractId().equals(currentContract.getContractId())))
 		{
-			deliveryState = ContractNet.AGVState.SWITCH_INITIATOR;
-
-			switchedContract = offers.get(chosen.getContractId());
-
-			//newContract = true;
-			accepts.remove(chosen);
+			SimulationConfig cfg = parent.getContext().getConfig();
+			double currentCost = parent.getContractCost(currentContract);
+			
+			if (minCost < currentCost 
+			 && ContractNet.isWorthSwitching(cfg, currentCost, minCost)
+			 && (cfg.getMaxSwitchesPerContract() < 0 
+			  || switchCount < cfg.getMaxSwitchesPerContract()))
+			{
+				deliveryState = ContractNet.AGVState.SWITCH_INITIATOR;
+	
+				switchedContract = offers.get(chosen.getContractId());
+				switchCount++;
+				switches++;
+	
+				//newContract = true;
+				accepts.remove(chosen);
+			}
+			else if (minCost < currentCost)
+			{
+				switchesAvoided++;
+			}
 		}
 		// best contract is current one
-		else if (chosen.getContractId().equals(currentContract.getContractId()))
+		else
 		{
 			accepts.remove(chosen);
 		}
@@ -139,8 +316,60 @@ public class CNPAGVAgent {
 		}
 	}
 	
+	/**
+	 * add the cheapest accept to the end of the queue, and retract the 
+	 * others; only one is taken per round, since the cost of the others was
+	 * priced without it
+	 */
+	private void receiveQueuedAccept()
+	{
+		// repeated accepts of contracts already committed to need no answer
+		for (Iterator<ProtocolMessage> it = accepts.iterator(); it.hasNext();)
+		{
+			if (isCommitted(it.next().getContractId()))
+				it.remove();
+		}
+		if (accepts.isEmpty())
+			return;
+		
+		ProtocolMessage chosen = null;
+		double len, minCost = Double.MAX_VALUE;
+		if (queuedContracts.size() < getQueueCapacity())
+		{
+			for (ProtocolMessage pa : accepts)
+			{
+				if (!parent.validateContract(pa))
+					continue;
+				
+				len = parent.getContractCost(pa);
+				if (len < minCost)
+				{
+					minCost = len;
+					chosen = pa;
+				}
+			}
+		}
+		
+		if (chosen != null)
+		{
+			queuedContracts.add(offers.get(chosen.getContractId()));
+			accepts.remove(chosen);
+		}
+		
+		for (ProtocolMessage pa : accepts)
+		{
+			sendRetracted(pa, true);
+		}
+	}
+	
 	void receiveAbort(ProtocolMessage abort)
 	{
+		for (Iterator<Proposal> it = queuedContracts.iterator(); it.hasNext();)
+		{
+			if (it.next().getContractId().equals(abort.getContractId()))
+				it.remove();
+		}
+		
 		if (currentContract != null &&
 			abort.getContractId().equals(currentContract.getContractId())
 			&& deliveryState == ContractNet.AGVState.EXECUTING)
@@ -162,15 +391,21 @@ public class CNPAGVAgent {
 	void sendProposal(CallForProposalMessage cfp, double cost)
 	{
 		// if proposal has been sent before, update cost
+		String chainedTo = (bidsAhead() ? getLastCommitted().getContractId() : null);
+		
 		Proposal p = offers.get(cfp.getContractId());
 		if (p != null)
 		{
 			p.setCost(cost);
+			p.setChainedTo(chainedTo);
 			return;
 		}
 		else // create new proposal
 		{
-			p = new Proposal(parent.getCommUser(), cfp, parent.getId(), cost);
+			proposalCounter++;
+			p = new Proposal(parent.getContext(), parent.getCommUser(), cfp, 
+				parent.getId(), cost, parent.getId() + "-" + proposalCounter);
+			p.setChainedTo(chainedTo);
 			offers.put(cfp.getContractId(), p);
 
 			StringBuilder b = new StringBuilder();
@@ -181,15 +416,15 @@ public class CNPAGVAgent {
 			b.append(" }");
 			b.append(" [" + parent.getPosition().get() + "]"); 
 			
-			System.out.println(b.toString());
+			parent.getContext().log(b.toString());
 		}
-		parent.getDevice().get().send(p, cfp.getSender());
+		outbox.send(p, cfp.getSender());
 	}
 	
 	void sendRetracted(ProtocolMessage cfp, boolean isResponse)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.RETRACTED, cfp, isResponse);
-		parent.getDevice().get().send(p, p.getReceiver());
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.RETRACTED, cfp, isResponse);
+		outbox.send(p, p.getReceiver());
 		
 		// reset contract if needed
 		if (currentContract != null &&
@@ -206,7 +441,7 @@ public class CNPAGVAgent {
 		b.append(" }");
 		b.append(" [" + parent.getPosition().get() + "]"); 
 		
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 		
 	}
 	
@@ -217,8 +452,8 @@ public class CNPAGVAgent {
 	 */
 	void sendBound(ProtocolMessage cfp)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.BOUND, cfp, false);
-		parent.getDevice().get().send(p, p.getReceiver());
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.BOUND, cfp, false);
+		outbox.send(p, p.getReceiver());
 		
 		deliveryState = ContractNet.AGVState.EXECUTING;
 
@@ -230,7 +465,7 @@ public class CNPAGVAgent {
 		b.append(" }");
 		b.append(" [" + parent.getPosition().get() + "]"); 
 		
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 	
 	}
 	
@@ -241,8 +476,8 @@ public class CNPAGVAgent {
 	 */
 	void sendAcceptAbort(ProtocolMessage abort)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.ACCEPT_ABORT, abort, true);
-		parent.getDevice().get().send(p, abort.getSender());
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.ACCEPT_ABORT, abort, true);
+		outbox.send(p, abort.getSender());
 
 		StringBuilder b = new StringBuilder();
 		b.append("[AGV] Send AcceptAbort: { AGV: ");
@@ -252,14 +487,14 @@ public class CNPAGVAgent {
 		b.append(" }");
 		b.append(" [" + parent.getPosition().get() + "]"); 
 		
-		System.out.println(p.toString());
+		parent.getContext().log(p.toString());
 				
 	}
 	
 	void sendRefuseAbort(ProtocolMessage abort)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.REFUSE_ABORT, abort, true);
-		parent.getDevice().get().send(p, abort.getSender());
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.REFUSE_ABORT, abort, true);
+		outbox.send(p, abort.getSender());
 		
 		StringBuilder b = new StringBuilder();
 		b.append("[AGV] Send RefuseAbort: { AGV: ");
@@ -269,7 +504,7 @@ public class CNPAGVAgent {
 		b.append(" }");
 		b.append(" [" + parent.getPosition().get() + "]"); 
 		
-		System.out.println(p.toString());	
+		parent.getContext().log(p.toString());	
 	}
 	
 	/**
@@ -278,6 +513,17 @@ public class CNPAGVAgent {
 	 * build lists of messages of each type, and process separately
 	 */
 	public void processMessages()
+	{
+		readMessages();
+		evaluateCallForProposals();
+		respondToMessages();
+	}
+	
+	/**
+	 * build lists of waiting messages of each type; aborts are answered 
+	 * immediately
+	 */
+	void readMessages()
 	{
 		ImmutableList<Message> unread = parent.getDevice().get().getUnreadMessages();
 		incomingCFPs.clear();
@@ -293,20 +539,62 @@ public class CNPAGVAgent {
 				break;
 				 
 			case PROVISIONAL_ACCEPT:
-				accepts.add(contents);
+				// the proposal may have been made before the AGV was handed 
+				// over from another zone, which keeps only its contracts
+				if (offers.containsKey(contents.getContractId()))
+					accepts.add(contents);
+				else
+					sendRetracted(contents, true);
 				break;
 				 
 			case ABORT:
 				receiveAbort(contents);
 				break;
 				
+			case CHARGE_CONFIRMED:
+			case CHARGE_REFUSED:
+				chargeReply = (ChargeReservationMessage) contents;
+				break;
+				
 			default:
 				break;
 				 
 			};
 		}
+	}
+	
+	/**
+	 * read waiting messages while charging: replies of charge stations are 
+	 * kept and aborts answered as usual; calls are ignored, and accepts 
+	 * refused, so the station does not wait on an AGV which cannot drive
+	 */
+	void readChargeReplies()
+	{
+		readMessages();
+		incomingCFPs.clear();
 		
-		receiveCallForProposal();
+		for (ProtocolMessage pa : accepts)
+			sendRetracted(pa, true);
+		accepts.clear();
+	}
+	
+	/**
+	 * @return the latest reply of a charge station, or null; the reply is 
+	 * handed out once
+	 */
+	ChargeReservationMessage takeChargeReply()
+	{
+		ChargeReservationMessage retVal = chargeReply;
+		chargeReply = null;
+		return retVal;
+	}
+	
+	/**
+	 * send proposals for evaluated calls, and choose between accepts
+	 */
+	void respondToMessages()
+	{
+		sendProposals();
 		receiveProvisionalAccept();
 	}
 	
@@ -318,12 +606,112 @@ public class CNPAGVAgent {
 		sendBound(currentContract);
 	}
 
+	/**
+	 * take on a contract restored from a snapshot
+	 * 
+	 * @param p
+	 * @param s
+	 */
+	void restoreContract(Proposal p, ContractNet.AGVState s)
+	{
+		currentContract = p;
+		offers.put(p.getContractId(), p);
+		deliveryState = s;
+	}
+
+	/**
+	 * take on the contracts of an AGV handed over from another zone
+	 * 
+	 * @param s
+	 * @param current - the current contract, or null
+	 * @param queued - the contracts to do after it, in order
+	 * @param switched - switches since the current contract was first taken on
+	 * @param counter - number of proposals created so far
+	 */
+	void takeOver(ContractNet.AGVState s, Proposal current, List<Proposal> queued, 
+			int switched, int counter)
+	{
+		if (current != null)
+			restoreContract(current, s);
+		for (Proposal p : queued)
+		{
+			queuedContracts.add(p);
+			offers.put(p.getContractId(), p);
+		}
+		switchCount = switched;
+		restoreProposalCounter(counter);
+	}
+
+	/**
+	 * @return switches since the current contract was first taken on
+	 */
+	int getContractSwitchCount()
+	{
+		return switchCount;
+	}
+
+	/**
+	 * @return the number of proposals created so far
+	 */
+	int getProposalCounter()
+	{
+		return proposalCounter;
+	}
+
+	/**
+	 * continue numbering proposals after a snapshot
+	 * 
+	 * @param counter - number of proposals created before the snapshot
+	 */
+	void restoreProposalCounter(int counter)
+	{
+		proposalCounter = Math.max(proposalCounter, counter);
+	}
+
+	/**
+	 * the current contract has been delivered; take on the next queued 
+	 * contract, if any
+	 */
+	public void complete()
+	{
+		currentContract = queuedContracts.poll();
+		deliveryState = (currentContract != null ? 
+			ContractNet.AGVState.INTENTIONAL : ContractNet.AGVState.VOTING);
+	}
+	
+	/**
+	 * drop all contracts, e.g. when the battery is dead; queued contracts 
+	 * are handed back to their stations
+	 */
 	public void clear()
 	{
+		for (Proposal p : queuedContracts)
+		{
+			sendRetracted(p, false);
+		}
+		
+		queuedContracts.clear();
 		currentContract = null;
 		deliveryState = ContractNet.AGVState.VOTING;
 	}	
 	
+	/**
+	 * @return the number of times the AGV switched to a cheaper contract
+	 */
+	int getSwitchCount()
+	{
+		return switches;
+	}
+	
+	/**
+	 * @return the number of cheaper contracts not switched to, because the 
+	 * gain was too small or the AGV had switched too often
+	 */
+	int getSwitchesAvoided()
+	{
+		return switchesAvoided;
+	}
+	
 	/**
 	 * @return the currentContract
 	 */
@@ -1,8 +1,6 @@
 import java.util.ArrayList;
 import java.util.HashMap;
 
-import org.apache.commons.lang3.RandomStringUtils;
-
 import com.github.rinde.rinsim.core.model.comm.Message;
 import com.github.rinde.rinsim.geom.Point;
 import com.google.common.collect.ImmutableList;
@@ -18,6 +16,12 @@ public class CNPTransportAgent {
 	 */
 	HashMap<String, ArrayList<Proposal>> incomingProposals = new HashMap<String, ArrayList<Proposal>>();
 	
+	/**
+	 * accepted proposals given up by their AGV since the last look of the 
+	 * {@link BatchDispatcher}
+	 */
+	ArrayList<Proposal> retractedProposals = new ArrayList<Proposal>();
+	
 	
 	/**
 	 * all previous and active proposals
@@ -29,16 +33,122 @@ public class CNPTransportAgent {
 	 */
 	HashMap<String, Proposal> switchedProposals = new HashMap<String, Proposal>();	
 	
+	/**
+	 * number of times each call was moved to another AGV, by the station or
+	 * by the AGV giving it up; checked against maxSwitchesPerContract
+	 */
+	private final HashMap<String, Integer> switchCounts = new HashMap<String, Integer>();
+	
+	private int switches = 0;
+	private int switchesAvoided = 0;
+	
 	/**
 	 * the state of all previous and active calls
 	 */
 	HashMap<String, ContractNet.TransportAgentState> state = new HashMap<String, ContractNet.TransportAgentState>();
 
 	CNPUser parent = null;
+	final MessageOutbox outbox;
+	
+	/**
+	 * number of CFPs created so far, used to build contract ids
+	 */
+	private int cfpCounter = 0;
+	
+	/**
+	 * number of calls in each state, kept up to date for monitoring
+	 */
+	private final int[] stateCounts = new int[ContractNet.TransportAgentState.values().length];
 	
 	CNPTransportAgent(CNPUser p)
 	{
 		parent = p;
+		outbox = new MessageOutbox(p);
+	}
+
+	/**
+	 * @return the number of CFPs created so far
+	 */
+	int getCfpCounter()
+	{
+		return cfpCounter;
+	}
+	
+	/**
+	 * @param contractId
+	 * @param s new state of the call
+	 */
+	private void setState(String contractId, ContractNet.TransportAgentState s)
+	{
+		ContractNet.TransportAgentState old = state.put(contractId, s);
+		if (old != null)
+			stateCounts[old.ordinal()]--;
+		stateCounts[s.ordinal()]++;
+	}
+	
+	/**
+	 * @param contractId
+	 * @return whether the call may be moved to another AGV once more
+	 */
+	private boolean canSwitch(String contractId)
+	{
+		int max = parent.getContext().getConfig().getMaxSwitchesPerContract();
+		Integer n = switchCounts.get(contractId);
+		return max < 0 || n == null || n < max;
+	}
+	
+	/**
+	 * @param contractId
+	 */
+	private void countSwitch(String contractId)
+	{
+		Integer n = switchCounts.get(contractId);
+		switchCounts.put(contractId, (n == null ? 1 : n + 1));
+		switches++;
+	}
+	
+	/**
+	 * @return the number of times a call was moved to another AGV
+	 */
+	int getSwitchCount()
+	{
+		return switches;
+	}
+	
+	/**
+	 * @return the number of cheaper bids not taken up, because the gain was
+	 * too small or the call had been switched too often
+	 */
+	int getSwitchesAvoided()
+	{
+		return switchesAvoided;
+	}
+	
+	/**
+	 * @param s
+	 * @return the number of calls in state s
+	 */
+	int getStateCount(ContractNet.TransportAgentState s)
+	{
+		return stateCounts[s.ordinal()];
+	}
+	
+	/**
+	 * take on a call restored from a snapshot
+	 * 
+	 * @param cfp
+	 * @param s
+	 * @param accepted - the accepted proposal, or null
+	 * @param counter - number of CFPs created so far
+	 */
+	void restoreCall(CallForProposalMessage cfp, 
+			ContractNet.TransportAgentState s, Proposal accepted, int counter)
+	{
+		calls.put(cfp.getContractId(), cfp);
+		setState(cfp.getContractId(), s);
+		if (accepted != null)
+			acceptedProposals.put(cfp.getContractId(), accepted);
+		cfpCounter = Math.max(cfpCounter, counter);
 	}
 
 	/**
@@ -46,7 +156,7 @@ public class CNPTransportAgent {
 	 */
 	private void addProposal(Proposal p)
 	{
-		ArrayList<Proposal> pList = incomingProposals.get(p);
+		ArrayList<Proposal> pList = incomingProposals.get(p.getContractId());
 		if (pList == null)
 		{
 			pList = new ArrayList<Proposal>();
@@ -73,12 +183,42 @@ public class CNPTransportAgent {
 		Proposal currentContract = acceptedProposals.get(contractId);
 		
 		// if retract is from AGV to which contract was previously assigned,
-		// set task back to AWARDING
+		// set task back to AWARDING; retracts answer the accept, or hand 
+		// back the proposal, so they are matched on the AGV rather than on 
+		// a message id
 		if (currentContract != null && cfpState == ContractNet.TransportAgentState.ASSIGNED 
-				&& currentContract.getMessageId() == pm.getPreviousMessageId())
+				&& currentContract.getAVGId() == getSenderId(pm))
 		{
-			state.put(contractId, ContractNet.TransportAgentState.AWARDING);
+			// forget the AGV's bid, so the call goes to the best new bid 
+			// rather than only to one cheaper than the AGV which gave it up
+			acceptedProposals.put(contractId, null);
+			parent.getContext().getDeliveryRecorder().setProposal(contractId, null);
+			if (parent.getContext().getConfig().isBatchAssignment())
+				retractedProposals.add(currentContract);
+			setState(contractId, ContractNet.TransportAgentState.AWARDING);
+			
+			// a call handed back, when the AGV switched to another call or 
+			// its battery ran flat, was moved away from it; a refused accept
+			// answers the accept, and the call never was the AGV's
+			if (pm.getPreviousMessageId() < 0)
+				countSwitch(contractId);
 		}
+		
+		assert state.get(contractId) != ContractNet.TransportAgentState.ASSIGNED
+			|| acceptedProposals.get(contractId) == null
+			|| acceptedProposals.get(contractId).getAVGId() != getSenderId(pm)
+			: "retracted call " + contractId + " still assigned";
+	}
+	
+	/**
+	 * @param pm
+	 * @return the id of the AGV which sent pm, or -1 if not sent by an AGV
+	 */
+	private static int getSenderId(ProtocolMessage pm)
+	{
+		if (pm.getSender() instanceof CNPUser)
+			return ((CNPUser) pm.getSender()).getId();
+		return -1;
 	}
 	
 	/**
@@ -88,14 +228,16 @@ public class CNPTransportAgent {
 	 */
 	public CallForProposalMessage createCFP(Point destination)
 	{
-		// create a contract Id
-		String contractId = RandomStringUtils.randomAlphanumeric(16);
-		
 		// choose a destination
 		if (destination == null || destination.equals(parent.getPosition().get()))
 			return null;
 		
-		CallForProposalMessage retVal = new CallForProposalMessage(parent.getCommUser(), 
+		// create a contract Id; derived from the agent id, so that runs
+		// with the same seed use the same ids
+		cfpCounter++;
+		String contractId = parent.getId() + "-" + cfpCounter;
+		
+		CallForProposalMessage retVal = new CallForProposalMessage(parent.getContext(), parent.getCommUser(), 
 			contractId, parent.getPosition().get(), destination);
 
 		StringBuilder b = new StringBuilder();
@@ -104,9 +246,9 @@ public class CNPTransportAgent {
 		b.append(", ");
 		b.append(retVal);
 		
-		System.out.println(b.toString());		
+		parent.getContext().log(b.toString());		
 		calls.put(contractId, retVal);
-		state.put(contractId, ContractNet.TransportAgentState.AWARDING);
+		setState(contractId, ContractNet.TransportAgentState.AWARDING);
 
 		
 		return retVal;
@@ -136,9 +278,12 @@ public class CNPTransportAgent {
 		b.append(", { ");
 		b.append(p);
 		b.append(" }}");
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 		
-		state.put(pm.getContractId(), ContractNet.TransportAgentState.EXECUTING);
+		setState(pm.getContractId(), ContractNet.TransportAgentState.EXECUTING);
+		
+		parent.getContext().getDeliveryRecorder().setDeliveryBoundTime(contractId, 
+				parent.getTimeIndex());
 	}
 	
 	/**
@@ -157,7 +302,7 @@ public class CNPTransportAgent {
 			return;
 		
 		// create and send abort message from the currently accepted proposal 
-		ProtocolMessage abort = new ProtocolMessage(parent.getCommUser(),
+		ProtocolMessage abort = new ProtocolMessage(parent.getContext(), parent.getCommUser(),
 				ProtocolMessage.MessageType.ABORT, p, true);
 		
 		// delete currently accepted proposal
@@ -169,9 +314,9 @@ public class CNPTransportAgent {
 		b.append(", { ");
 		b.append(p);
 		b.append(" }}");
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 		
-		parent.getDevice().get().send(abort, pm.getSender());
+		outbox.send(abort, pm.getSender());
 	}
 
 
@@ -186,7 +331,7 @@ public class CNPTransportAgent {
 			return;
 		
 		String contractId = p.getContractId();
-		ProtocolMessage accept = new ProtocolMessage(parent.getCommUser(), 
+		ProtocolMessage accept = new ProtocolMessage(parent.getContext(), parent.getCommUser(), 
 				ProtocolMessage.MessageType.PROVISIONAL_ACCEPT, p, true);
 		
 		// record the currently accepted proposal
@@ -198,11 +343,11 @@ public class CNPTransportAgent {
 		b.append(", {");
 		b.append(p);
 		b.append(" }}");
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 		
-		DeliveryRecorder.setProposal(contractId, p);
+		parent.getContext().getDeliveryRecorder().setProposal(contractId, p);
 		
-		parent.getDevice().get().send(accept, accept.getReceiver());
+		outbox.send(accept, accept.getReceiver());
 	}
 
 	
@@ -227,7 +372,7 @@ public class CNPTransportAgent {
 		b.append(", {");
 		b.append(p);
 		b.append(" }}");
-		System.out.println(b.toString());
+		parent.getContext().log(b.toString());
 		
 		// reset contract to unassigned
 		switch (state.get(contractId))
@@ -235,9 +380,9 @@ public class CNPTransportAgent {
 		case ASSIGNED:
 			// remove 
 			acceptedProposals.put(contractId, null);
-			DeliveryRecorder.setProposal(contractId, null);
+			parent.getContext().getDeliveryRecorder().setProposal(contractId, null);
 
-			state.put(contractId, ContractNet.TransportAgentState.AWARDING);
+			setState(contractId, ContractNet.TransportAgentState.AWARDING);
 
 			break;
 
@@ -247,7 +392,7 @@ public class CNPTransportAgent {
 			// accept previously saved one
 			acceptedProposals.put(contractId, newProposal);
 			sendProvisionalAccept(newProposal);
-			state.put(contractId, ContractNet.TransportAgentState.ASSIGNED);
+			setState(contractId, ContractNet.TransportAgentState.ASSIGNED);
 
 			break;
 			
@@ -297,7 +442,23 @@ public class CNPTransportAgent {
 			};
 		}
 		
-		processProposals();
+		// with batch assignment, proposals are left to the BatchDispatcher
+		if (!parent.getContext().getConfig().isBatchAssignment())
+			processProposals();
+	}
+	
+	/**
+	 * accept a proposal chosen by the {@link BatchDispatcher}
+	 * 
+	 * @param p a proposal for a call which is AWARDING
+	 */
+	void assign(Proposal p)
+	{
+		if (state.get(p.getContractId()) != ContractNet.TransportAgentState.AWARDING)
+			return;
+		
+		setState(p.getContractId(), ContractNet.TransportAgentState.ASSIGNED);
+		sendProvisionalAccept(p);
 	}
 	
 	/**
@@ -313,7 +474,7 @@ public class CNPTransportAgent {
 				// send an abort to the currently assigned AGV
 				sendAbort(p);
 
-				state.put(contractId, ContractNet.TransportAgentState.WAITING_TO_ABORT);			
+				setState(contractId, ContractNet.TransportAgentState.WAITING_TO_ABORT);			
 			}
 		}
 	}
@@ -331,7 +492,7 @@ public class CNPTransportAgent {
 		{
 			if (state.get(contractId) == ContractNet.TransportAgentState.WAITING_TO_ABORT)
 			{
-				state.put(contractId, ContractNet.TransportAgentState.EXECUTING);			
+				setState(contractId, ContractNet.TransportAgentState.EXECUTING);			
 			}
 		}
 	}
@@ -351,7 +512,7 @@ public class CNPTransportAgent {
 			 || s == ContractNet.TransportAgentState.AWARDING )
 			{
 				cfp = calls.get(contractID);
-				parent.getDevice().get().broadcast(cfp);
+				outbox.broadcast(cfp);
 			}
 		}
 	}
@@ -360,16 +521,17 @@ public class CNPTransportAgent {
 	 * process incoming Proposals from AGVAgents
 	 * 
 	 * if better proposal for a currently assigned contract is available, switch to new one
+	 * 
+	 * losing bids are left alone: their AGVs keep offering, and update the 
+	 * cost on the next call for proposals
 	 */
 	void processProposals()
 	{
 		Proposal best, current;
-		boolean newProposal;
 		
 		for (String contractId : incomingProposals.keySet())
 		{
 			ArrayList<Proposal> pList = incomingProposals.get(contractId);
-			newProposal = false;
 
 			// nop if no proposals for this contract
 			if (pList == null || pList.size() == 0)
@@ -407,8 +569,7 @@ public class CNPTransportAgent {
 			// choose the best one if we are idle
 			if (current == null)
 			{
-				newProposal = true;
-				state.put(contractId, ContractNet.TransportAgentState.ASSIGNED);
+				setState(contractId, ContractNet.TransportAgentState.ASSIGNED);
 				
 				// send accept message
 				sendProvisionalAccept(best);
@@ -417,19 +578,25 @@ public class CNPTransportAgent {
 			else if (minCost < current.getCost() 
 				&& best.getAVGId() != current.getAVGId())
 			{
-				newProposal = true;
-				state.put(contractId, ContractNet.TransportAgentState.ABORTING);
-				
-				switchedProposals.put(contractId, best);
-			}
-			
-			// abort all remaining proposals for this contractId
-			if (newProposal)
-				pList.remove(best);
-			
-			for (Proposal p : pList)
-			{
-				sendAbort(p);
+				// a refused switch keeps the current AGV, and aborts no one
+				if (!ContractNet.isWorthSwitching(parent.getContext().getConfig(), 
+						current.getCost(), minCost))
+				{
+					// gain too small
+					switchesAvoided++;
+				}
+				else if (!canSwitch(contractId))
+				{
+					// worth it, but the call was switched too often
+					switchesAvoided++;
+				}
+				else
+				{
+					setState(contractId, ContractNet.TransportAgentState.ABORTING);
+					
+					switchedProposals.put(contractId, best);
+					countSwitch(contractId);
+				}
 			}
 		}
 	}	
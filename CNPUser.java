@@ -11,4 +11,6 @@ public interface CNPUser {
 	public Optional<CommDevice> getDevice();
 	public Optional<Point> getPosition();
 	public CommUser getCommUser();
+	public SimulationContext getContext();
+	public long getTimeIndex();
 }
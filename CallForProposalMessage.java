@@ -5,18 +5,17 @@ import com.github.rinde.rinsim.geom.Point;
 
 public class CallForProposalMessage extends ProtocolMessage {
 
-	CallForProposalMessage(CommUser s, String contractId, Point a, Point b) 
+	CallForProposalMessage(SimulationContext ctx, CommUser s, String contractId, Point a, Point b) 
 	{
-		super(s, null, ProtocolMessage.MessageType.CALL_FOR_PROPOSAL, contractId, a, b);
+		super(ctx, s, null, ProtocolMessage.MessageType.CALL_FOR_PROPOSAL, contractId, a, b);
 		
 		origin = a;
 		destination = b;
-		contractId = RandomStringUtils.randomAlphanumeric(16);
 	}
 	
-	CallForProposalMessage(CommUser s, ProtocolMessage p) 
+	CallForProposalMessage(SimulationContext ctx, CommUser s, ProtocolMessage p) 
 	{
-		super(s, ProtocolMessage.MessageType.CALL_FOR_PROPOSAL, p, true);
+		super(ctx, s, ProtocolMessage.MessageType.CALL_FOR_PROPOSAL, p, true);
 		contractId = RandomStringUtils.randomAlphanumeric(16);
 	}
 
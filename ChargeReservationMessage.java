@@ -0,0 +1,99 @@
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * books or releases a charging slot at a charge station, or answers a
+ * booking
+ *
+ * a request carries the estimated arrival and departure of the AGV, and the
+ * distance it can still travel; a reply carries the station booked for the
+ * AGV, which is the receiver of the request when confirmed, or an
+ * alternative when refused
+ */
+public class ChargeReservationMessage extends ProtocolMessage {
+
+	// estimated slot, in seconds
+	long arrivalTime;
+	long departureTime;
+
+	// distance the AGV can travel on its remaining charge
+	double range;
+
+	// station booked, in a reply; null if none could be found
+	ChargeStation station;
+
+	/**
+	 * @param ctx
+	 * @param s the AGV
+	 * @param r the charge station
+	 * @param t RESERVE_CHARGE or RELEASE_CHARGE
+	 * @param from position of the AGV
+	 * @param arrival
+	 * @param departure
+	 * @param reach
+	 */
+	ChargeReservationMessage(SimulationContext ctx, CommUser s, CommUser r,
+			ProtocolMessage.MessageType t, Point from, long arrival,
+			long departure, double reach)
+	{
+		super(ctx, s, r, t, null, from, null);
+		arrivalTime = arrival;
+		departureTime = departure;
+		range = reach;
+	}
+
+	/**
+	 * @param ctx
+	 * @param s the charge station
+	 * @param t CHARGE_CONFIRMED or CHARGE_REFUSED
+	 * @param request
+	 * @param booked
+	 */
+	ChargeReservationMessage(SimulationContext ctx, CommUser s,
+			ProtocolMessage.MessageType t, ChargeReservationMessage request,
+			ChargeStation booked)
+	{
+		super(ctx, s, t, request, true);
+		arrivalTime = request.arrivalTime;
+		departureTime = request.departureTime;
+		range = request.range;
+		station = booked;
+	}
+
+	public long getArrivalTime() {
+		return arrivalTime;
+	}
+
+	public long getDepartureTime() {
+		return departureTime;
+	}
+
+	public double getRange() {
+		return range;
+	}
+
+	/**
+	 * @return the station booked, or null
+	 */
+	public ChargeStation getStation() {
+		return station;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ChargeReservationMessage [type=");
+		builder.append(type);
+		builder.append(", arrivalTime=");
+		builder.append(arrivalTime);
+		builder.append(", departureTime=");
+		builder.append(departureTime);
+		builder.append(", station=");
+		builder.append(station != null ? station.getID() : null);
+		builder.append("]");
+		return builder.toString();
+	}
+}
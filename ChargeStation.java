@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -7,6 +8,7 @@ import org.apache.commons.math3.random.RandomGenerator;
 import com.github.rinde.rinsim.core.model.comm.CommDevice;
 import com.github.rinde.rinsim.core.model.comm.CommDeviceBuilder;
 import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.comm.Message;
 import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
 import com.github.rinde.rinsim.core.model.road.MovingRoadUser;
 import com.github.rinde.rinsim.core.model.road.RoadModel;
@@ -15,31 +17,70 @@ import com.github.rinde.rinsim.core.model.time.TimeLapse;
 import com.github.rinde.rinsim.geom.Point;
 import com.google.common.base.Optional;
 
+/**
+ * a charging bay for one AGV
+ * 
+ * with charge reservation, AGVs book a slot before heading for a station,
+ * giving their estimated arrival and departure. The station confirms if 
+ * the slot, widened by SLOT_MARGIN on both sides, does not overlap another
+ * booking or an AGV charging without one. Otherwise it books the nearest 
+ * station within reach of the AGV which is free for the slot, shifted by 
+ * the time to get there, and refuses, naming that station; the AGV then 
+ * has a confirmed station after a single exchange. Bookings are released 
+ * by the AGV, and expire once their departure has passed with the AGV 
+ * gone.
+ */
 public class ChargeStation implements TickListener, CommUser, MovingRoadUser {
 
-	// save all agents
-	private static ArrayList<ChargeStation> allChargeStations = new ArrayList<ChargeStation>();
+	/**
+	 * slack around a booked slot for errors in the estimates, in seconds
+	 */
+	static final long SLOT_MARGIN = 30L;
 	
+	/**
+	 * a booked charging slot
+	 */
+	static class Reservation
+	{
+		final AGV agv;
+		final long arrival;
+		long departure;
+		
+		Reservation(AGV a, long arr, long dep)
+		{
+			agv = a;
+			arrival = arr;
+			departure = dep;
+		}
+	}
+
+	private final SimulationContext context;
 	private final RandomGenerator rng;
 	private Optional<Point> location;
 	private Optional<CollisionGraphRoadModel> roadModel;
 	private Optional<CommDevice> device;
-	private final double range = 12.0;
+	private final double range;
 
 	private int chargeStationId;
 	private Point extent;
 	
 	private boolean occupied;
 	
-	ChargeStation(RandomGenerator r, Point loc, Point limit) {
+	private final ArrayList<Reservation> reservations = new ArrayList<Reservation>();
+	private long timeIndex = 0;
+	
+	private int confirmedCount = 0;
+	private int refusedCount = 0;
+	
+	ChargeStation(SimulationContext ctx, RandomGenerator r, Point loc, Point limit) {
+		context = ctx;
 		rng = r;
+		range = context.getConfig().getStationCommRange();
 		roadModel = Optional.absent();
 		device = Optional.absent();
 		location = Optional.of(loc);
 		extent = limit;
-		allChargeStations.add(this);
-		
-		chargeStationId = allChargeStations.size();
+		chargeStationId = context.addChargeStation(this);
 	}	
 
 
@@ -76,8 +117,220 @@ public class ChargeStation implements TickListener, CommUser, MovingRoadUser {
 
 	@Override
 	public void tick(TimeLapse timeLapse) {
+		timeIndex = context.getTimeIndex(timeLapse);
 		occupied = (roadModel.get().isOccupied(location.get()));
 		
+		if (context.getConfig().isChargeReservation())
+			processMessages();
+	}
+	
+	/**
+	 * answer bookings and releases; other messages, e.g. broadcast calls, 
+	 * are ignored
+	 */
+	private void processMessages()
+	{
+		expireReservations();
+		
+		for (Message m : device.get().getUnreadMessages())
+		{
+			ProtocolMessage contents = (ProtocolMessage) m.getContents();
+			switch (contents.getType())
+			{
+			case RESERVE_CHARGE:
+				receiveReservation((ChargeReservationMessage) contents);
+				break;
+				
+			case RELEASE_CHARGE:
+				release((AGV) contents.getSender());
+				break;
+				
+			default:
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * book the requested slot here, or at the nearest free station within 
+	 * reach of the AGV
+	 * 
+	 * @param request
+	 */
+	private void receiveReservation(ChargeReservationMessage request)
+	{
+		AGV a = (AGV) request.getSender();
+		
+		// a new booking replaces an earlier one
+		release(a);
+		
+		ChargeStation booked = null;
+		if (isFree(a, request.getArrivalTime(), request.getDepartureTime()))
+		{
+			book(a, request.getArrivalTime(), request.getDepartureTime());
+			booked = this;
+			confirmedCount++;
+		}
+		else
+		{
+			booked = bookAlternative(a, request);
+			refusedCount++;
+		}
+		
+		ChargeReservationMessage reply = new ChargeReservationMessage(context, 
+			this, (booked == this ? ProtocolMessage.MessageType.CHARGE_CONFIRMED 
+				: ProtocolMessage.MessageType.CHARGE_REFUSED), request, booked);
+		device.get().send(reply, a);
+		context.log("[ChargeStation] " + chargeStationId + ": " + reply 
+			+ " for AGV " + a.getId());
+	}
+	
+	/**
+	 * book the nearest other station within reach which is free for the 
+	 * requested slot, shifted by the time to get there
+	 * 
+	 * @param a
+	 * @param request
+	 * @return the station booked, or null
+	 */
+	private ChargeStation bookAlternative(AGV a, ChargeReservationMessage request)
+	{
+		ChargeStation c = null;
+		double dist, minDist = request.getRange();
+		long stay = request.getDepartureTime() - request.getArrivalTime();
+		
+		for (ChargeStation cs : context.getChargeStations())
+		{
+			if (cs == this)
+				continue;
+			Queue<Point> path = new LinkedList<>(roadModel.get()
+					.getShortestPathTo(request.getOrigin(), cs.getPosition().get()));
+			dist = AGV.pathLength(path);
+			long arrival = timeIndex + (long) Math.ceil(dist / a.getSpeed());
+			if (dist < minDist && cs.isFree(a, arrival, arrival + stay))
+			{
+				minDist = dist;
+				c = cs;
+			}
+		}
+		
+		if (c != null)
+		{
+			long arrival = timeIndex + (long) Math.ceil(minDist / a.getSpeed());
+			c.book(a, arrival, arrival + stay);
+		}
+		return c;
+	}
+	
+	/**
+	 * @param a
+	 * @param arrival
+	 * @param departure
+	 * @return whether the slot is free for a, with SLOT_MARGIN to spare
+	 */
+	boolean isFree(AGV a, long arrival, long departure)
+	{
+		for (Reservation r : reservations)
+		{
+			if (r.agv != a && r.arrival - SLOT_MARGIN < departure 
+			 && arrival < r.departure + SLOT_MARGIN)
+				return false;
+		}
+		
+		// an AGV charging without a booking, e.g. one moved here with a dead
+		// battery, stays until full
+		AGV occupant = getOccupant();
+		if (occupant != null && occupant != a && !isBooked(occupant)
+		 && occupant.getHeading() == AGV.AGVHeading.CHARGING)
+		{
+			SimulationConfig cfg = context.getConfig();
+			long full = timeIndex + (long) Math.ceil((cfg.getChargeCapacity() 
+				- occupant.getChargeLevel()) / cfg.getRechargeRate());
+			if (arrival < full + SLOT_MARGIN)
+				return false;
+		}
+		return true;
+	}
+	
+	void book(AGV a, long arrival, long departure)
+	{
+		reservations.add(new Reservation(a, arrival, departure));
+	}
+	
+	/**
+	 * @param a
+	 */
+	void release(AGV a)
+	{
+		for (Iterator<Reservation> it = reservations.iterator(); it.hasNext();)
+		{
+			if (it.next().agv == a)
+				it.remove();
+		}
+	}
+	
+	/**
+	 * drop bookings whose departure has passed, unless the AGV is still 
+	 * charging here; the booking of an AGV still here is extended
+	 */
+	private void expireReservations()
+	{
+		for (Iterator<Reservation> it = reservations.iterator(); it.hasNext();)
+		{
+			Reservation r = it.next();
+			if (r.departure + SLOT_MARGIN >= timeIndex)
+				continue;
+			
+			if (roadModel.get().isOccupiedBy(location.get(), r.agv))
+				r.departure = timeIndex;
+			else
+				it.remove();
+		}
+	}
+	
+	/**
+	 * @param a
+	 * @return whether a holds a booking here
+	 */
+	boolean isBooked(AGV a)
+	{
+		for (Reservation r : reservations)
+		{
+			if (r.agv == a)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the AGV on the station, or null
+	 */
+	private AGV getOccupant()
+	{
+		if (!occupied)
+			return null;
+		
+		for (AGV a : context.getAGVs())
+		{
+			if (roadModel.get().isOccupiedBy(location.get(), a))
+				return a;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the number of bookings confirmed
+	 */
+	public int getConfirmedCount() {
+		return confirmedCount;
+	}
+	
+	/**
+	 * @return the number of bookings refused, with or without an 
+	 * alternative
+	 */
+	public int getRefusedCount() {
+		return refusedCount;
 	}
 	
 	public boolean isOccupied()
@@ -90,12 +343,13 @@ public class ChargeStation implements TickListener, CommUser, MovingRoadUser {
 		
 	}
 	
-	public static boolean isChargeStationLocation(Optional<Point> location)
+	public static boolean isChargeStationLocation(SimulationContext ctx, 
+			Optional<Point> location)
 	{
 		if (!location.isPresent())
 			return false;
 		
-		for (ChargeStation t : allChargeStations)
+		for (ChargeStation t : ctx.getChargeStations())
 		{
 			Point limit = new Point(t.location.get().x + t.extent.x, 
 					t.location.get().y + t.extent.y);
@@ -115,12 +369,13 @@ public class ChargeStation implements TickListener, CommUser, MovingRoadUser {
 	 * @param p
 	 * @return
 	 */
-	public static ChargeStation findNearestChargeStation(CommUser m)
+	public static ChargeStation findNearestChargeStation(SimulationContext ctx, 
+			CommUser m)
 	{
 		ChargeStation c = null;
 		double dist, minDist = Double.MAX_VALUE;
 		
-		for (ChargeStation cs : allChargeStations)
+		for (ChargeStation cs : ctx.getChargeStations())
 		{
 			if (cs.isOccupied())
 				continue;
@@ -138,6 +393,56 @@ public class ChargeStation implements TickListener, CommUser, MovingRoadUser {
 	}
 
 
+	/**
+	 * find the nearest charge station which is neither occupied nor the 
+	 * destination of another AGV
+	 * 
+	 * @param ctx
+	 * @param a
+	 * @param maxDistance
+	 * @return the station, or null if there is none within maxDistance
+	 */
+	public static ChargeStation findNearestFreeChargeStation(SimulationContext ctx, 
+			AGV a, double maxDistance)
+	{
+		ChargeStation c = null;
+		double dist, minDist = maxDistance;
+		
+		for (ChargeStation cs : ctx.getChargeStations())
+		{
+			if (cs.isOccupied() || isTargeted(ctx, cs, a))
+				continue;
+			Queue<Point> path = new LinkedList<>(cs.roadModel.get()
+					.getShortestPathTo(a.getPosition().get(), cs.getPosition().get()));
+			dist = AGV.pathLength(path);
+			if (dist <= minDist)
+			{
+				minDist = dist;
+				c = cs;
+			}
+		}
+		
+		return c;
+	}
+	
+	/**
+	 * @param ctx
+	 * @param cs
+	 * @param a
+	 * @return whether an AGV other than a is on its way to cs
+	 */
+	private static boolean isTargeted(SimulationContext ctx, ChargeStation cs, AGV a)
+	{
+		for (AGV other : ctx.getAGVs())
+		{
+			if (other != a && other.getHeading() == AGV.AGVHeading.TO_CHARGING
+			 && cs.location.get().equals(other.getDestination()))
+				return true;
+		}
+		return false;
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * staggers charging over the fleet, so a share of the AGVs is always
+ * available for contracts
+ *
+ * every AGV starts full and drains at a similar rate, so left alone the
+ * fleet reaches the critical charge level in waves. Every SCHEDULE_INTERVAL
+ * the scheduler projects when each AGV will reach the critical level, from
+ * a running estimate of its drain rate, and plans a charging window for
+ * it. At most a fixed number of AGVs may charge at once, so the rest of
+ * the fleet, minAvailableShare of it, stays available. Windows are placed
+ * as late as possible: AGVs are taken by projected deadline, latest first,
+ * and each window is put in the lane left free longest, ending before the
+ * window placed after it. An AGV whose window has begun is sent to charge
+ * once it is idle and a lane is free; the critical charge level still
+ * applies as a backstop.
+ *
+ * windows are as long as a full charge from the critical level, which
+ * overestimates the charging time of AGVs sent early
+ *
+ * must be registered after all agents
+ */
+public class ChargingScheduler implements TickListener {
+
+	/**
+	 * time between plans, in seconds
+	 */
+	static final long SCHEDULE_INTERVAL = 60L;
+
+	/**
+	 * how far ahead availability is projected, in seconds
+	 */
+	static final long PROJECTION_HORIZON = 3600L;
+
+	/**
+	 * weight of a new sample in the drain rate estimate
+	 */
+	static final double DRAIN_SMOOTHING = 0.1;
+
+	private final SimulationContext context;
+
+	/**
+	 * estimated drain per second, and charge at the last plan, by AGV id
+	 */
+	private final Map<Integer, Double> drainRates = new HashMap<Integer, Double>();
+	private final Map<Integer, Double> lastCharge = new HashMap<Integer, Double>();
+
+	/**
+	 * planned start of charging, by AGV id, in seconds
+	 */
+	private final Map<Integer, Double> windows = new HashMap<Integer, Double>();
+
+	private long lastPlan = -1;
+	private int lanes = 1;
+
+	private volatile double availability = 1d;
+	private volatile double projectedAvailability = 1d;
+	private double availableTime = 0;
+	private long observedTime = 0;
+	private int earlyCharges = 0;
+
+	ChargingScheduler(SimulationContext ctx)
+	{
+		context = ctx;
+		context.setChargingScheduler(this);
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse) {}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse)
+	{
+		long t = context.getTimeIndex(timeLapse);
+		if (lastPlan >= 0 && t - lastPlan < SCHEDULE_INTERVAL)
+			return;
+
+		List<AGV> agvs = context.getAGVs();
+		if (agvs.isEmpty())
+			return;
+
+		int available = 0;
+		for (AGV a : agvs)
+		{
+			if (isAvailable(a))
+				available++;
+		}
+		availability = (double) available / agvs.size();
+		if (lastPlan >= 0)
+		{
+			availableTime += availability * (t - lastPlan);
+			observedTime += t - lastPlan;
+		}
+
+		updateDrainRates(agvs, t);
+		plan(agvs, t);
+		dispatch(agvs, t);
+		projectedAvailability = project(agvs, t);
+		lastPlan = t;
+	}
+
+	/**
+	 * @param a
+	 * @return whether a can take on contracts
+	 */
+	static boolean isAvailable(AGV a)
+	{
+		AGV.AGVHeading h = a.getHeading();
+		return h != AGV.AGVHeading.TO_CHARGING && h != AGV.AGVHeading.CHARGING
+			&& h != AGV.AGVHeading.BATTERY_DEAD;
+	}
+
+	/**
+	 * @param agvs
+	 * @param t
+	 */
+	private void updateDrainRates(List<AGV> agvs, long t)
+	{
+		SimulationConfig cfg = context.getConfig();
+
+		// until observed, assume the AGV drives half of the time loaded
+		double prior = (cfg.getChargePerMetreEmpty() + cfg.getChargePerMetreLoaded())
+			/ 2 * agvs.get(0).getSpeed();
+
+		for (AGV a : agvs)
+		{
+			Double last = lastCharge.get(a.getId());
+			Double rate = drainRates.get(a.getId());
+			if (rate == null)
+				rate = prior;
+
+			// charge only drops while not charging
+			if (last != null && t > lastPlan && last >= a.getChargeLevel()
+			 && isAvailable(a))
+			{
+				double sample = (last - a.getChargeLevel()) / (t - lastPlan);
+				rate = (1 - DRAIN_SMOOTHING) * rate + DRAIN_SMOOTHING * sample;
+			}
+			drainRates.put(a.getId(), rate);
+			lastCharge.put(a.getId(), a.getChargeLevel());
+		}
+	}
+
+	/**
+	 * @return time to charge from the critical level to full, in seconds
+	 */
+	private double getWindowLength()
+	{
+		SimulationConfig cfg = context.getConfig();
+		return (cfg.getChargeCapacity() - cfg.getCriticalChargeLevel())
+			/ cfg.getRechargeRate();
+	}
+
+	/**
+	 * @param a
+	 * @param t
+	 * @return projected time at which a reaches the critical charge level
+	 */
+	private double getDeadline(AGV a, long t)
+	{
+		double rate = drainRates.get(a.getId());
+		double spare = a.getChargeLevel() - context.getConfig().getCriticalChargeLevel();
+		return t + (rate > 0 ? Math.max(0, spare) / rate : Double.MAX_VALUE / 4);
+	}
+
+	/**
+	 * place a charging window for every available AGV, latest deadline
+	 * first, as late as possible in the lane left free longest
+	 *
+	 * @param agvs
+	 * @param t
+	 */
+	private void plan(List<AGV> agvs, final long t)
+	{
+		int n = agvs.size();
+		lanes = Math.max(1, n - (int) Math.ceil(n * context.getConfig().getMinAvailableShare()));
+
+		List<AGV> pending = new ArrayList<AGV>();
+		final Map<Integer, Double> deadlines = new HashMap<Integer, Double>();
+		for (AGV a : agvs)
+		{
+			if (!isAvailable(a))
+				continue;
+			pending.add(a);
+			deadlines.put(a.getId(), getDeadline(a, t));
+		}
+		Collections.sort(pending, new Comparator<AGV>() {
+			@Override
+			public int compare(AGV a, AGV b) {
+				return Double.compare(deadlines.get(b.getId()), deadlines.get(a.getId()));
+			}
+		});
+
+		double length = getWindowLength();
+		double[] laneStart = new double[lanes];
+		Arrays.fill(laneStart, Double.POSITIVE_INFINITY);
+
+		windows.clear();
+		for (AGV a : pending)
+		{
+			int best = 0;
+			for (int i = 1; i < lanes; i++)
+			{
+				if (laneStart[i] > laneStart[best])
+					best = i;
+			}
+
+			double start = Math.min(deadlines.get(a.getId()), laneStart[best] - length);
+			laneStart[best] = start;
+			windows.put(a.getId(), start);
+		}
+	}
+
+	/**
+	 * send idle AGVs whose window has begun to charge, earliest window
+	 * first, while lanes are free
+	 *
+	 * @param agvs
+	 * @param t
+	 */
+	private void dispatch(List<AGV> agvs, long t)
+	{
+		int charging = 0;
+		List<AGV> due = new ArrayList<AGV>();
+		for (AGV a : agvs)
+		{
+			if (!isAvailable(a))
+				charging++;
+			else if (windows.get(a.getId()) <= t)
+				due.add(a);
+		}
+
+		Collections.sort(due, new Comparator<AGV>() {
+			@Override
+			public int compare(AGV a, AGV b) {
+				return Double.compare(windows.get(a.getId()), windows.get(b.getId()));
+			}
+		});
+
+		for (AGV a : due)
+		{
+			if (charging >= lanes)
+				break;
+			if (a.chargeNow())
+			{
+				charging++;
+				earlyCharges++;
+			}
+		}
+	}
+
+	/**
+	 * @param agvs
+	 * @param t
+	 * @return the smallest share of the fleet available over the projection
+	 * horizon, if the windows are kept
+	 */
+	private double project(List<AGV> agvs, long t)
+	{
+		SimulationConfig cfg = context.getConfig();
+		double length = getWindowLength();
+
+		int steps = (int) (PROJECTION_HORIZON / SCHEDULE_INTERVAL);
+		int[] busy = new int[steps + 1];
+		for (AGV a : agvs)
+		{
+			double from, to;
+			if (!isAvailable(a))
+			{
+				// charging, or on the way; until full
+				from = t;
+				to = t + (cfg.getChargeCapacity() - a.getChargeLevel()) / cfg.getRechargeRate();
+			}
+			else
+			{
+				from = Math.max(t, windows.get(a.getId()));
+				to = from + length;
+			}
+
+			for (int i = 0; i <= steps; i++)
+			{
+				long s = t + i * SCHEDULE_INTERVAL;
+				if (s >= from && s < to)
+					busy[i]++;
+			}
+		}
+
+		int maxBusy = 0;
+		for (int b : busy)
+			maxBusy = Math.max(maxBusy, b);
+		return (double) (agvs.size() - maxBusy) / agvs.size();
+	}
+
+	/**
+	 * @return the share of the fleet available at the last plan
+	 */
+	public double getAvailability() {
+		return availability;
+	}
+
+	/**
+	 * @return the smallest share of the fleet projected to be available
+	 * within the next PROJECTION_HORIZON, as of the last plan
+	 */
+	public double getProjectedAvailability() {
+		return projectedAvailability;
+	}
+
+	/**
+	 * @return the share of the fleet available, averaged over time
+	 */
+	public double getMeanAvailability() {
+		return (observedTime > 0 ? availableTime / observedTime : availability);
+	}
+
+	/**
+	 * @return the number of AGVs sent to charge by the scheduler
+	 */
+	public int getEarlyChargeCount() {
+		return earlyCharges;
+	}
+}
@@ -16,4 +16,22 @@ public final class ContractNet {
 		WAITING_TO_ABORT
 	}
 
+	/**
+	 * a switch must save more than both the absolute and the relative 
+	 * margin, so that small gains do not cause a round of abort and 
+	 * retract messages
+	 * 
+	 * @param cfg
+	 * @param current cost of the current assignment
+	 * @param candidate cost of the alternative
+	 * @return whether switching to the alternative is worthwhile
+	 */
+	static boolean isWorthSwitching(SimulationConfig cfg, double current, 
+			double candidate)
+	{
+		double margin = Math.max(cfg.getSwitchAbsoluteGain(), 
+			cfg.getSwitchRelativeGain() * current);
+		return candidate < current - margin;
+	}
+
 }
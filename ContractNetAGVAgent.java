@@ -14,6 +14,11 @@ public class ContractNetAGVAgent {
 	private HashMap<String, Proposal> offers = new HashMap<String, Proposal>();
 	private Proposal currentContract = null;
 	private Proposal switchedContract = null;
+	
+	/**
+	 * number of proposals created so far, for proposal ids
+	 */
+	private int proposalCounter = 0;
 	ContractNetUser parent = null;
 	ContractNet.AGVState deliveryState = ContractNet.AGVState.VOTING;
 	
@@ -170,7 +175,9 @@ public class ContractNetAGVAgent {
 		}
 		else // create new proposal
 		{
-			p = new Proposal(parent.getCommUser(), cfp, parent.getId(), cost);
+			proposalCounter++;
+			p = new Proposal(parent.getContext(), parent.getCommUser(), cfp, 
+				parent.getId(), cost, parent.getId() + "-" + proposalCounter);
 			offers.put(cfp.getContractId(), p);
 
 			StringBuilder b = new StringBuilder();
@@ -188,7 +195,7 @@ public class ContractNetAGVAgent {
 	
 	void sendRetracted(ProtocolMessage cfp, boolean isResponse)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.RETRACTED, cfp, isResponse);
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.RETRACTED, cfp, isResponse);
 		parent.getDevice().get().send(p, p.getReceiver());
 		
 		// reset contract if needed
@@ -217,7 +224,7 @@ public class ContractNetAGVAgent {
 	 */
 	void sendBound(ProtocolMessage cfp)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.BOUND, cfp, false);
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.BOUND, cfp, false);
 		parent.getDevice().get().send(p, p.getReceiver());
 		
 		deliveryState = ContractNet.AGVState.EXECUTING;
@@ -241,7 +248,7 @@ public class ContractNetAGVAgent {
 	 */
 	void sendAcceptAbort(ProtocolMessage abort)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.ACCEPT_ABORT, abort, true);
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.ACCEPT_ABORT, abort, true);
 		parent.getDevice().get().send(p, abort.getSender());
 
 		StringBuilder b = new StringBuilder();
@@ -258,7 +265,7 @@ public class ContractNetAGVAgent {
 	
 	void sendRefuseAbort(ProtocolMessage abort)
 	{
-		ProtocolMessage p = new ProtocolMessage(parent.getCommUser(), ProtocolMessage.MessageType.REFUSE_ABORT, abort, true);
+		ProtocolMessage p = new ProtocolMessage(parent.getContext(), parent.getCommUser(), ProtocolMessage.MessageType.REFUSE_ABORT, abort, true);
 		parent.getDevice().get().send(p, abort.getSender());
 		
 		StringBuilder b = new StringBuilder();
@@ -11,4 +11,5 @@ public interface ContractNetUser {
 	public Optional<CommDevice> getDevice();
 	public Optional<Point> getPosition();
 	public CommUser getCommUser();
+	public SimulationContext getContext();
 }
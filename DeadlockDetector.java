@@ -0,0 +1,273 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * finds deadlocks over the whole fleet, and breaks each by letting one AGV
+ * step aside
+ *
+ * every tick a wait-for graph is built: an AGV on a node that has not moved
+ * for STALL_TICKS ticks waits for the AGV holding the next node of its path,
+ * either standing on it or on the way in. Each AGV waits for at most one
+ * other, so every cycle is found by following the waits from each AGV,
+ * in time linear in the fleet. For each cycle the AGV that can step aside
+ * to a free neighbouring node most cheaply, by {@link AGV#getYieldCost},
+ * does so; the others keep their routes and move on once it has gone.
+ * A cycle in which no AGV has a free neighbour is left to the rerouting of
+ * the AGVs themselves, and tried again every tick while it lasts; it is
+ * counted once, when first found.
+ *
+ * must be registered after all agents
+ */
+public class DeadlockDetector implements TickListener, RoadUser {
+
+	/**
+	 * ticks without moving before an AGV counts as waiting
+	 */
+	static final int STALL_TICKS = 2;
+
+	private final SimulationContext context;
+
+	private Optional<CollisionGraphRoadModel> roadModel = Optional.absent();
+
+	/**
+	 * position at the last tick, and ticks since it changed, by AGV id
+	 */
+	private final Map<Integer, Point> lastPosition = new HashMap<Integer, Point>();
+	private final Map<Integer, Integer> stalled = new HashMap<Integer, Integer>();
+
+	/**
+	 * the cycles found at the last tick, as sets of AGV ids
+	 */
+	private Set<Set<Integer>> lastCycles = new HashSet<Set<Integer>>();
+
+	private int deadlocks = 0;
+	private int unresolved = 0;
+
+	DeadlockDetector(SimulationContext ctx)
+	{
+		context = ctx;
+		context.setDeadlockDetector(this);
+	}
+
+	@Override
+	public void initRoadUser(RoadModel model)
+	{
+		roadModel = Optional.of((CollisionGraphRoadModel) model);
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse) {}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse)
+	{
+		if (!roadModel.isPresent())
+			return;
+
+		List<AGV> agvs = context.getAGVs();
+		updateStalls(agvs);
+
+		Map<AGV, AGV> waitsFor = buildWaitForGraph(agvs);
+		Set<Set<Integer>> cycles = new HashSet<Set<Integer>>();
+		for (List<AGV> cycle : findCycles(agvs, waitsFor))
+		{
+			Set<Integer> ids = new HashSet<Integer>();
+			for (AGV a : cycle)
+				ids.add(a.getId());
+			cycles.add(ids);
+
+			// still there from the last tick: try again, without counting
+			if (lastCycles.contains(ids))
+			{
+				resolve(cycle);
+				continue;
+			}
+
+			deadlocks++;
+			if (!resolve(cycle))
+				unresolved++;
+		}
+		lastCycles = cycles;
+	}
+
+	/**
+	 * @param agvs
+	 */
+	private void updateStalls(List<AGV> agvs)
+	{
+		for (AGV a : agvs)
+		{
+			Point p = roadModel.get().getPosition(a);
+			Integer n = stalled.get(a.getId());
+			if (p.equals(lastPosition.get(a.getId())))
+				stalled.put(a.getId(), (n != null ? n + 1 : 1));
+			else
+				stalled.put(a.getId(), 0);
+			lastPosition.put(a.getId(), p);
+		}
+	}
+
+	/**
+	 * @param agvs
+	 * @return the AGV each waiting AGV waits for
+	 */
+	private Map<AGV, AGV> buildWaitForGraph(List<AGV> agvs)
+	{
+		CollisionGraphRoadModel rm = roadModel.get();
+
+		// who holds each node: the AGV on it, else one on the way in
+		Map<Point, AGV> holders = new HashMap<Point, AGV>();
+		for (AGV a : agvs)
+		{
+			if (!rm.getConnection(a).isPresent())
+				holders.put(rm.getPosition(a), a);
+		}
+		for (AGV a : agvs)
+		{
+			Optional<? extends Connection<?>> conn = rm.getConnection(a);
+			if (conn.isPresent() && !holders.containsKey(conn.get().to()))
+				holders.put(conn.get().to(), a);
+		}
+
+		Map<AGV, AGV> retVal = new HashMap<AGV, AGV>();
+		for (AGV a : agvs)
+		{
+			if (stalled.get(a.getId()) < STALL_TICKS || rm.getConnection(a).isPresent())
+				continue;
+
+			Point next = a.getNextNode();
+			if (next == null || !rm.isOccupied(next) || rm.isOccupiedBy(next, a))
+				continue;
+
+			AGV holder = holders.get(next);
+			if (holder != null && holder != a)
+				retVal.put(a, holder);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param agvs
+	 * @param waitsFor
+	 * @return the cycles of the wait-for graph
+	 */
+	static List<List<AGV>> findCycles(List<AGV> agvs, Map<AGV, AGV> waitsFor)
+	{
+		List<List<AGV>> retVal = new ArrayList<List<AGV>>();
+
+		// the walk each AGV was first reached in; walks stop at AGVs reached
+		// before, so every AGV is visited once
+		Map<AGV, Integer> walkOf = new HashMap<AGV, Integer>();
+		int walk = 0;
+		for (AGV start : agvs)
+		{
+			walk++;
+			AGV a = start;
+			while (a != null && !walkOf.containsKey(a))
+			{
+				walkOf.put(a, walk);
+				a = waitsFor.get(a);
+			}
+
+			// back at an AGV of this walk: a new cycle
+			if (a != null && walkOf.get(a) == walk)
+			{
+				List<AGV> cycle = new ArrayList<AGV>();
+				AGV b = a;
+				do
+				{
+					cycle.add(b);
+					b = waitsFor.get(b);
+				}
+				while (b != a);
+				retVal.add(cycle);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * let the AGV of the cycle which steps aside most cheaply do so
+	 *
+	 * @param cycle
+	 * @return whether an AGV could step aside
+	 */
+	private boolean resolve(List<AGV> cycle)
+	{
+		CollisionGraphRoadModel rm = roadModel.get();
+
+		AGV best = null;
+		Point bestSide = null;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (AGV a : cycle)
+		{
+			if (a.getHeading() == AGV.AGVHeading.CHARGING
+			 || a.getHeading() == AGV.AGVHeading.BATTERY_DEAD)
+				continue;
+
+			Point here = rm.getPosition(a);
+			Point next = a.getNextNode();
+			for (Point side : rm.getGraph().getOutgoingConnections(here))
+			{
+				if (side.equals(next) || rm.isOccupied(side))
+					continue;
+
+				double cost = a.getYieldCost(side);
+				if (cost < bestCost)
+				{
+					best = a;
+					bestSide = side;
+					bestCost = cost;
+				}
+			}
+		}
+
+		if (best == null)
+			return false;
+
+		best.yieldTo(bestSide);
+		stalled.put(best.getId(), 0);
+
+		StringBuilder b = new StringBuilder();
+		b.append("[Deadlock] { AGVs: ");
+		for (AGV a : cycle)
+		{
+			b.append(a.getId());
+			b.append(" ");
+		}
+		b.append(", yields: ");
+		b.append(best.getId());
+		b.append(" }");
+		context.log(b.toString());
+		return true;
+	}
+
+	/**
+	 * @return the number of deadlocks found, each counted once however long
+	 * it lasts
+	 */
+	public int getDeadlockCount() {
+		return deadlocks;
+	}
+
+	/**
+	 * @return the number of deadlocks in which no AGV could step aside when
+	 * first found
+	 */
+	public int getUnresolvedCount() {
+		return unresolved;
+	}
+}
@@ -0,0 +1,394 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * columnar binary export of delivery records
+ *
+ * records are written in blocks of BLOCK_ROWS rows. Within a block every
+ * field is stored as one column of primitives, so a reader scanning a few
+ * fields touches only those columns. A block is collected in arrays and
+ * copied into a memory-mapped region of the file once full; the last,
+ * partial block is written on close, together with the row count.
+ *
+ * file layout, big endian:
+ * <pre>
+ * header: int MAGIC, int BLOCK_ROWS, long rows
+ * block:  long cfpTime[], long boundTime[], long deliveryTime[],
+ *         long failedTime[], int stationId[], int contractNo[], int agvId[],
+ *         double cost[], byte status[]
+ * </pre>
+ * every block has the full size, so block i starts at
+ * HEADER_SIZE + i * BLOCK_SIZE. Times are in seconds, -1 if not reached;
+ * agvId is -1 and cost NaN for a delivery without proposal.
+ */
+public class DeliveryExport implements Closeable {
+
+	static final int MAGIC = 0x44524543;
+	static final int HEADER_SIZE = 16;
+	static final int BLOCK_ROWS = 4096;
+
+	// column offsets within a block
+	static final int CFP_TIME = 0;
+	static final int BOUND_TIME = CFP_TIME + 8 * BLOCK_ROWS;
+	static final int DELIVERY_TIME = BOUND_TIME + 8 * BLOCK_ROWS;
+	static final int FAILED_TIME = DELIVERY_TIME + 8 * BLOCK_ROWS;
+	static final int STATION_ID = FAILED_TIME + 8 * BLOCK_ROWS;
+	static final int CONTRACT_NO = STATION_ID + 4 * BLOCK_ROWS;
+	static final int AGV_ID = CONTRACT_NO + 4 * BLOCK_ROWS;
+	static final int COST = AGV_ID + 4 * BLOCK_ROWS;
+	static final int STATUS = COST + 8 * BLOCK_ROWS;
+	static final int BLOCK_SIZE = STATUS + BLOCK_ROWS;
+
+	public static final byte STATUS_OPEN = 0;
+	public static final byte STATUS_COMPLETED = 1;
+	public static final byte STATUS_FAILED = 2;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private final long[] cfpTime = new long[BLOCK_ROWS];
+	private final long[] boundTime = new long[BLOCK_ROWS];
+	private final long[] deliveryTime = new long[BLOCK_ROWS];
+	private final long[] failedTime = new long[BLOCK_ROWS];
+	private final int[] stationId = new int[BLOCK_ROWS];
+	private final int[] contractNo = new int[BLOCK_ROWS];
+	private final int[] agvId = new int[BLOCK_ROWS];
+	private final double[] cost = new double[BLOCK_ROWS];
+	private final byte[] status = new byte[BLOCK_ROWS];
+
+	/**
+	 * rows in the current block
+	 */
+	private int fill = 0;
+
+	/**
+	 * blocks written to the file
+	 */
+	private long blocks = 0;
+
+	/**
+	 * the written block last read by getRow
+	 */
+	private Block lastBlock = null;
+	private long lastBlockIndex = -1;
+
+	/**
+	 * @param f the file to write; an existing file is overwritten
+	 * @throws IOException
+	 */
+	public DeliveryExport(File f) throws IOException
+	{
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+	}
+
+	/**
+	 * @param id contract id of the form &lt;station&gt;-&lt;number&gt;
+	 * @return the two parts of the id, or -1 for parts which are not numbers
+	 */
+	static int[] parseContractId(String id)
+	{
+		int[] retVal = { -1, -1 };
+		int sep = id.lastIndexOf('-');
+		try
+		{
+			retVal[0] = Integer.parseInt(id.substring(0, sep));
+			retVal[1] = Integer.parseInt(id.substring(sep + 1));
+		}
+		catch (RuntimeException e)
+		{
+			// not a station id, keep -1
+		}
+		return retVal;
+	}
+
+	/**
+	 * append a record
+	 *
+	 * @param d
+	 * @return the row the record was written to
+	 * @throws IOException
+	 */
+	public synchronized long write(DeliveryRecorder.DeliveryRecord d) throws IOException
+	{
+		long row = getRowCount();
+		int[] id = parseContractId(d.request.getContractId());
+
+		cfpTime[fill] = d.CFPTime;
+		boundTime[fill] = d.boundTime;
+		deliveryTime[fill] = d.deliveryTime;
+		failedTime[fill] = d.failedTime;
+		stationId[fill] = id[0];
+		contractNo[fill] = id[1];
+		agvId[fill] = (d.proposal != null ? d.proposal.getAVGId() : -1);
+		cost[fill] = (d.proposal != null ? d.proposal.getCost() : Double.NaN);
+		status[fill] = (d.failed ? STATUS_FAILED
+				: (d.deliveryTime >= 0 ? STATUS_COMPLETED : STATUS_OPEN));
+		fill++;
+
+		if (fill == BLOCK_ROWS)
+			writeBlock();
+		return row;
+	}
+
+	/**
+	 * read back the times and status of a row written earlier
+	 *
+	 * @param row
+	 * @return CFP, bound, delivery and failed time, and the status
+	 * @throws IOException
+	 */
+	public synchronized long[] getRow(long row) throws IOException
+	{
+		int block = (int) (row / BLOCK_ROWS);
+		int i = (int) (row % BLOCK_ROWS);
+
+		if (block == blocks)
+		{
+			// still in the arrays
+			return new long[] { cfpTime[i], boundTime[i], deliveryTime[i],
+					failedTime[i], status[i] };
+		}
+
+		if (block != lastBlockIndex)
+		{
+			lastBlock = new Block(channel.map(FileChannel.MapMode.READ_ONLY,
+					HEADER_SIZE + (long) block * BLOCK_SIZE, BLOCK_SIZE), BLOCK_ROWS);
+			lastBlockIndex = block;
+		}
+		return new long[] { lastBlock.getCFPTime(i), lastBlock.getBoundTime(i),
+				lastBlock.getDeliveryTime(i), lastBlock.getFailedTime(i),
+				lastBlock.getStatus(i) };
+	}
+
+	/**
+	 * copy the current block into the file
+	 *
+	 * @throws IOException
+	 */
+	private void writeBlock() throws IOException
+	{
+		MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE,
+				HEADER_SIZE + blocks * BLOCK_SIZE, BLOCK_SIZE);
+		b.order(ByteOrder.BIG_ENDIAN);
+
+		b.position(CFP_TIME);
+		b.asLongBuffer().put(cfpTime, 0, fill);
+		b.position(BOUND_TIME);
+		b.asLongBuffer().put(boundTime, 0, fill);
+		b.position(DELIVERY_TIME);
+		b.asLongBuffer().put(deliveryTime, 0, fill);
+		b.position(FAILED_TIME);
+		b.asLongBuffer().put(failedTime, 0, fill);
+		b.position(STATION_ID);
+		b.asIntBuffer().put(stationId, 0, fill);
+		b.position(CONTRACT_NO);
+		b.asIntBuffer().put(contractNo, 0, fill);
+		b.position(AGV_ID);
+		b.asIntBuffer().put(agvId, 0, fill);
+		b.position(COST);
+		b.asDoubleBuffer().put(cost, 0, fill);
+		b.position(STATUS);
+		b.put(status, 0, fill);
+
+		blocks++;
+		fill = 0;
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public synchronized long getRowCount()
+	{
+		return (fill == 0 ? blocks * BLOCK_ROWS : blocks * BLOCK_ROWS + fill);
+	}
+
+	/**
+	 * write the last block and the header, and close the file
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		long rows = getRowCount();
+		if (fill > 0)
+			writeBlock();
+
+		MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		b.putInt(MAGIC);
+		b.putInt(BLOCK_ROWS);
+		b.putLong(rows);
+		b.force();
+
+		channel.close();
+		file.close();
+	}
+
+	/**
+	 * reads an export, one block at a time
+	 *
+	 * each block is mapped read-only, and fields are read straight from the
+	 * mapping, so only the columns used are paged in
+	 */
+	public static class Reader implements Closeable
+	{
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long rows;
+
+		/**
+		 * @param f
+		 * @throws IOException if the file is not a delivery export
+		 */
+		public Reader(File f) throws IOException
+		{
+			file = new RandomAccessFile(f, "r");
+			channel = file.getChannel();
+
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (b.getInt() != MAGIC || b.getInt() != BLOCK_ROWS)
+			{
+				close();
+				throw new IOException("not a delivery export: " + f);
+			}
+			rows = b.getLong();
+		}
+
+		/**
+		 * @return the number of records
+		 */
+		public long getRowCount() {
+			return rows;
+		}
+
+		/**
+		 * @return the number of blocks
+		 */
+		public int getBlockCount() {
+			return (int) ((rows + BLOCK_ROWS - 1) / BLOCK_ROWS);
+		}
+
+		/**
+		 * @param i
+		 * @return block i
+		 * @throws IOException
+		 */
+		public Block getBlock(int i) throws IOException
+		{
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY,
+					HEADER_SIZE + (long) i * BLOCK_SIZE, BLOCK_SIZE);
+			int size = (int) Math.min(BLOCK_ROWS, rows - (long) i * BLOCK_ROWS);
+			return new Block(b, size);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * the columns of one block
+	 */
+	public static class Block
+	{
+		private final MappedByteBuffer buffer;
+		private final int size;
+
+		Block(MappedByteBuffer b, int n)
+		{
+			buffer = b;
+			size = n;
+		}
+
+		/**
+		 * @return the number of rows in this block
+		 */
+		public int size() {
+			return size;
+		}
+
+		public long getCFPTime(int row) {
+			return buffer.getLong(CFP_TIME + 8 * row);
+		}
+
+		public long getBoundTime(int row) {
+			return buffer.getLong(BOUND_TIME + 8 * row);
+		}
+
+		public long getDeliveryTime(int row) {
+			return buffer.getLong(DELIVERY_TIME + 8 * row);
+		}
+
+		public long getFailedTime(int row) {
+			return buffer.getLong(FAILED_TIME + 8 * row);
+		}
+
+		public int getStationId(int row) {
+			return buffer.getInt(STATION_ID + 4 * row);
+		}
+
+		public int getContractNo(int row) {
+			return buffer.getInt(CONTRACT_NO + 4 * row);
+		}
+
+		public int getAGVId(int row) {
+			return buffer.getInt(AGV_ID + 4 * row);
+		}
+
+		public double getCost(int row) {
+			return buffer.getDouble(COST + 8 * row);
+		}
+
+		public byte getStatus(int row) {
+			return buffer.get(STATUS + row);
+		}
+	}
+
+	/**
+	 * print a summary of an export
+	 *
+	 * @param args - the export file
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Reader r = new Reader(new File(args[0]));
+		try
+		{
+			long completed = 0, failed = 0, total = 0;
+			for (int i = 0; i < r.getBlockCount(); i++)
+			{
+				Block b = r.getBlock(i);
+				for (int row = 0; row < b.size(); row++)
+				{
+					byte s = b.getStatus(row);
+					if (s == STATUS_FAILED)
+						failed++;
+					else if (s == STATUS_COMPLETED)
+					{
+						completed++;
+						total += b.getDeliveryTime(row) - b.getCFPTime(row);
+					}
+				}
+			}
+
+			System.out.println("records:            " + r.getRowCount());
+			System.out.println("completed:          " + completed);
+			System.out.println("failed:             " + failed);
+			System.out.println("mean delivery time: "
+					+ (completed == 0 ? -1d : (double) total / completed));
+		}
+		finally
+		{
+			r.close();
+		}
+	}
+}
@@ -1,4 +1,10 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DeliveryRecorder 
 {
@@ -29,15 +35,15 @@ public class DeliveryRecorder
 			builder.append(", proposal=");
 			builder.append(proposal != null ? proposal : "<none>");
 			builder.append(", CFPTime=");
-			builder.append(", failed=");
-			builder.append(failed);
-			builder.append(", failedTime=");
-			builder.append(failedTime);
 			builder.append(CFPTime);
 			builder.append(", boundTime=");
 			builder.append(boundTime);
 			builder.append(", deliveryTime=");
 			builder.append(deliveryTime);
+			builder.append(", failed=");
+			builder.append(failed);
+			builder.append(", failedTime=");
+			builder.append(failedTime);
 			builder.append("]");
 			return builder.toString();
 		}
@@ -91,18 +97,286 @@ public class DeliveryRecorder
 			return failedTime;
 		}
 	}	
-	private static HashMap<String, DeliveryRecord> allDeliveries = new HashMap<String, DeliveryRecord>();
+
+	/**
+	 * a drop-off or failure of a call recorded in another zone
+	 */
+	static class ForeignUpdate
+	{
+		final String contractId;
+		final long time;
+		final boolean failed;
+
+		ForeignUpdate(String id, long t, boolean f)
+		{
+			contractId = id;
+			time = t;
+			failed = f;
+		}
+	}
+
+	// stations may record deliveries concurrently when ticked in parallel
+	private ConcurrentHashMap<String, DeliveryRecord> allDeliveries = new ConcurrentHashMap<String, DeliveryRecord>();
+	
+	private final DeliveryStatistics statistics = new DeliveryStatistics();
+	
+	/**
+	 * drop-offs and failures of calls not recorded here, kept in a zoned run
+	 * for the zone which issued the call; null if not kept
+	 */
+	private ArrayList<ForeignUpdate> foreignUpdates = null;
+	
+	/**
+	 * maps contract ids to rows of the export
+	 *
+	 * ids of the form &lt;station&gt;-&lt;number&gt; are kept in one int array
+	 * per station, indexed by number, which costs 4 bytes per delivery;
+	 * other ids fall back to a hash map
+	 */
+	private static class RowIndex
+	{
+		private int[][] rows = new int[0][];
+		private final HashMap<String, Long> other = new HashMap<String, Long>();
+		
+		synchronized void put(String contractId, long row)
+		{
+			int[] id = DeliveryExport.parseContractId(contractId);
+			if (id[0] < 0 || id[1] < 0 || row >= Integer.MAX_VALUE)
+			{
+				other.put(contractId, row);
+				return;
+			}
+			
+			if (id[0] >= rows.length)
+				rows = Arrays.copyOf(rows, id[0] + 1);
+			if (rows[id[0]] == null)
+				rows[id[0]] = new int[64];
+			if (id[1] >= rows[id[0]].length)
+				rows[id[0]] = Arrays.copyOf(rows[id[0]], Math.max(id[1] + 1, 2 * rows[id[0]].length));
+			
+			// 0 marks an id not in the index
+			rows[id[0]][id[1]] = (int) row + 1;
+		}
+		
+		/**
+		 * @param contractId
+		 * @return the row, or -1 if the id is not in the index
+		 */
+		synchronized long get(String contractId)
+		{
+			Long r = other.get(contractId);
+			if (r != null)
+				return r;
+			
+			int[] id = DeliveryExport.parseContractId(contractId);
+			if (id[0] < 0 || id[0] >= rows.length || rows[id[0]] == null
+			 || id[1] < 0 || id[1] >= rows[id[0]].length)
+				return -1L;
+			
+			return rows[id[0]][id[1]] - 1L;
+		}
+	}
+	
+	/**
+	 * receives each record once it is completed or failed, if set
+	 */
+	private DeliveryExport export = null;
 	
+	/**
+	 * whether exported records are dropped from the heap
+	 */
+	private boolean evictExported = false;
 	
-	public static void addDelivery(CallForProposalMessage cfp, long t)
+	/**
+	 * rows of the records dropped from the heap
+	 */
+	private RowIndex exportedRows = new RowIndex();
+	
+	/**
+	 * @param e export to write finished records to
+	 */
+	public void setExport(DeliveryExport e)
+	{
+		setExport(e, false);
+	}
+	
+	/**
+	 * @param e export to write finished records to
+	 * @param evict whether to drop finished records from the heap once 
+	 * exported; their times are then read back from the export, so memory 
+	 * use depends on the deliveries in progress rather than the length of 
+	 * the run
+	 */
+	public void setExport(DeliveryExport e, boolean evict)
+	{
+		export = e;
+		evictExported = evict;
+	}
+	
+	/**
+	 * write the records still in progress to the export, and close it
+	 */
+	public void closeExport()
+	{
+		if (export == null)
+			return;
+		
+		try
+		{
+			for (DeliveryRecord d : allDeliveries.values())
+			{
+				if (!d.failed && d.deliveryTime < 0)
+					export.write(d);
+			}
+			export.close();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot write delivery export", e);
+		}
+		export = null;
+		evictExported = false;
+		exportedRows = new RowIndex();
+	}
+	
+	/**
+	 * @param d a record which has just been completed or failed
+	 */
+	private void exportRecord(DeliveryRecord d)
+	{
+		if (export == null)
+			return;
+		
+		try
+		{
+			long row = export.write(d);
+			if (evictExported)
+			{
+				String id = d.request.getContractId();
+				exportedRows.put(id, row);
+				allDeliveries.remove(id);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot write delivery export", e);
+		}
+	}
+	
+	/**
+	 * @param contractId
+	 * @return times and status of an evicted record, as returned by 
+	 * {@link DeliveryExport#getRow(long)}, or null if it was not evicted
+	 */
+	private long[] getExportedRow(String contractId)
+	{
+		if (!evictExported)
+			return null;
+		
+		long row = exportedRows.get(contractId);
+		if (row < 0)
+			return null;
+		
+		try
+		{
+			return export.getRow(row);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot read delivery export", e);
+		}
+	}
+	
+	/**
+	 * keep drop-offs and failures of calls not recorded here, until taken
+	 */
+	void keepForeignUpdates()
+	{
+		foreignUpdates = new ArrayList<ForeignUpdate>();
+	}
+	
+	/**
+	 * @param u
+	 */
+	private void keepForeignUpdate(ForeignUpdate u)
+	{
+		if (foreignUpdates != null && getExportedRow(u.contractId) == null)
+			foreignUpdates.add(u);
+	}
+	
+	/**
+	 * @return the drop-offs and failures of calls not recorded here since 
+	 * the last call
+	 */
+	List<ForeignUpdate> takeForeignUpdates()
+	{
+		List<ForeignUpdate> retVal = foreignUpdates;
+		foreignUpdates = new ArrayList<ForeignUpdate>();
+		return retVal;
+	}
+	
+	/**
+	 * record a drop-off or failure reported by another zone, if the call is
+	 * recorded here
+	 * 
+	 * @param u
+	 */
+	void applyForeignUpdate(ForeignUpdate u)
+	{
+		if (!allDeliveries.containsKey(u.contractId))
+			return;
+		
+		if (u.failed)
+			setDeliveryFailed(u.contractId, u.time);
+		else
+			setDeliveryDropoffTime(u.contractId, u.time);
+	}
+	
+	/**
+	 * @return KPIs aggregated while recording
+	 */
+	public DeliveryStatistics getStatistics()
+	{
+		return statistics;
+	}
+	
+	/**
+	 * @return all delivery records, or only those in progress when finished
+	 * records are evicted to the export
+	 */
+	public Collection<DeliveryRecord> getDeliveries()
+	{
+		return allDeliveries.values();
+	}
+	
+	/**
+	 * add a record restored from a snapshot
+	 * 
+	 * @param d
+	 */
+	void restoreDelivery(DeliveryRecord d)
+	{
+		allDeliveries.put(d.request.getContractId(), d);
+		
+		statistics.requested(d.CFPTime);
+		if (d.boundTime >= 0)
+			statistics.bound(d.CFPTime, d.boundTime);
+		if (d.deliveryTime >= 0)
+			statistics.delivered(d.CFPTime, d.boundTime, d.deliveryTime);
+		if (d.failed)
+			statistics.failed(d.failedTime);
+	}
+	
+	public void addDelivery(CallForProposalMessage cfp, long t)
 	{
 		if (cfp == null)
 			return;
 					
 		allDeliveries.put(cfp.getContractId(), new DeliveryRecord(cfp, t));
+		statistics.requested(t);
 	}
 	
-	public static void setProposal(String contractId, Proposal prop)
+	public void setProposal(String contractId, Proposal prop)
 	{
 		if (contractId == null)
 			return;
@@ -116,7 +390,12 @@ public class DeliveryRecorder
 		d.deliveryTime = -1;
 	}
 
-	public static Proposal getProposal(String contractId)
+	/**
+	 * @param contractId
+	 * @return the accepted proposal, or null; also null for records evicted 
+	 * to the export, which keeps only the AGV id and cost
+	 */
+	public Proposal getProposal(String contractId)
 	{
 		if (contractId == null)
 			return null;
@@ -128,7 +407,7 @@ public class DeliveryRecorder
 		return d.proposal;
 	}
 	
-	public static void setDeliveryBoundTime(String contractId, long t)
+	public void setDeliveryBoundTime(String contractId, long t)
 	{
 		if (contractId == null)
 			return;
@@ -137,34 +416,47 @@ public class DeliveryRecorder
 		if (d == null)
 			return;
 		
+		if (d.boundTime < 0)
+			statistics.bound(d.CFPTime, t);
 		d.boundTime = t;
 	}
 
-	public static long getDeliveryBoundTime(String contractId)
+	public long getDeliveryBoundTime(String contractId)
 	{
 		if (contractId == null)
 			return -1L;
 		
 		DeliveryRecord d = allDeliveries.get(contractId);
 		if (d == null)
-			return -1L;
+		{
+			long[] row = getExportedRow(contractId);
+			return (row != null ? row[1] : -1L);
+		}
 		
 		return d.boundTime;
 	}
 	
-	public static void setDeliveryDropoffTime(String contractId, long t)
+	public void setDeliveryDropoffTime(String contractId, long t)
 	{
 		if (contractId == null)
 			return;
 		
 		DeliveryRecord d = allDeliveries.get(contractId);
 		if (d == null)
+		{
+			keepForeignUpdate(new ForeignUpdate(contractId, t, false));
 			return;
+		}
 		
+		boolean first = (d.deliveryTime < 0);
+		if (first)
+			statistics.delivered(d.CFPTime, d.boundTime, t);
 		d.deliveryTime = t;
+		if (first)
+			exportRecord(d);
 	}
 
-	public static long getDeliveryDropoffTime(String contractId)
+	public long getDeliveryDropoffTime(String contractId)
 	{
 		if (contractId == null)
 			return -1L;
@@ -172,32 +464,77 @@ public class DeliveryRecorder
 		DeliveryRecord d = allDeliveries.get(contractId);
 		if (d != null)
 			return d.deliveryTime;
-		else
-			return -1L;
+		
+		long[] row = getExportedRow(contractId);
+		return (row != null ? row[2] : -1L);
 	}	
 	
-	public static void setDeliveryFailed(String contractId, long t)
+	public void setDeliveryFailed(String contractId, long t)
 	{
 		if (contractId == null)
 			return;
 		
 		DeliveryRecord d = allDeliveries.get(contractId);
 		if (d == null)
+		{
+			keepForeignUpdate(new ForeignUpdate(contractId, t, true));
 			return;
+		}
 		
+		boolean first = !d.failed;
+		if (first)
+			statistics.failed(t);
 		d.failed = true;
 		d.failedTime = t;
+		if (first)
+			exportRecord(d);
 	}
 	
-	public static boolean isDeliveryFailed(String contractId)
+	public boolean isDeliveryFailed(String contractId)
 	{
 		if (contractId == null)
 			return false;
 		
 		DeliveryRecord d = allDeliveries.get(contractId);
 		if (d == null)
-			return false;
+		{
+			long[] row = getExportedRow(contractId);
+			return (row != null && row[4] == DeliveryExport.STATUS_FAILED);
+		}
 		
 		return d.failed;	
 	}
+	
+	/**
+	 * @return the number of deliveries requested
+	 */
+	public int getDeliveryCount()
+	{
+		return (int) statistics.getRequestedCount();
+	}
+	
+	/**
+	 * @return the number of deliveries which have been dropped off
+	 */
+	public int getCompletedCount()
+	{
+		return (int) statistics.getCompletedCount();
+	}
+	
+	/**
+	 * @return the number of deliveries which failed
+	 */
+	public int getFailedCount()
+	{
+		return (int) statistics.getFailedCount();
+	}
+	
+	/**
+	 * @return mean time from CFP to drop-off of completed deliveries, or -1 if
+	 * none were completed
+	 */
+	public double getMeanDeliveryTime()
+	{
+		return statistics.getCfpToDelivery().getMean();
+	}
 }
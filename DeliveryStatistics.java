@@ -0,0 +1,282 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * delivery KPIs kept up to date while the simulation runs
+ *
+ * the {@link DeliveryRecorder} feeds every event into this aggregator, so
+ * counts, means and latency percentiles can be read at any time without
+ * walking the delivery records. Memory use does not grow with the number of
+ * deliveries. Updates are lock-free, since stations may record deliveries
+ * concurrently when ticked in parallel.
+ */
+public class DeliveryStatistics {
+
+	/**
+	 * histogram of latencies in seconds, with buckets growing geometrically
+	 *
+	 * values below SUB_BUCKETS get a bucket each; above that, every power of
+	 * two is split into SUB_BUCKETS buckets of equal width, so the relative
+	 * error of a percentile stays below 1 / SUB_BUCKETS
+	 */
+	public static class LatencyHistogram
+	{
+		static final int SUB_BITS = 3;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+		static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong(-1L);
+
+		/**
+		 * @param v
+		 * @return index of the bucket holding v
+		 */
+		static int bucketOf(long v)
+		{
+			if (v < SUB_BUCKETS)
+				return (int) v;
+
+			int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+			int sub = (int) (v >>> exp) - SUB_BUCKETS;
+			return (exp + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @param bucket
+		 * @return the smallest value held by the bucket
+		 */
+		static long lowerBound(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+
+			int exp = bucket / SUB_BUCKETS - 1;
+			long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return sub << exp;
+		}
+
+		/**
+		 * @param v latency in seconds; negative values are ignored
+		 */
+		public void record(long v)
+		{
+			if (v < 0)
+				return;
+
+			counts.incrementAndGet(bucketOf(v));
+			count.incrementAndGet();
+			sum.addAndGet(v);
+
+			long m = max.get();
+			while (v > m && !max.compareAndSet(m, v))
+				m = max.get();
+		}
+
+		/**
+		 * @return the number of latencies recorded
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return mean latency, or -1 if none were recorded
+		 */
+		public double getMean()
+		{
+			long n = count.get();
+			return (n == 0 ? -1d : (double) sum.get() / n);
+		}
+
+		/**
+		 * @return largest latency recorded, or -1 if none were recorded
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param p percentile, from 0 to 100
+		 * @return the lower bound of the bucket holding the percentile, or -1
+		 * if no latencies were recorded
+		 */
+		public long getPercentile(double p)
+		{
+			long n = count.get();
+			if (n == 0)
+				return -1L;
+
+			long rank = Math.max(1L, (long) Math.ceil(n * Math.min(p, 100d) / 100d));
+			long seen = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++)
+			{
+				seen += counts.get(i);
+				if (seen >= rank)
+					return Math.min(lowerBound(i), max.get());
+			}
+			return max.get();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("[n=");
+			builder.append(getCount());
+			builder.append(", mean=");
+			builder.append(String.format("%.1f", getMean()));
+			builder.append(", p50=");
+			builder.append(getPercentile(50));
+			builder.append(", p95=");
+			builder.append(getPercentile(95));
+			builder.append(", p99=");
+			builder.append(getPercentile(99));
+			builder.append(", max=");
+			builder.append(getMax());
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
+	private final LatencyHistogram cfpToBound = new LatencyHistogram();
+	private final LatencyHistogram boundToDelivery = new LatencyHistogram();
+	private final LatencyHistogram cfpToDelivery = new LatencyHistogram();
+
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * time of the first request and the latest drop-off, in seconds
+	 */
+	private final AtomicLong firstRequestTime = new AtomicLong(-1L);
+	private final AtomicLong lastDeliveryTime = new AtomicLong(-1L);
+
+	/**
+	 * @param t time of the CFP
+	 */
+	void requested(long t)
+	{
+		requested.incrementAndGet();
+		firstRequestTime.compareAndSet(-1L, t);
+	}
+
+	/**
+	 * @param cfpTime
+	 * @param t time the AGV started executing the delivery
+	 */
+	void bound(long cfpTime, long t)
+	{
+		cfpToBound.record(t - cfpTime);
+	}
+
+	/**
+	 * @param cfpTime
+	 * @param boundTime or -1 if the delivery was never bound
+	 * @param t time of drop-off
+	 */
+	void delivered(long cfpTime, long boundTime, long t)
+	{
+		completed.incrementAndGet();
+		cfpToDelivery.record(t - cfpTime);
+		if (boundTime >= 0)
+			boundToDelivery.record(t - boundTime);
+
+		long last = lastDeliveryTime.get();
+		while (t > last && !lastDeliveryTime.compareAndSet(last, t))
+			last = lastDeliveryTime.get();
+	}
+
+	/**
+	 * @param t time of failure
+	 */
+	void failed(long t)
+	{
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * @return latency from CFP to start of execution
+	 */
+	public LatencyHistogram getCfpToBound() {
+		return cfpToBound;
+	}
+
+	/**
+	 * @return latency from start of execution to drop-off
+	 */
+	public LatencyHistogram getBoundToDelivery() {
+		return boundToDelivery;
+	}
+
+	/**
+	 * @return latency from CFP to drop-off
+	 */
+	public LatencyHistogram getCfpToDelivery() {
+		return cfpToDelivery;
+	}
+
+	/**
+	 * @return the number of deliveries requested
+	 */
+	public long getRequestedCount() {
+		return requested.get();
+	}
+
+	/**
+	 * @return the number of deliveries dropped off
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the number of deliveries which failed
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return deliveries dropped off per hour, between the first request and
+	 * the latest drop-off, or 0 if there were none
+	 */
+	public double getThroughput()
+	{
+		long first = firstRequestTime.get();
+		long last = lastDeliveryTime.get();
+		if (first < 0 || last <= first)
+			return 0d;
+
+		return completed.get() * 3600d / (last - first);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("DeliveryStatistics [requested=");
+		builder.append(getRequestedCount());
+		builder.append(", completed=");
+		builder.append(getCompletedCount());
+		builder.append(", failed=");
+		builder.append(getFailedCount());
+		builder.append(", throughput/h=");
+		builder.append(String.format("%.1f", getThroughput()));
+		builder.append(", cfpToBound=");
+		builder.append(cfpToBound);
+		builder.append(", boundToDelivery=");
+		builder.append(boundToDelivery);
+		builder.append(", cfpToDelivery=");
+		builder.append(cfpToDelivery);
+		builder.append("]");
+		return builder.toString();
+	}
+}
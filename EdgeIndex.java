@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * numbers the nodes and connections of the graph, so per-connection state
+ * can be kept in arrays indexed by connection
+ *
+ * the graph does not change during a run, so one index is shared by all
+ * users of a simulation, see {@link SimulationContext#getEdgeIndex(Graph)}
+ */
+public class EdgeIndex {
+
+	private final Point[] nodes;
+	private final Map<Point, Integer> nodeIds = new HashMap<Point, Integer>();
+	private final int[] edgeFrom;
+	private final int[] edgeTo;
+	private final int[][] outgoing;
+	private final double[] length;
+
+	/**
+	 * @param g
+	 */
+	EdgeIndex(Graph<?> g)
+	{
+		nodes = g.getNodes().toArray(new Point[0]);
+		for (int i = 0; i < nodes.length; i++)
+			nodeIds.put(nodes[i], i);
+
+		List<Connection<?>> conns = new ArrayList<Connection<?>>(g.getConnections());
+		int n = conns.size();
+		edgeFrom = new int[n];
+		edgeTo = new int[n];
+		length = new double[n];
+
+		int[] degree = new int[nodes.length];
+		for (int e = 0; e < n; e++)
+		{
+			Connection<?> c = conns.get(e);
+			edgeFrom[e] = nodeIds.get(c.from());
+			edgeTo[e] = nodeIds.get(c.to());
+			length[e] = Point.distance(c.from(), c.to());
+			degree[edgeFrom[e]]++;
+		}
+
+		outgoing = new int[nodes.length][];
+		for (int i = 0; i < nodes.length; i++)
+			outgoing[i] = new int[degree[i]];
+		Arrays.fill(degree, 0);
+		for (int e = 0; e < n; e++)
+			outgoing[edgeFrom[e]][degree[edgeFrom[e]]++] = e;
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	int getNodeCount()
+	{
+		return nodes.length;
+	}
+
+	/**
+	 * @return the number of connections
+	 */
+	int getEdgeCount()
+	{
+		return length.length;
+	}
+
+	/**
+	 * @param i
+	 * @return node i
+	 */
+	Point getNode(int i)
+	{
+		return nodes[i];
+	}
+
+	/**
+	 * @param p
+	 * @return the number of node p, or -1 if p is not a node
+	 */
+	int getNodeId(Point p)
+	{
+		Integer retVal = nodeIds.get(p);
+		return (retVal != null ? retVal : -1);
+	}
+
+	/**
+	 * @param e
+	 * @return the number of the node connection e starts at
+	 */
+	int getFrom(int e)
+	{
+		return edgeFrom[e];
+	}
+
+	/**
+	 * @param e
+	 * @return the number of the node connection e ends at
+	 */
+	int getTo(int e)
+	{
+		return edgeTo[e];
+	}
+
+	/**
+	 * @param e
+	 * @return the length of connection e
+	 */
+	double getLength(int e)
+	{
+		return length[e];
+	}
+
+	/**
+	 * @param i
+	 * @return the connections starting at node i
+	 */
+	int[] getOutgoing(int i)
+	{
+		return outgoing[i];
+	}
+
+	/**
+	 * @param from
+	 * @param to
+	 * @return the number of the connection, or -1 if there is none
+	 */
+	int getEdge(Point from, Point to)
+	{
+		int i = getNodeId(from);
+		int j = getNodeId(to);
+		if (i < 0 || j < 0)
+			return -1;
+
+		for (int e : outgoing[i])
+		{
+			if (edgeTo[e] == j)
+				return e;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param rm
+	 * @param a
+	 * @return the connection a is on, or about to enter: the connection to
+	 * the next node of its path; -1 if none
+	 */
+	int getEdgeOf(CollisionGraphRoadModel rm, AGV a)
+	{
+		Optional<? extends Connection<?>> conn = rm.getConnection(a);
+		if (conn.isPresent())
+			return getEdge(conn.get().from(), conn.get().to());
+
+		Point next = a.getNextNode();
+		if (next == null)
+			return -1;
+		return getEdge(rm.getPosition(a), next);
+	}
+}
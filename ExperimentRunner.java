@@ -0,0 +1,411 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * runs a grid of headless simulations on a fixed-size worker pool, and
+ * collects the delivery KPIs of every run into one result table
+ *
+ * each run has its own {@link SimulationContext}, so runs do not share state
+ */
+public class ExperimentRunner {
+
+	/**
+	 * parameters which can be varied across a grid
+	 */
+	public enum Parameter {
+		SEED,
+		FLEET_SIZE,
+		CFP_PROBABILITY,
+		COMM_RANGE,
+		CHARGE_CAPACITY,
+		CRITICAL_CHARGE_LEVEL,
+		BATCH_ASSIGNMENT,
+		BUNDLE_BIDDING,
+		TASK_QUEUE_LENGTH,
+		DEMAND_REPOSITIONING,
+		OPPORTUNISTIC_CHARGING,
+		CHARGE_RESERVATION,
+		STAGGERED_CHARGING,
+		SWITCH_ABSOLUTE_GAIN,
+		SWITCH_RELATIVE_GAIN,
+		MAX_SWITCHES,
+		WORKLOAD,
+		ARRIVAL_RATE,
+		TRACE_SPEED,
+		CONGESTION_ROUTING,
+		DEADLOCK_DETECTION,
+		EVENT_ARRIVALS;
+
+		void apply(SimulationConfig c, double value)
+		{
+			switch (this)
+			{
+			case SEED:
+				c.setSeed((long) value);
+				break;
+			case FLEET_SIZE:
+				c.setNumAGVs((int) value);
+				break;
+			case CFP_PROBABILITY:
+				c.setCfpProbability(value);
+				break;
+			case COMM_RANGE:
+				c.setAgvCommRange(value);
+				break;
+			case CHARGE_CAPACITY:
+				c.setChargeCapacity(value);
+				break;
+			case CRITICAL_CHARGE_LEVEL:
+				c.setCriticalChargeLevel(value);
+				break;
+			case BATCH_ASSIGNMENT:
+				c.setBatchAssignment(value != 0);
+				break;
+			case BUNDLE_BIDDING:
+				c.setBundleBidding(value != 0);
+				break;
+			case TASK_QUEUE_LENGTH:
+				c.setTaskQueueLength((int) value);
+				break;
+			case DEMAND_REPOSITIONING:
+				c.setDemandRepositioning(value != 0);
+				break;
+			case OPPORTUNISTIC_CHARGING:
+				c.setOpportunisticCharging(value != 0);
+				break;
+			case CHARGE_RESERVATION:
+				c.setChargeReservation(value != 0);
+				break;
+			case STAGGERED_CHARGING:
+				c.setStaggeredCharging(value != 0);
+				break;
+			case SWITCH_ABSOLUTE_GAIN:
+				c.setSwitchAbsoluteGain(value);
+				break;
+			case SWITCH_RELATIVE_GAIN:
+				c.setSwitchRelativeGain(value);
+				break;
+			case MAX_SWITCHES:
+				c.setMaxSwitchesPerContract((int) value);
+				break;
+			case WORKLOAD:
+				// by ordinal of WorkloadGenerator.Type
+				c.setWorkload(WorkloadGenerator.Type.values()[(int) value]);
+				break;
+			case ARRIVAL_RATE:
+				c.setArrivalRate(value);
+				break;
+			case TRACE_SPEED:
+				c.setTraceSpeed(value);
+				break;
+			case CONGESTION_ROUTING:
+				c.setCongestionAwareRouting(value != 0);
+				break;
+			case DEADLOCK_DETECTION:
+				c.setDeadlockDetection(value != 0);
+				break;
+			case EVENT_ARRIVALS:
+				c.setEventDrivenArrivals(value != 0);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * KPIs of a single run
+	 */
+	public static class Result
+	{
+		final SimulationConfig config;
+		int deliveries;
+		int completed;
+		int failed;
+		double meanDeliveryTime = -1d;
+		double meanTimeToPickup = -1d;
+		long p95DeliveryTime = -1L;
+		double emptyDistance;
+		int chargeDetours;
+		int batteryDeaths;
+		int deadlocks = -1;
+		int yields;
+		double meanAvailability = -1d;
+		int switches;
+		int switchesAvoided;
+		long messages;
+		double deliveriesPerAGVHour;
+		long wallTime;
+		String error;
+
+		Result(SimulationConfig c)
+		{
+			config = c;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(config.getSeed());
+			builder.append(",");
+			builder.append(config.getNumAGVs());
+			builder.append(",");
+			builder.append(config.getCfpProbability());
+			builder.append(",");
+			builder.append(config.getWorkload());
+			builder.append(",");
+			builder.append(config.getArrivalRate());
+			builder.append(",");
+			builder.append(config.isEventDrivenArrivals());
+			builder.append(",");
+			builder.append(config.getAgvCommRange());
+			builder.append(",");
+			builder.append(config.getChargeCapacity());
+			builder.append(",");
+			builder.append(config.getCriticalChargeLevel());
+			builder.append(",");
+			builder.append(config.isBatchAssignment());
+			builder.append(",");
+			builder.append(config.isBundleBidding());
+			builder.append(",");
+			builder.append(config.getTaskQueueLength());
+			builder.append(",");
+			builder.append(config.isDemandRepositioning());
+			builder.append(",");
+			builder.append(config.isOpportunisticCharging());
+			builder.append(",");
+			builder.append(config.isChargeReservation());
+			builder.append(",");
+			builder.append(config.isStaggeredCharging());
+			builder.append(",");
+			builder.append(config.getSwitchAbsoluteGain());
+			builder.append(",");
+			builder.append(config.getSwitchRelativeGain());
+			builder.append(",");
+			builder.append(config.getMaxSwitchesPerContract());
+			builder.append(",");
+			builder.append(config.isCongestionAwareRouting());
+			builder.append(",");
+			builder.append(config.isDeadlockDetection());
+			builder.append(",");
+			builder.append(deliveries);
+			builder.append(",");
+			builder.append(completed);
+			builder.append(",");
+			builder.append(failed);
+			builder.append(",");
+			builder.append(meanDeliveryTime);
+			builder.append(",");
+			builder.append(meanTimeToPickup);
+			builder.append(",");
+			builder.append(p95DeliveryTime);
+			builder.append(",");
+			builder.append(emptyDistance);
+			builder.append(",");
+			builder.append(chargeDetours);
+			builder.append(",");
+			builder.append(batteryDeaths);
+			builder.append(",");
+			builder.append(deadlocks);
+			builder.append(",");
+			builder.append(yields);
+			builder.append(",");
+			builder.append(meanAvailability);
+			builder.append(",");
+			builder.append(switches);
+			builder.append(",");
+			builder.append(switchesAvoided);
+			builder.append(",");
+			builder.append(messages);
+			builder.append(",");
+			builder.append(deliveriesPerAGVHour);
+			builder.append(",");
+			builder.append(wallTime);
+			builder.append(",");
+			builder.append(error != null ? error : "");
+			return builder.toString();
+		}
+	}
+
+	static final String TABLE_HEADER = "seed,agvs,cfpProbability,workload,"
+		+ "arrivalRate,eventArrivals,commRange,"
+		+ "chargeCapacity,criticalCharge,batchAssignment,bundleBidding,"
+		+ "taskQueueLength,demandRepositioning,opportunisticCharging,"
+		+ "chargeReservation,staggeredCharging,switchAbsoluteGain,"
+		+ "switchRelativeGain,maxSwitches,congestionRouting,"
+		+ "deadlockDetection,deliveries,completed,failed,"
+		+ "meanDeliveryTime,meanTimeToPickup,p95DeliveryTime,"
+		+ "emptyDistance,chargeDetours,batteryDeaths,deadlocks,yields,"
+		+ "meanAvailability,switches,switchesAvoided,messages,"
+		+ "deliveriesPerAGVHour,wallTimeMs,error";
+
+	private final int numThreads;
+
+	ExperimentRunner(int threads)
+	{
+		numThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * run all configurations, and wait for them to finish
+	 *
+	 * @param configs
+	 * @return one result per configuration, in the order given
+	 * @throws InterruptedException
+	 */
+	public List<Result> run(List<SimulationConfig> configs)
+			throws InterruptedException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		List<Result> results = new ArrayList<Result>();
+
+		try
+		{
+			for (final SimulationConfig c : configs)
+			{
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return runOne(c);
+					}
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					results.add(futures.get(i).get());
+				}
+				catch (ExecutionException e)
+				{
+					Result r = new Result(configs.get(i));
+					r.error = String.valueOf(e.getCause());
+					results.add(r);
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * run a single simulation and record its KPIs
+	 *
+	 * @param c
+	 * @return
+	 */
+	static Result runOne(SimulationConfig c)
+	{
+		Result r = new Result(c);
+		long start = System.currentTimeMillis();
+
+		SimulationContext context = MASProject.runHeadless(c);
+		DeliveryRecorder recorder = context.getDeliveryRecorder();
+
+		r.wallTime = System.currentTimeMillis() - start;
+		r.deliveries = recorder.getDeliveryCount();
+		r.completed = recorder.getCompletedCount();
+		r.failed = recorder.getFailedCount();
+		r.meanDeliveryTime = recorder.getMeanDeliveryTime();
+		r.meanTimeToPickup = recorder.getStatistics().getCfpToBound().getMean();
+		r.p95DeliveryTime = recorder.getStatistics().getCfpToDelivery().getPercentile(95);
+		for (AGV a : context.getAGVs())
+		{
+			r.emptyDistance += a.getEmptyDistance();
+			r.chargeDetours += a.getChargeDetours();
+			r.batteryDeaths += a.getBatteryDeaths();
+			r.yields += a.getYieldCount();
+			r.switches += a.deliveryAgent.getSwitchCount();
+			r.switchesAvoided += a.deliveryAgent.getSwitchesAvoided();
+		}
+		for (PDPStation s : context.getTransportAgents())
+		{
+			r.switches += s.transportAgent.getSwitchCount();
+			r.switchesAvoided += s.transportAgent.getSwitchesAvoided();
+		}
+		r.messages = context.getMsgCounter();
+		if (context.getChargingScheduler() != null)
+			r.meanAvailability = context.getChargingScheduler().getMeanAvailability();
+		if (context.getDeadlockDetector() != null)
+			r.deadlocks = context.getDeadlockDetector().getDeadlockCount();
+		double agvHours = context.getAGVs().size() * c.getEndTime() / 3600000d;
+		r.deliveriesPerAGVHour = (agvHours > 0 ? r.completed / agvHours : 0d);
+		return r;
+	}
+
+	/**
+	 * expand every configuration in the list with each of the values given
+	 * for a parameter
+	 *
+	 * @param configs
+	 * @param p
+	 * @param values
+	 * @return the cartesian product of configs and values
+	 */
+	public static List<SimulationConfig> vary(List<SimulationConfig> configs,
+			Parameter p, double... values)
+	{
+		List<SimulationConfig> retVal = new ArrayList<SimulationConfig>();
+		for (SimulationConfig c : configs)
+		{
+			for (double v : values)
+			{
+				SimulationConfig n = new SimulationConfig(c);
+				p.apply(n, v);
+				retVal.add(n);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * print results as comma-separated table
+	 *
+	 * @param results
+	 * @param out
+	 */
+	public static void printTable(List<Result> results, PrintStream out)
+	{
+		out.println(TABLE_HEADER);
+		for (Result r : results)
+		{
+			out.println(r);
+		}
+	}
+
+	/**
+	 * @param args - optional number of worker threads; defaults to all cores
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int threads = (args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors());
+
+		SimulationConfig base = new SimulationConfig();
+		base.setVerbose(false);
+		base.setEndTime(60 * 60 * 1000L);
+
+		List<SimulationConfig> grid = Collections.singletonList(base);
+		grid = vary(grid, Parameter.SEED, 1, 2, 3, 4, 5);
+		grid = vary(grid, Parameter.FLEET_SIZE, 6, 9, 12);
+		grid = vary(grid, Parameter.CFP_PROBABILITY, 0.0005, 0.001, 0.002);
+
+		printTable(new ExperimentRunner(threads).run(grid), System.out);
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * sends idle AGVs to where the next calls are expected
+ *
+ * keeps a running estimate of the rate of calls at each station, decaying
+ * exponentially with time constant RATE_TIME_CONSTANT, so the estimate
+ * follows shifts in demand. An idle AGV is sent to a staging node near a
+ * station chosen at random, weighted by the expected rate of calls divided
+ * by the AGVs already staged there. Until the first call, AGVs roam at
+ * random as before.
+ *
+ * staging nodes are the nodes within STAGING_RADIUS of a station, other
+ * than station and charge station locations, which are kept free
+ */
+public class IdlePositioning {
+
+	/**
+	 * time constant of the rate estimate, in seconds
+	 */
+	static final double RATE_TIME_CONSTANT = 1800d;
+
+	static final double STAGING_RADIUS = 8d;
+
+	/**
+	 * horizon for the expected number of calls, in seconds
+	 */
+	static final double LOW_DEMAND_HORIZON = 300d;
+
+	private final SimulationContext context;
+
+	/**
+	 * rate estimate per station, in calls per second, as of lastCall
+	 */
+	private final Map<Integer, Double> rates = new HashMap<Integer, Double>();
+	private final Map<Integer, Long> lastCall = new HashMap<Integer, Long>();
+
+	/**
+	 * staging nodes per station, found on first use
+	 */
+	private Map<Integer, List<Point>> stagingNodes = null;
+
+	/**
+	 * station each idle AGV was last sent to, by AGV id
+	 */
+	private final Map<Integer, Integer> staged = new HashMap<Integer, Integer>();
+
+	IdlePositioning(SimulationContext ctx)
+	{
+		context = ctx;
+	}
+
+	/**
+	 * update the rate estimate of a station for a new call; stations may
+	 * create calls concurrently when ticked in parallel
+	 *
+	 * @param stationId
+	 * @param t time of the call, in seconds
+	 */
+	synchronized void recordCall(int stationId, long t)
+	{
+		rates.put(stationId, getRate(stationId, t) + 1d / RATE_TIME_CONSTANT);
+		lastCall.put(stationId, t);
+	}
+
+	/**
+	 * @param stationId
+	 * @param t in seconds
+	 * @return the expected rate of calls at t, in calls per second
+	 */
+	synchronized double getRate(int stationId, long t)
+	{
+		Double r = rates.get(stationId);
+		if (r == null)
+			return 0d;
+
+		return r * Math.exp(-(t - lastCall.get(stationId)) / RATE_TIME_CONSTANT);
+	}
+
+	/**
+	 * demand is low when the idle AGVs outnumber the calls expected within 
+	 * LOW_DEMAND_HORIZON, so that one of them can be spared
+	 * 
+	 * @param t in seconds
+	 * @return whether an idle AGV may be taken out of service for a while
+	 */
+	synchronized boolean isDemandLow(long t)
+	{
+		double expected = 0;
+		for (Integer id : rates.keySet())
+			expected += getRate(id, t) * LOW_DEMAND_HORIZON;
+
+		int idle = 0;
+		for (AGV a : context.getAGVs())
+		{
+			if (a.getHeading() == AGV.AGVHeading.RANDOM 
+			 && a.deliveryAgent.getContract() == null)
+				idle++;
+		}
+		return idle - 1 > expected;
+	}
+
+	/**
+	 * choose where an idle AGV should go
+	 *
+	 * @param a
+	 * @param rm
+	 * @param rng
+	 * @return a staging node, or absent if there is no demand estimate yet
+	 */
+	synchronized Optional<Point> getStagingDestination(AGV a,
+			CollisionGraphRoadModel rm, RandomGenerator rng)
+	{
+		if (stagingNodes == null)
+			findStagingNodes(rm);
+
+		// idle AGVs already staged at each station
+		Map<Integer, Integer> coverage = new HashMap<Integer, Integer>();
+		for (AGV other : context.getAGVs())
+		{
+			Integer s = staged.get(other.getId());
+			if (s == null || other == a || other.deliveryAgent.getContract() != null
+			 || other.getHeading() != AGV.AGVHeading.RANDOM)
+				continue;
+
+			Integer n = coverage.get(s);
+			coverage.put(s, (n == null ? 1 : n + 1));
+		}
+
+		List<PDPStation> stations = context.getTransportAgents();
+		double[] weights = new double[stations.size()];
+		double total = 0;
+		for (int i = 0; i < stations.size(); i++)
+		{
+			int id = stations.get(i).getId();
+			if (stagingNodes.get(id).isEmpty())
+				continue;
+
+			Integer n = coverage.get(id);
+			weights[i] = getRate(id, a.getTimeIndex()) / (1 + (n == null ? 0 : n));
+			total += weights[i];
+		}
+
+		staged.remove(a.getId());
+		if (total <= 0)
+			return Optional.absent();
+
+		double x = rng.nextDouble() * total;
+		int chosen = -1;
+		for (int i = 0; i < weights.length; i++)
+		{
+			if (weights[i] <= 0)
+				continue;
+
+			chosen = i;
+			x -= weights[i];
+			if (x < 0)
+				break;
+		}
+
+		int id = stations.get(chosen).getId();
+		List<Point> nodes = stagingNodes.get(id);
+		staged.put(a.getId(), id);
+		return Optional.of(nodes.get(rng.nextInt(nodes.size())));
+	}
+
+	/**
+	 * @param rm
+	 */
+	private void findStagingNodes(CollisionGraphRoadModel rm)
+	{
+		stagingNodes = new HashMap<Integer, List<Point>>();
+		for (PDPStation s : context.getTransportAgents())
+		{
+			List<Point> nodes = new ArrayList<Point>();
+			Point loc = s.getPosition().get();
+			for (Point p : rm.getGraph().getNodes())
+			{
+				if (Point.distance(loc, p) > STAGING_RADIUS
+				 || PDPStation.isTransportAgentLocation(context, Optional.of(p))
+				 || ChargeStation.isChargeStationLocation(context, Optional.of(p)))
+					continue;
+				nodes.add(p);
+			}
+			stagingNodes.put(s.getId(), nodes);
+		}
+	}
+}
@@ -16,14 +16,26 @@
 
 import static com.google.common.collect.Lists.newArrayList;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 import javax.measure.unit.SI;
 
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
 import com.github.rinde.rinsim.core.Simulator;
 import com.github.rinde.rinsim.core.model.comm.CommModel;
 import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
 import com.github.rinde.rinsim.core.model.road.RoadModelBuilders;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
 import com.github.rinde.rinsim.geom.Graph;
 import com.github.rinde.rinsim.geom.Graphs;
 import com.github.rinde.rinsim.geom.LengthData;
@@ -46,16 +58,9 @@ import com.google.common.collect.Table;
 public final class MASProject {
 
   private static final double VEHICLE_LENGTH = 2d;
-  private static final int NUM_AGVS = 12;
-  private static final int NUM_AGENTS = 14;
   private static final long TEST_END_TIME = 10 * 60 * 1000L;
   private static final int TEST_SPEED_UP = 16;
-  private static final ArrayList<Point> transportAgentLocations = new ArrayList<Point>();
-  private static final ArrayList<Point> transportAgentExtents = new ArrayList<Point>();
 
-  private static final ArrayList<Point> chargeStationLocations = new ArrayList<Point>();
-  private static final ArrayList<Point> chargeStationExtents = new ArrayList<Point>();
-  
   private MASProject() {}
 
   /**
@@ -93,35 +98,227 @@ public final class MASProject {
       viewBuilder = viewBuilder.withTitleAppendix("DynCNET");
     }
 
-    final Simulator sim = Simulator.builder()
+    final Simulator sim = createSimulator(new SimulationContext(), viewBuilder);
+
+    sim.start();
+  }
+
+  /**
+   * Runs a single simulation without a GUI, until the end time of the
+   * configuration is reached.
+   * @param config The parameters of the run.
+   * @return The context of the finished run, holding its delivery records.
+   */
+  public static SimulationContext runHeadless(final SimulationConfig config) {
+    final SimulationContext context = new SimulationContext(config);
+    SimulationSnapshot snapshot = null;
+    if (config.getRestoreFile() != null) {
+      try (InputStream in = new FileInputStream(config.getRestoreFile())) {
+        snapshot = SimulationSnapshot.read(in);
+      } catch (IOException e) {
+        throw new IllegalStateException("cannot read snapshot", e);
+      }
+    }
+    final Simulator sim = createSimulator(context, null, null, 0, snapshot);
+
+    sim.register(new TickListener() {
+      boolean saved = false;
+
+      @Override
+      public void tick(TimeLapse timeLapse) {
+        if (timeLapse.getEndTime() + context.getTimeOffset()
+          >= config.getEndTime()) {
+          sim.stop();
+        }
+      }
+
+      @Override
+      public void afterTick(TimeLapse timeLapse) {
+        long time = timeLapse.getEndTime() + context.getTimeOffset();
+        if (!saved && config.getSnapshotTime() >= 0
+          && time >= config.getSnapshotTime()) {
+          saved = true;
+          try (OutputStream out = new FileOutputStream(config.getSnapshotFile())) {
+            SimulationSnapshot.capture(context, time).write(out);
+          } catch (IOException e) {
+            throw new IllegalStateException("cannot write snapshot", e);
+          }
+        }
+      }
+    });
+
+    if (config.getExportFile() != null || config.isEvictDeliveries()) {
+      try {
+        File f;
+        if (config.getExportFile() != null) {
+          f = new File(config.getExportFile());
+        } else {
+          f = File.createTempFile("deliveries", ".bin");
+          f.deleteOnExit();
+        }
+        context.getDeliveryRecorder().setExport(new DeliveryExport(f),
+          config.isEvictDeliveries());
+      } catch (IOException e) {
+        throw new IllegalStateException("cannot create delivery export", e);
+      }
+    }
+
+    SimulationMonitor monitor = null;
+    if (config.isMonitoring()) {
+      monitor = new SimulationMonitor(context);
+      sim.register(monitor);
+    }
+
+    // the worker threads must go even if the run fails, since the
+    // experiment runner carries on with its other runs in this JVM
+    try {
+      sim.start();
+    } finally {
+      context.closeMailboxRuntime();
+    }
+    context.getDeliveryRecorder().closeExport();
+    context.closeOrderTrace();
+    context.closeTrafficHeatmap();
+    if (monitor != null) {
+      monitor.close();
+    }
+    return context;
+  }
+
+  /**
+   * Builds a simulator and registers all agents of the context with it.
+   * @param context The context shared by all agents of this simulation.
+   * @param viewBuilder The GUI to add, or <code>null</code> to run headless.
+   * @return The simulator, ready to be started.
+   */
+  static Simulator createSimulator(SimulationContext context,
+      View.Builder viewBuilder) {
+    return createSimulator(context, viewBuilder, null, 0, null);
+  }
+
+  /**
+   * Builds a simulator over the whole layout, registering only the agents
+   * located in one zone of it.
+   * @param context The context shared by all agents of this simulation.
+   * @param viewBuilder The GUI to add, or <code>null</code> to run headless.
+   * @param zones The partition of the layout, or <code>null</code> to
+   *          register all agents.
+   * @param zone The zone whose agents are registered.
+   * @param snapshot The state to start from, or <code>null</code> to start
+   *          with all AGVs idle at their charge stations.
+   * @return The simulator, ready to be started.
+   */
+  static Simulator createSimulator(SimulationContext context,
+      View.Builder viewBuilder, ZonePartition zones, int zone,
+      SimulationSnapshot snapshot) {
+    final SimulationConfig config = context.getConfig();
+    final RandomGenerator rng = snapshot != null ? snapshot.getRandomGenerator()
+      : new MersenneTwister(config.getSeed());
+    context.setRandomGenerator(rng);
+    if (snapshot != null) {
+      context.setTimeOffset(snapshot.getTime());
+    }
+    final GraphCreator layout = new GraphCreator();
+    final ListenableGraph<LengthData> graph = layout.createGraph();
+    context.log(graph.toString());
+
+    Simulator.Builder simBuilder = Simulator.builder()
+      .setRandomGenerator(rng)
       .addModel(
-        RoadModelBuilders.dynamicGraph(GraphCreator.createGraph())
+        RoadModelBuilders.dynamicGraph(graph)
           .withCollisionAvoidance()
           .withDistanceUnit(SI.METER)
           .withVehicleLength(VEHICLE_LENGTH)
       	  .withMinDistance(1d))
-      .addModel(viewBuilder)
-      .addModel(CommModel.builder())
-      .build();
+      .addModel(CommModel.builder());
+    if (viewBuilder != null) {
+      simBuilder = simBuilder.addModel(viewBuilder);
+    }
+    final Simulator sim = simBuilder.build();
 
-    Iterator<Point> iter1 = chargeStationLocations.iterator();
-    for (int i = 0; i < NUM_AGVS; i++) {
+    // tick listeners run in order of registration, so this precedes all AGVs
+    if (config.isMailboxRuntime()) {
+      int threads = config.getWorkerThreads() > 0 ? config.getWorkerThreads()
+        : Runtime.getRuntime().availableProcessors();
+      sim.register(new MailboxRuntime(context,
+        MailboxRuntime.newDaemonPool(threads)));
+    } else if (config.isParallelTicking()) {
+      sim.register(new ParallelTickPhase(context, ForkJoinPool.commonPool()));
+    } else if (config.isParallelBidEvaluation()) {
+      sim.register(new BidEvaluationPhase(context, ForkJoinPool.commonPool()));
+    }
+
+    int numAGVs = Math.min(config.getNumAGVs(), 
+    		layout.chargeStationLocations.size());
+    Iterator<Point> iter1 = layout.chargeStationLocations.iterator();
+    for (int i = 0; i < numAGVs; i++) {
         Point loc = iter1.next();
-    	sim.register(new AGV(sim.getRandomGenerator(), loc));
-    	sim.register(new ChargeStation(sim.getRandomGenerator(), loc, 
-    			chargeStationExtents.get(i)));
+        if (zones != null && zones.zoneOf(loc) != zone) {
+          context.skipAGVId();
+          continue;
+        }
+        if (snapshot == null) {
+          sim.register(new AGV(context, sim.getRandomGenerator(), loc));
+        }
+    	sim.register(new ChargeStation(context, sim.getRandomGenerator(), loc, 
+    			layout.chargeStationExtents.get(i)));
+    }
+    if (snapshot != null) {
+      snapshot.restoreAGVs(context, sim);
     }
     
-    Iterator<Point> iter = transportAgentLocations.iterator();
-    for (int i=0; i < Math.min(NUM_AGENTS, transportAgentLocations.size()); i++)
+    Iterator<Point> iter = layout.transportAgentLocations.iterator();
+    for (int i=0; i < Math.min(config.getNumStations(), layout.transportAgentLocations.size()); i++)
     {
-    	PDPStation a = new PDPStation(sim.getRandomGenerator(), iter.next(), 
-    			transportAgentExtents.get(i));
+    	Point loc = iter.next();
+    	if (zones != null && zones.zoneOf(loc) != zone) {
+    	  context.skipTransportAgentId();
+    	  continue;
+    	}
+    	// each station draws from its own generator, so stations can run
+    	// in parallel without changing the sequence of draws
+    	RandomGenerator stationRng = new MersenneTwister(sim.getRandomGenerator().nextLong());
+    	if (snapshot != null 
+    	  && snapshot.getStationRandomGenerator(context.getTransportAgents().size() + 1) != null) {
+    	  stationRng = snapshot.getStationRandomGenerator(context.getTransportAgents().size() + 1);
+    	}
+    	PDPStation a = new PDPStation(context, stationRng, loc, 
+    			layout.transportAgentExtents.get(i));
     	sim.register(a);
-    	System.out.println(a.toString());
+    	context.log(a.toString());
     }
 
-    sim.start();
+    if (snapshot != null) {
+      snapshot.restoreContracts(context);
+    }
+
+    if (config.isDeadlockDetection()) {
+      sim.register(new DeadlockDetector(context));
+    }
+
+    if (config.getHeatmapFile() != null) {
+      try {
+        sim.register(new TrafficHeatmap(context,
+          new File(config.getHeatmapFile()), config.getHeatmapInterval()));
+      } catch (IOException e) {
+        throw new IllegalStateException("cannot create traffic heatmap", e);
+      }
+    }
+
+    // edge costs are updated before batches are assigned
+    if (config.isCongestionAwareRouting()) {
+      sim.register(new TrafficModel(context));
+    }
+
+    if (config.isBatchAssignment()) {
+      sim.register(new BatchDispatcher(context));
+    }
+
+    if (config.isStaggeredCharging()) {
+      sim.register(new ChargingScheduler(context));
+    }
+
+    return sim;
   }
 
   static class GraphCreator {
@@ -132,6 +329,13 @@ public final class MASProject {
     static final int RIGHT_CENTER_L_ROW = 4;
     static final int RIGHT_COL = 0;
 
+    // bay locations recorded while building the graph
+    final ArrayList<Point> transportAgentLocations = new ArrayList<Point>();
+    final ArrayList<Point> transportAgentExtents = new ArrayList<Point>();
+
+    final ArrayList<Point> chargeStationLocations = new ArrayList<Point>();
+    final ArrayList<Point> chargeStationExtents = new ArrayList<Point>();
+
     GraphCreator() {}
 
     static ImmutableTable<Integer, Integer, Point> createMatrix(int cols,
@@ -182,7 +386,7 @@ public final class MASProject {
      * @param y2 - y-position of link end
      * @param useFirst - if true, use x1,y1 as agent location; otherwise use x2,y2
      */
-	static void addTransportAgentLocation(Graph<LengthData> g,
+	void addTransportAgentLocation(Graph<LengthData> g,
     		double x1, double y1, double x2, double y2, boolean useFirst)
     {
         ArrayList<Point> q = new ArrayList<Point>();
@@ -198,13 +402,13 @@ public final class MASProject {
         	transportAgentLocations.add(p2);
         
         if (useFirst)
-        	MASProject.transportAgentExtents.add(new Point(x2-x1,0));
+        	transportAgentExtents.add(new Point(x2-x1,0));
         else
-        	MASProject.transportAgentExtents.add(new Point(x1-x2,0));
+        	transportAgentExtents.add(new Point(x1-x2,0));
     }
 
 
-	static void addChargeStationLocation(Graph<LengthData> g,
+	void addChargeStationLocation(Graph<LengthData> g,
     		double x1, double y1, double x2, double y2, boolean useFirst)
     {
         ArrayList<Point> q = new ArrayList<Point>();
@@ -221,13 +425,13 @@ public final class MASProject {
         	chargeStationLocations.add(p2);
         
         if (useFirst)
-        	MASProject.chargeStationExtents.add(new Point(x2-x1,0));
+        	chargeStationExtents.add(new Point(x2-x1,0));
         else
-        	MASProject.chargeStationExtents.add(new Point(x1-x2,0));
+        	chargeStationExtents.add(new Point(x1-x2,0));
         
     }
 	
-    static ListenableGraph<LengthData> createGraph() {
+    ListenableGraph<LengthData> createGraph() {
       final Graph<LengthData> g = new TableGraph<>();
 
       final Table<Integer, Integer, Point> matrix = createMatrix(8, 10,
@@ -306,7 +510,6 @@ public final class MASProject {
       Graphs.addPath(g, Lists.reverse(newArrayList(matrix.row(
         matrix.rowKeySet().size() - 1).values())));
       
-      System.out.println(g.toString());
 
       return new ListenableGraph<>(g);
     }
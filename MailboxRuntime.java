@@ -0,0 +1,168 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * runs protocol agents as tasks woken by their mailbox
+ *
+ * an AGV agent is only scheduled in a tick when its comm device holds
+ * unread messages, so idle AGVs cost nothing; PDP stations are scheduled
+ * every tick, since they may create a CFP. Each group of tasks ends at a
+ * tick barrier, after which buffered messages are released in order of id,
+ * as in {@link ParallelTickPhase}.
+ *
+ * the executor is supplied by the caller, so a JVM with virtual threads can
+ * pass a thread-per-task executor instead of a pool; the runtime owns it
+ * from then on, and shuts it down when closed at the end of the run
+ *
+ * must be registered before all agents
+ */
+public class MailboxRuntime implements TickListener, Closeable {
+
+	private final SimulationContext context;
+	private final ExecutorService executor;
+
+	MailboxRuntime(SimulationContext ctx, ExecutorService e)
+	{
+		context = ctx;
+		executor = e;
+		context.setMessagePhase(true);
+		context.setMailboxRuntime(this);
+	}
+
+	/**
+	 * @param threads
+	 * @return a fixed pool of daemon threads, which do not keep the JVM
+	 * alive once the simulation has stopped
+	 */
+	static ExecutorService newDaemonPool(int threads)
+	{
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mailbox-runtime");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void tick(final TimeLapse timeLapse)
+	{
+		List<AGV> agvs = context.getAGVs();
+		List<PDPStation> stations = context.getTransportAgents();
+
+		// wake only AGVs with mail
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final AGV a : agvs)
+		{
+			if (!a.acceptsMessages()
+			 || a.getDevice().get().getUnreadCount() == 0)
+				continue;
+
+			a.deliveryAgent.outbox.setBuffering(true);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					a.deliveryAgent.processMessages();
+				}
+			});
+		}
+		runAll(tasks);
+
+		tasks.clear();
+		for (final PDPStation s : stations)
+		{
+			s.transportAgent.outbox.setBuffering(true);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					s.processTick(timeLapse);
+				}
+			});
+		}
+		runAll(tasks);
+
+		// release all messages in a fixed order
+		for (AGV a : agvs)
+		{
+			a.deliveryAgent.outbox.setBuffering(false);
+			a.deliveryAgent.outbox.flush();
+		}
+		for (PDPStation s : stations)
+		{
+			s.transportAgent.outbox.setBuffering(false);
+			s.transportAgent.outbox.flush();
+		}
+	}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse) {}
+
+	/**
+	 * shut down the executor, letting running tasks finish
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * submit all tasks and block until every one has finished
+	 *
+	 * @param tasks
+	 */
+	private void runAll(List<Runnable> tasks)
+	{
+		if (tasks.isEmpty())
+			return;
+
+		final CountDownLatch barrier = new CountDownLatch(tasks.size());
+		final AtomicReference<RuntimeException> failure =
+				new AtomicReference<RuntimeException>();
+
+		for (final Runnable r : tasks)
+		{
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						r.run();
+					}
+					catch (RuntimeException e)
+					{
+						failure.compareAndSet(null, e);
+					}
+					finally
+					{
+						barrier.countDown();
+					}
+				}
+			});
+		}
+
+		try
+		{
+			barrier.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted at tick barrier", e);
+		}
+
+		if (failure.get() != null)
+			throw failure.get();
+	}
+}
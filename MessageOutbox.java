@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.comm.MessageContents;
+
+/**
+ * sends protocol messages through the comm device of a CNPUser
+ *
+ * while buffering, messages are queued instead of sent, and only released
+ * by flush; this lets agents run their protocol step concurrently while
+ * the comm model is only touched from one thread, in a fixed order
+ */
+public class MessageOutbox {
+
+	private final CNPUser owner;
+	private boolean buffering = false;
+
+	/**
+	 * number of messages sent or queued so far
+	 */
+	private long count = 0;
+
+	private final ArrayList<MessageContents> messages = new ArrayList<MessageContents>();
+
+	/**
+	 * receiver for each queued message; null for broadcasts
+	 */
+	private final ArrayList<CommUser> receivers = new ArrayList<CommUser>();
+
+	MessageOutbox(CNPUser u)
+	{
+		owner = u;
+	}
+
+	/**
+	 * @param m
+	 * @param receiver
+	 */
+	void send(MessageContents m, CommUser receiver)
+	{
+		count++;
+		if (buffering)
+		{
+			messages.add(m);
+			receivers.add(receiver);
+		}
+		else
+			owner.getDevice().get().send(m, owner.getContext().resolve(receiver));
+	}
+
+	/**
+	 * @param m
+	 */
+	void broadcast(MessageContents m)
+	{
+		count++;
+		if (buffering)
+		{
+			messages.add(m);
+			receivers.add(null);
+		}
+		else
+			owner.getDevice().get().broadcast(m);
+	}
+
+	/**
+	 * @return the number of messages sent or queued so far
+	 */
+	long getMessageCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @param b whether to queue messages until the next flush
+	 */
+	void setBuffering(boolean b)
+	{
+		buffering = b;
+	}
+
+	/**
+	 * send all queued messages, in the order they were queued
+	 */
+	void flush()
+	{
+		for (int i = 0; i < messages.size(); i++)
+		{
+			if (receivers.get(i) == null)
+				owner.getDevice().get().broadcast(messages.get(i));
+			else
+				owner.getDevice().get().send(messages.get(i), 
+					owner.getContext().resolve(receivers.get(i)));
+		}
+		messages.clear();
+		receivers.clear();
+	}
+}
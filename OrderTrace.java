@@ -0,0 +1,266 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * streams orders from a trace file, to be replayed as calls
+ *
+ * each line of the file holds one order,
+ * <pre>
+ * time,origin,destination,priority
+ * </pre>
+ * with the time in seconds from the start of the trace, in ascending
+ * order, and the origin and destination as station ids. Blank lines and
+ * lines starting with # are skipped; the priority is optional.
+ *
+ * the file is read through a buffer, only as far as the simulation has
+ * got, so traces of any length replay in constant memory. Orders are
+ * replayed speed times faster than recorded, and with looping the trace
+ * starts over where it ended. Orders are handed out per origin station,
+ * in the order of the file, so stations may take theirs concurrently and
+ * the replay does not depend on which station reads ahead.
+ *
+ * station ids are those of the simulation, numbered from 1 in order of
+ * registration over the whole layout, also in zoned runs; orders between
+ * stations not both simulated here, beyond the layout or in another zone,
+ * are skipped.
+ */
+public class OrderTrace implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * an order of the trace
+	 */
+	static class Order
+	{
+		final double time;
+		final int origin;
+		final int destination;
+		final int priority;
+
+		Order(double t, int o, int d, int p)
+		{
+			time = t;
+			origin = o;
+			destination = d;
+			priority = p;
+		}
+	}
+
+	private final SimulationContext context;
+	private final File file;
+	private final double speed;
+	private final boolean loop;
+
+	private BufferedReader reader;
+	private long lineNumber = 0;
+	private long passOrders = 0;
+
+	/**
+	 * simulated time at which the current pass over the trace started, and
+	 * the last trace time read in this pass
+	 */
+	private double passStart = 0;
+	private double lastTime = 0;
+
+	/**
+	 * the order read but not yet due
+	 */
+	private Order next = null;
+	private boolean started = false;
+	private boolean finished = false;
+
+	/**
+	 * due orders, by origin station id
+	 */
+	private final Map<Integer, ArrayDeque<Order>> due = new HashMap<Integer, ArrayDeque<Order>>();
+
+	private long replayed = 0;
+	private long skipped = 0;
+
+	/**
+	 * @param ctx
+	 * @param f
+	 * @param replaySpeed how many times faster than recorded to replay
+	 * @param repeat whether to start over at the end of the trace
+	 * @throws IOException
+	 */
+	OrderTrace(SimulationContext ctx, File f, double replaySpeed, boolean repeat)
+			throws IOException
+	{
+		context = ctx;
+		file = f;
+		speed = replaySpeed;
+		loop = repeat;
+		open();
+	}
+
+	private void open() throws IOException
+	{
+		reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+		lineNumber = 0;
+	}
+
+	/**
+	 * take the orders from a station which are due at t
+	 *
+	 * @param stationId
+	 * @param t in seconds
+	 * @return the due orders, in the order of the trace; empty if none
+	 */
+	synchronized ArrayDeque<Order> take(int stationId, long t)
+	{
+		advance(t);
+
+		ArrayDeque<Order> retVal = due.remove(stationId);
+		return (retVal != null ? retVal : new ArrayDeque<Order>());
+	}
+
+	/**
+	 * read the orders due at t, and queue them at their origin
+	 *
+	 * @param t in seconds
+	 */
+	private void advance(long t)
+	{
+		try
+		{
+			while (!finished)
+			{
+				if (next == null)
+					next = read();
+				if (next == null || passStart + next.time / speed > t)
+					break;
+
+				// a simulation restored from a snapshot starts part way
+				// through the trace; orders before its start are not replayed
+				if (!started && passStart + next.time / speed < t - 1)
+				{
+					next = null;
+					continue;
+				}
+
+				if (!isStation(next.origin) || !isStation(next.destination))
+				{
+					skipped++;
+				}
+				else
+				{
+					ArrayDeque<Order> q = due.get(next.origin);
+					if (q == null)
+					{
+						q = new ArrayDeque<Order>();
+						due.put(next.origin, q);
+					}
+					q.add(next);
+					replayed++;
+				}
+				next = null;
+			}
+			started = true;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot read order trace " + file, e);
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return whether id is the id of a station of this simulation
+	 */
+	private boolean isStation(int id)
+	{
+		return context.getTransportAgent(id) != null;
+	}
+
+	/**
+	 * @return the next order, starting over at the end of the trace if
+	 * looping; null at the end of the trace
+	 * @throws IOException
+	 */
+	private Order read() throws IOException
+	{
+		String line;
+		while (true)
+		{
+			line = reader.readLine();
+			lineNumber++;
+			if (line == null)
+			{
+				reader.close();
+				if (!loop || passOrders == 0)
+				{
+					finished = true;
+					return null;
+				}
+
+				// start over where the trace ended, at least a second later
+				passStart += Math.max(1, lastTime) / speed;
+				lastTime = 0;
+				passOrders = 0;
+				open();
+				continue;
+			}
+
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			Order o = parse(line);
+			lastTime = Math.max(lastTime, o.time);
+			passOrders++;
+			return o;
+		}
+	}
+
+	/**
+	 * @param line
+	 * @return the order on the line
+	 */
+	private Order parse(String line)
+	{
+		String[] f = line.split(",");
+		try
+		{
+			return new Order(Double.parseDouble(f[0].trim()),
+				Integer.parseInt(f[1].trim()), Integer.parseInt(f[2].trim()),
+				(f.length > 3 ? Integer.parseInt(f[3].trim()) : 0));
+		}
+		catch (RuntimeException e)
+		{
+			throw new IllegalArgumentException("bad order at " + file + ":"
+				+ lineNumber + ": " + line, e);
+		}
+	}
+
+	/**
+	 * @return the number of orders handed to stations so far
+	 */
+	public synchronized long getReplayedCount() {
+		return replayed;
+	}
+
+	/**
+	 * @return the number of orders skipped, for unknown stations
+	 */
+	public synchronized long getSkippedCount() {
+		return skipped;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		finished = true;
+		reader.close();
+	}
+}
@@ -1,5 +1,6 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.apache.commons.math3.random.RandomGenerator;
 import com.github.rinde.rinsim.core.model.comm.CommDevice;
 import com.github.rinde.rinsim.core.model.comm.CommDeviceBuilder;
@@ -15,9 +16,7 @@ import com.google.common.base.Optional;
 public class PDPStation 
 	implements TickListener, CommUser, RoadUser, CNPUser {
 
-	// save all agents
-	private static ArrayList<PDPStation> allTransportAgents = new ArrayList<PDPStation>();
-	
+	private final SimulationContext context;
 	private final RandomGenerator rng;
 	private Optional<Point> location;
 	private double range;
@@ -28,7 +27,18 @@ public class PDPStation
 	private int transportAgentId;
 	private long timeIndex = 0;
 	CNPTransportAgent transportAgent;
-	private static final double cfpProbability = 0.001;
+	private final WorkloadGenerator workload;
+	
+	/**
+	 * with event-driven arrivals, time of the next call in seconds; -1 
+	 * until the first is drawn
+	 */
+	private double nextArrival = -1;
+	
+	/**
+	 * slack for rounding in arrival times, in seconds
+	 */
+	static final double ARRIVAL_TOLERANCE = 1e-6;
 	
 	/**
 	 * all previous and active calls for proposals
@@ -61,17 +71,17 @@ public class PDPStation
 	 */
 	private Point extent;
 
-	PDPStation(RandomGenerator r, Point loc, Point limit) {
+	PDPStation(SimulationContext ctx, RandomGenerator r, Point loc, Point limit) {
+		context = ctx;
 		rng = r;
-		range = 12d;
+		range = context.getConfig().getStationCommRange();
+		workload = Workloads.create(context);
 		roadModel = Optional.absent();
 		device = Optional.absent();
 		location = Optional.of(loc);
 		extent = limit;
 		
-		allTransportAgents.add(this);
-		
-		transportAgentId = allTransportAgents.size();
+		transportAgentId = context.addTransportAgent(this);
 		transportAgent = new CNPTransportAgent(this);
 	}
 
@@ -95,6 +105,7 @@ public class PDPStation
 	public static PDPStation getDestination(PDPStation origin)
 	{
 		PDPStation retVal = null;
+		List<PDPStation> allTransportAgents = origin.context.getTransportAgents();
 		
 		// this only works if there is somewhere else to go;
 		// return null for empty list or origin being the only entry
@@ -108,7 +119,7 @@ public class PDPStation
 		
 		do
 		{
-			retVal = allTransportAgents.get((int)(Math.random() * allTransportAgents.size()));
+			retVal = allTransportAgents.get(origin.rng.nextInt(allTransportAgents.size()));
 		}
 		while (retVal == origin);
 
@@ -173,23 +184,53 @@ public class PDPStation
 	}
 	
 	/**
-	 * use the rng to decide whether to create a CFP
+	 * create as many CFPs as the workload generator asks for in this tick
+	 * 
+	 * @param tickLength in seconds
+	 */
+	private void createCFPs(double tickLength)
+	{
+		int n = workload.getCallCount(this, timeIndex, tickLength, rng);
+		for (int i = 0; i < n; i++)
+			createCFP();
+	}
+	
+	/**
+	 * create a CFP for every arrival due by now, drawing the time of the 
+	 * next one each time; ticks without a due arrival draw nothing
+	 * 
+	 * @param now end of the tick, in seconds
+	 * @param tickLength in seconds
+	 */
+	private void createArrivals(double now, double tickLength)
+	{
+		if (nextArrival < 0)
+			nextArrival = workload.getNextArrival(this, now - tickLength, tickLength, rng);
+		
+		while (nextArrival <= now + ARRIVAL_TOLERANCE)
+		{
+			createCFP();
+			nextArrival = workload.getNextArrival(this, nextArrival, tickLength, rng);
+		}
+	}
+	
+	/**
+	 * create a CFP to a destination chosen by the workload generator
 	 * 
 	 * @return CallForProposalMessage if successful, null otherwise
 	 */
 	private CallForProposalMessage createCFP()
 	{
-		if (rng.nextDouble() >= cfpProbability)
-			return null;
-		
 		// choose a destination
-		PDPStation destination = getDestination(this);
+		PDPStation destination = workload.getDestination(this, rng);
 		if (destination == this)
 			return null;
 		
 		CallForProposalMessage retVal = transportAgent.createCFP(destination.location.get());
 
-		DeliveryRecorder.addDelivery(retVal, timeIndex);
+		context.getDeliveryRecorder().addDelivery(retVal, timeIndex);
+		if (retVal != null)
+			context.getIdlePositioning().recordCall(getId(), timeIndex);
 		
 		return retVal;
 	}
@@ -199,11 +240,33 @@ public class PDPStation
 	@Override
 	public void tick(TimeLapse timeLapse) 
 	{
-		timeIndex = timeLapse.getEndTime()/1000;
+		// in parallel mode, the phase ahead of the agents has done the work
+		if (!context.getConfig().isParallelTicking() 
+		 && !context.getConfig().isMailboxRuntime())
+			processTick(timeLapse);
+	}
+	
+	/**
+	 * handle messages, create CFPs and broadcast open calls
+	 * 
+	 * may run for several stations at once: besides this station and its own
+	 * records, it only writes the delivery recorder, the idle positioning
+	 * demand counts and, through the workload, the order trace, each of
+	 * which must stay safe for concurrent use
+	 * 
+	 * @param timeLapse
+	 */
+	void processTick(TimeLapse timeLapse)
+	{
+		timeIndex = context.getTimeIndex(timeLapse);
 		transportAgent.processMessages();
 		
-		// create a CFP, randomly
-		createCFP();
+		// create CFPs, randomly
+		double tickLength = timeLapse.getTickLength() / 1000d;
+		if (context.getConfig().isEventDrivenArrivals())
+			createArrivals(context.getTime(timeLapse), tickLength);
+		else
+			createCFPs(tickLength);
 		
 		transportAgent.broadcastCFPs();
 	}
@@ -216,6 +279,13 @@ public class PDPStation
 	}
 
 
+	/**
+	 * @return the generator used for creating CFPs
+	 */
+	RandomGenerator getRandomGenerator() {
+		return rng;
+	}
+
 	/**
 	 * @return the inboxSize
 	 */
@@ -256,8 +326,9 @@ public class PDPStation
 	 * 
 	 * @return true if location contains transport agent, false otherwise
 	 */
-	public static boolean isTransportAgentLocation(Optional<Point> location) {
-		for (PDPStation t : allTransportAgents)
+	public static boolean isTransportAgentLocation(SimulationContext ctx, 
+			Optional<Point> location) {
+		for (PDPStation t : ctx.getTransportAgents())
 		{
 			if (!location.isPresent())
 				return false;
@@ -315,4 +386,14 @@ public class PDPStation
 	public CommUser getCommUser() {
 		return this;
 	}
+
+	@Override
+	public SimulationContext getContext() {
+		return context;
+	}
+
+	@Override
+	public long getTimeIndex() {
+		return timeIndex;
+	}
 }
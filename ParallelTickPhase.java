@@ -0,0 +1,130 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * runs the protocol step of every agent in parallel at the start of a tick
+ *
+ * all AGVs handle their messages concurrently, then all PDP stations do;
+ * messages sent meanwhile are held in each agent's outbox and released at
+ * the end of the step, AGVs first and then stations, each in order of id.
+ * The outcome therefore only depends on the seed, not on thread timing.
+ * Moving along the road model remains in the AGVs' own tick, which runs
+ * sequentially after this phase.
+ *
+ * must be registered before all agents
+ */
+public class ParallelTickPhase implements TickListener {
+
+	/**
+	 * number of agents handled by a single task
+	 */
+	private static final int THRESHOLD = 4;
+
+	private final SimulationContext context;
+	private final ForkJoinPool pool;
+
+	ParallelTickPhase(SimulationContext ctx, ForkJoinPool p)
+	{
+		context = ctx;
+		pool = p;
+		context.setMessagePhase(true);
+	}
+
+	@Override
+	public void tick(final TimeLapse timeLapse)
+	{
+		final List<AGV> agvs = context.getAGVs();
+		final List<PDPStation> stations = context.getTransportAgents();
+
+		final boolean[] active = new boolean[agvs.size()];
+		for (int i = 0; i < agvs.size(); i++)
+		{
+			active[i] = agvs.get(i).acceptsMessages();
+			agvs.get(i).deliveryAgent.outbox.setBuffering(true);
+		}
+		for (PDPStation s : stations)
+		{
+			s.transportAgent.outbox.setBuffering(true);
+		}
+
+		pool.invoke(new Step(new AgentAction() {
+			@Override
+			public void process(int i)
+			{
+				if (active[i])
+					agvs.get(i).deliveryAgent.processMessages();
+			}
+		}, 0, agvs.size()));
+
+		pool.invoke(new Step(new AgentAction() {
+			@Override
+			public void process(int i)
+			{
+				stations.get(i).processTick(timeLapse);
+			}
+		}, 0, stations.size()));
+
+		// barrier: release all messages in a fixed order
+		for (AGV a : agvs)
+		{
+			a.deliveryAgent.outbox.setBuffering(false);
+			a.deliveryAgent.outbox.flush();
+		}
+		for (PDPStation s : stations)
+		{
+			s.transportAgent.outbox.setBuffering(false);
+			s.transportAgent.outbox.flush();
+		}
+	}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse) {}
+
+	/**
+	 * work done for the agent at a given index
+	 */
+	interface AgentAction
+	{
+		void process(int i);
+	}
+
+	/**
+	 * apply an action to a range of agent indices, splitting until the range
+	 * is small enough
+	 */
+	static class Step extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final AgentAction action;
+		private final int from;
+		private final int to;
+
+		Step(AgentAction a, int f, int t)
+		{
+			action = a;
+			from = f;
+			to = t;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= THRESHOLD)
+			{
+				for (int i = from; i < to; i++)
+				{
+					action.process(i);
+				}
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new Step(action, from, mid), new Step(action, mid, to));
+		}
+	}
+}
@@ -1,5 +1,3 @@
-import org.apache.commons.lang3.RandomStringUtils;
-
 import com.github.rinde.rinsim.core.model.comm.CommUser;
 
 public class Proposal extends ProtocolMessage {
@@ -7,14 +5,26 @@ public class Proposal extends ProtocolMessage {
 	double cost;
 	String proposalId;
 	int AVGId;
+	
+	/**
+	 * for a bundle bid, the contract the AGV executes first; null otherwise
+	 */
+	String chainedTo = null;
 
 
-	Proposal(CommUser s, CallForProposalMessage cfp, int avgID, double c) 
+	/**
+	 * @param ctx
+	 * @param s
+	 * @param cfp
+	 * @param avgID
+	 * @param c - cost
+	 * @param id - the proposal id, the AGV id and a counter of the AGV
+	 */
+	Proposal(SimulationContext ctx, CommUser s, CallForProposalMessage cfp, int avgID, double c, String id) 
 	{
-		super(s, ProtocolMessage.MessageType.PROPOSAL, cfp, true);
+		super(ctx, s, ProtocolMessage.MessageType.PROPOSAL, cfp, true);
 		cost = c;
-		// create a contract Id
-		proposalId = RandomStringUtils.randomAlphanumeric(4);
+		proposalId = id;
 		AVGId = avgID;
 	}
 	
@@ -34,6 +44,18 @@ public class Proposal extends ProtocolMessage {
 		cost = c;
 	}	
 
+	/**
+	 * @return the contract executed before this one, for a bundle bid, or 
+	 * null
+	 */
+	public String getChainedTo() {
+		return chainedTo;
+	}
+
+	public void setChainedTo(String contractId) {
+		chainedTo = contractId;
+	}
+
 	/**
 	 * @return the aVGId
 	 */
@@ -55,6 +77,11 @@ public class Proposal extends ProtocolMessage {
 		builder.append(proposalId);
 		builder.append(", cost=");
 		builder.append(cost);
+		if (chainedTo != null)
+		{
+			builder.append(", chainedTo=");
+			builder.append(chainedTo);
+		}
 		builder.append(", origin=");
 		builder.append(origin);
 		builder.append(", destination=");
@@ -22,10 +22,16 @@ public class ProtocolMessage implements MessageContents {
 		PARTICIPANT_NOT_IN_SCOPE,
 		TASK_IN_SCOPE,
 		TASK_NOT_IN_SCOPE,
+		
+		// AGV -> charge station
+		RESERVE_CHARGE,
+		RELEASE_CHARGE,
+		
+		// charge station -> AGV
+		CHARGE_CONFIRMED,
+		CHARGE_REFUSED,
 	};
 	
-	private static int msgCounter = 0;
-	
 	// type of message
 	MessageType type;
 	
@@ -58,7 +64,7 @@ public class ProtocolMessage implements MessageContents {
 	}
 	
 	
-	ProtocolMessage(CommUser s, MessageType t, ProtocolMessage m, boolean isResponse)
+	ProtocolMessage(SimulationContext ctx, CommUser s, MessageType t, ProtocolMessage m, boolean isResponse)
 	{
 		super();
 		contractId = m.contractId;
@@ -69,12 +75,11 @@ public class ProtocolMessage implements MessageContents {
 		destination = m.destination;
 		previousMessageId = (isResponse ? m.messageId : -1);
 
-		msgCounter++;
-		messageId = msgCounter;
+		messageId = ctx.nextMessageId();
 	}
 	
 	
-	ProtocolMessage(CommUser s, CommUser r, MessageType t, String cfp, Point a, Point b)
+	ProtocolMessage(SimulationContext ctx, CommUser s, CommUser r, MessageType t, String cfp, Point a, Point b)
 	{
 		super();
 		contractId = cfp;
@@ -84,15 +89,9 @@ public class ProtocolMessage implements MessageContents {
 		origin = a;
 		destination = b;
 		
-		msgCounter++;
-		messageId = msgCounter;
+		messageId = ctx.nextMessageId();
 	}
 	
-	public static int getMsgCounter() {
-		return msgCounter;
-	}
-
-
 	public MessageType getType() {
 		return type;
 	}
@@ -0,0 +1,996 @@
+/**
+ * tunable parameters of a single simulation run
+ *
+ * defaults reproduce the values used by {@link MASProject}
+ */
+public class SimulationConfig {
+
+	private long seed = 123L;
+	private long endTime = 10 * 60 * 1000L;
+	private int numAGVs = 12;
+	private int numStations = 14;
+	private double cfpProbability = 0.001;
+	private double agvCommRange = 15d;
+	private double stationCommRange = 12d;
+
+	private double chargeCapacity = 600d;
+	private double chargePerMetreEmpty = 0.2d;
+	private double chargePerMetreLoaded = 0.5d;
+	private double rechargeRate = 0.5d;
+	private double criticalChargeLevel = 60d;
+
+	private boolean verbose = true;
+	private boolean parallelBidEvaluation = false;
+	private boolean parallelTicking = false;
+	private boolean mailboxRuntime = false;
+	private int workerThreads = 0;
+
+	private long snapshotTime = -1L;
+	private String snapshotFile = null;
+	private String restoreFile = null;
+	private String exportFile = null;
+	private boolean evictDeliveries = false;
+	private boolean monitoring = false;
+	private boolean batchAssignment = false;
+	private int taskQueueLength = 0;
+	private boolean demandRepositioning = false;
+	private boolean opportunisticCharging = false;
+	private double topUpChargeLevel = 450;
+	private double topUpDistance = 20;
+	private double minimumChargeToLeave = 300;
+	private boolean chargeReservation = false;
+	private boolean staggeredCharging = false;
+	private double minAvailableShare = 0.8;
+	private double switchAbsoluteGain = 0;
+	private double switchRelativeGain = 0;
+	private int maxSwitchesPerContract = -1;
+
+	private WorkloadGenerator.Type workload = WorkloadGenerator.Type.BERNOULLI;
+	private double arrivalRate = -1;
+	private double burstFactor = 5;
+	private double meanBurstLength = 120;
+	private double meanQuietLength = 600;
+	private double[] dailyProfile = { 0.2, 0.2, 0.2, 0.2, 0.3, 0.6, 1.0, 1.4,
+		1.5, 1.3, 1.1, 1.0, 0.8, 1.0, 1.3, 1.5, 1.4, 1.1, 0.8, 0.6, 0.4, 0.3, 
+		0.2, 0.2 };
+	private long profileSlotLength = 3600;
+	private double[][] odMatrix = null;
+	private String traceFile = null;
+	private double traceSpeed = 1;
+	private boolean traceLoop = false;
+	private boolean congestionAwareRouting = false;
+	private double congestionWeight = 1d;
+	private boolean deadlockDetection = false;
+	private String heatmapFile = null;
+	private long heatmapInterval = 600L;
+	private boolean eventDrivenArrivals = false;
+	private boolean bundleBidding = false;
+	private double bundleRadius = 10;
+
+	public SimulationConfig() {}
+
+	/**
+	 * copy constructor, used when building parameter grids
+	 *
+	 * @param c
+	 */
+	public SimulationConfig(SimulationConfig c) {
+		seed = c.seed;
+		endTime = c.endTime;
+		numAGVs = c.numAGVs;
+		numStations = c.numStations;
+		cfpProbability = c.cfpProbability;
+		agvCommRange = c.agvCommRange;
+		stationCommRange = c.stationCommRange;
+		chargeCapacity = c.chargeCapacity;
+		chargePerMetreEmpty = c.chargePerMetreEmpty;
+		chargePerMetreLoaded = c.chargePerMetreLoaded;
+		rechargeRate = c.rechargeRate;
+		criticalChargeLevel = c.criticalChargeLevel;
+		verbose = c.verbose;
+		parallelBidEvaluation = c.parallelBidEvaluation;
+		parallelTicking = c.parallelTicking;
+		mailboxRuntime = c.mailboxRuntime;
+		workerThreads = c.workerThreads;
+		snapshotTime = c.snapshotTime;
+		snapshotFile = c.snapshotFile;
+		restoreFile = c.restoreFile;
+		exportFile = c.exportFile;
+		evictDeliveries = c.evictDeliveries;
+		monitoring = c.monitoring;
+		batchAssignment = c.batchAssignment;
+		taskQueueLength = c.taskQueueLength;
+		demandRepositioning = c.demandRepositioning;
+		opportunisticCharging = c.opportunisticCharging;
+		topUpChargeLevel = c.topUpChargeLevel;
+		topUpDistance = c.topUpDistance;
+		minimumChargeToLeave = c.minimumChargeToLeave;
+		chargeReservation = c.chargeReservation;
+		staggeredCharging = c.staggeredCharging;
+		minAvailableShare = c.minAvailableShare;
+		switchAbsoluteGain = c.switchAbsoluteGain;
+		switchRelativeGain = c.switchRelativeGain;
+		maxSwitchesPerContract = c.maxSwitchesPerContract;
+		workload = c.workload;
+		arrivalRate = c.arrivalRate;
+		burstFactor = c.burstFactor;
+		meanBurstLength = c.meanBurstLength;
+		meanQuietLength = c.meanQuietLength;
+		dailyProfile = c.dailyProfile;
+		profileSlotLength = c.profileSlotLength;
+		odMatrix = c.odMatrix;
+		traceFile = c.traceFile;
+		traceSpeed = c.traceSpeed;
+		traceLoop = c.traceLoop;
+		congestionAwareRouting = c.congestionAwareRouting;
+		congestionWeight = c.congestionWeight;
+		deadlockDetection = c.deadlockDetection;
+		heatmapFile = c.heatmapFile;
+		heatmapInterval = c.heatmapInterval;
+		eventDrivenArrivals = c.eventDrivenArrivals;
+		bundleBidding = c.bundleBidding;
+		bundleRadius = c.bundleRadius;
+	}
+
+	/**
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @param seed the seed to set
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the simulation end time in ms
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @param endTime the simulation end time in ms
+	 */
+	public void setEndTime(long endTime) {
+		this.endTime = endTime;
+	}
+
+	/**
+	 * @return the number of AGVs
+	 */
+	public int getNumAGVs() {
+		return numAGVs;
+	}
+
+	/**
+	 * @param numAGVs the number of AGVs; limited by the number of charge stations
+	 */
+	public void setNumAGVs(int numAGVs) {
+		this.numAGVs = numAGVs;
+	}
+
+	/**
+	 * @return the number of PDP stations
+	 */
+	public int getNumStations() {
+		return numStations;
+	}
+
+	/**
+	 * @param numStations the number of PDP stations
+	 */
+	public void setNumStations(int numStations) {
+		this.numStations = numStations;
+	}
+
+	/**
+	 * @return the per-tick probability of a station creating a CFP
+	 */
+	public double getCfpProbability() {
+		return cfpProbability;
+	}
+
+	/**
+	 * @param cfpProbability the per-tick probability of a station creating a CFP
+	 */
+	public void setCfpProbability(double cfpProbability) {
+		this.cfpProbability = cfpProbability;
+	}
+
+	/**
+	 * @return the agvCommRange
+	 */
+	public double getAgvCommRange() {
+		return agvCommRange;
+	}
+
+	/**
+	 * @param agvCommRange the agvCommRange to set
+	 */
+	public void setAgvCommRange(double agvCommRange) {
+		this.agvCommRange = agvCommRange;
+	}
+
+	/**
+	 * @return the stationCommRange
+	 */
+	public double getStationCommRange() {
+		return stationCommRange;
+	}
+
+	/**
+	 * @param stationCommRange the stationCommRange to set
+	 */
+	public void setStationCommRange(double stationCommRange) {
+		this.stationCommRange = stationCommRange;
+	}
+
+	/**
+	 * @return the chargeCapacity
+	 */
+	public double getChargeCapacity() {
+		return chargeCapacity;
+	}
+
+	/**
+	 * @param chargeCapacity the chargeCapacity to set
+	 */
+	public void setChargeCapacity(double chargeCapacity) {
+		this.chargeCapacity = chargeCapacity;
+	}
+
+	/**
+	 * @return the chargePerMetreEmpty
+	 */
+	public double getChargePerMetreEmpty() {
+		return chargePerMetreEmpty;
+	}
+
+	/**
+	 * @param chargePerMetreEmpty the chargePerMetreEmpty to set
+	 */
+	public void setChargePerMetreEmpty(double chargePerMetreEmpty) {
+		this.chargePerMetreEmpty = chargePerMetreEmpty;
+	}
+
+	/**
+	 * @return the chargePerMetreLoaded
+	 */
+	public double getChargePerMetreLoaded() {
+		return chargePerMetreLoaded;
+	}
+
+	/**
+	 * @param chargePerMetreLoaded the chargePerMetreLoaded to set
+	 */
+	public void setChargePerMetreLoaded(double chargePerMetreLoaded) {
+		this.chargePerMetreLoaded = chargePerMetreLoaded;
+	}
+
+	/**
+	 * @return the rechargeRate
+	 */
+	public double getRechargeRate() {
+		return rechargeRate;
+	}
+
+	/**
+	 * @param rechargeRate the rechargeRate to set
+	 */
+	public void setRechargeRate(double rechargeRate) {
+		this.rechargeRate = rechargeRate;
+	}
+
+	/**
+	 * @return the criticalChargeLevel
+	 */
+	public double getCriticalChargeLevel() {
+		return criticalChargeLevel;
+	}
+
+	/**
+	 * @param criticalChargeLevel the criticalChargeLevel to set
+	 */
+	public void setCriticalChargeLevel(double criticalChargeLevel) {
+		this.criticalChargeLevel = criticalChargeLevel;
+	}
+
+	/**
+	 * @return whether agents print protocol and heading messages
+	 */
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * @param verbose whether agents print protocol and heading messages
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @return whether CFP costs of all AGVs are evaluated in parallel at the
+	 * start of each tick
+	 */
+	public boolean isParallelBidEvaluation() {
+		return parallelBidEvaluation;
+	}
+
+	/**
+	 * @param parallelBidEvaluation whether CFP costs of all AGVs are evaluated
+	 * in parallel at the start of each tick
+	 */
+	public void setParallelBidEvaluation(boolean parallelBidEvaluation) {
+		this.parallelBidEvaluation = parallelBidEvaluation;
+	}
+
+	/**
+	 * @return whether the protocol step of all agents runs in parallel, with
+	 * messages released at the end of the step
+	 */
+	public boolean isParallelTicking() {
+		return parallelTicking;
+	}
+
+	/**
+	 * @param parallelTicking whether the protocol step of all agents runs in
+	 * parallel, with messages released at the end of the step
+	 */
+	public void setParallelTicking(boolean parallelTicking) {
+		this.parallelTicking = parallelTicking;
+	}
+
+	/**
+	 * @return whether agents are run by a {@link MailboxRuntime}
+	 */
+	public boolean isMailboxRuntime() {
+		return mailboxRuntime;
+	}
+
+	/**
+	 * @param mailboxRuntime whether agents are run by a {@link MailboxRuntime}
+	 */
+	public void setMailboxRuntime(boolean mailboxRuntime) {
+		this.mailboxRuntime = mailboxRuntime;
+	}
+
+	/**
+	 * @return the number of worker threads of the mailbox runtime; 0 uses 
+	 * all cores
+	 */
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * @param workerThreads the number of worker threads of the mailbox 
+	 * runtime; 0 uses all cores
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @return simulated time in ms at which a snapshot is written, or -1
+	 */
+	public long getSnapshotTime() {
+		return snapshotTime;
+	}
+
+	/**
+	 * @param snapshotTime simulated time in ms at which a snapshot is 
+	 * written, or -1
+	 */
+	public void setSnapshotTime(long snapshotTime) {
+		this.snapshotTime = snapshotTime;
+	}
+
+	/**
+	 * @return the file a snapshot is written to
+	 */
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @param snapshotFile the file a snapshot is written to
+	 */
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	/**
+	 * @return the snapshot to start from, or null to start empty
+	 */
+	public String getRestoreFile() {
+		return restoreFile;
+	}
+
+	/**
+	 * @param restoreFile the snapshot to start from, or null to start empty
+	 */
+	public void setRestoreFile(String restoreFile) {
+		this.restoreFile = restoreFile;
+	}
+
+	/**
+	 * @return the file delivery records are exported to, or null
+	 */
+	public String getExportFile() {
+		return exportFile;
+	}
+
+	/**
+	 * @param exportFile the file delivery records are exported to, or null
+	 */
+	public void setExportFile(String exportFile) {
+		this.exportFile = exportFile;
+	}
+
+	/**
+	 * @return whether finished delivery records are moved from the heap to
+	 * the export file
+	 */
+	public boolean isEvictDeliveries() {
+		return evictDeliveries;
+	}
+
+	/**
+	 * @param evictDeliveries whether finished delivery records are moved 
+	 * from the heap to the export file; without an export file, a temporary
+	 * file is used
+	 */
+	public void setEvictDeliveries(boolean evictDeliveries) {
+		this.evictDeliveries = evictDeliveries;
+	}
+
+	/**
+	 * @return whether headless runs publish their metrics through JMX
+	 */
+	public boolean isMonitoring() {
+		return monitoring;
+	}
+
+	/**
+	 * @param monitoring whether headless runs publish their metrics through
+	 * JMX
+	 */
+	public void setMonitoring(boolean monitoring) {
+		this.monitoring = monitoring;
+	}
+
+	/**
+	 * @return whether calls are assigned by a {@link BatchDispatcher} 
+	 * instead of by each station
+	 */
+	public boolean isBatchAssignment() {
+		return batchAssignment;
+	}
+
+	/**
+	 * @param batchAssignment whether calls are assigned by a 
+	 * {@link BatchDispatcher} instead of by each station
+	 */
+	public void setBatchAssignment(boolean batchAssignment) {
+		this.batchAssignment = batchAssignment;
+	}
+
+	/**
+	 * @return the number of contracts an AGV may commit to after its 
+	 * current one
+	 */
+	public int getTaskQueueLength() {
+		return taskQueueLength;
+	}
+
+	/**
+	 * @param taskQueueLength the number of contracts an AGV may commit to 
+	 * after its current one
+	 */
+	public void setTaskQueueLength(int taskQueueLength) {
+		this.taskQueueLength = taskQueueLength;
+	}
+
+	/**
+	 * @return whether AGVs executing a contract bid on calls they can chain
+	 * after it
+	 */
+	public boolean isBundleBidding() {
+		return bundleBidding;
+	}
+
+	/**
+	 * @param bundleBidding whether AGVs executing a contract bid on calls 
+	 * they can chain after it
+	 */
+	public void setBundleBidding(boolean bundleBidding) {
+		this.bundleBidding = bundleBidding;
+	}
+
+	/**
+	 * @return the largest distance between a drop-off and the pickup of a 
+	 * call chained after it
+	 */
+	public double getBundleRadius() {
+		return bundleRadius;
+	}
+
+	/**
+	 * @param bundleRadius the largest distance between a drop-off and the
+	 * pickup of a call chained after it
+	 */
+	public void setBundleRadius(double bundleRadius) {
+		this.bundleRadius = bundleRadius;
+	}
+
+	/**
+	 * @return whether idle AGVs wait near the stations where calls are 
+	 * expected, instead of roaming at random
+	 */
+	public boolean isDemandRepositioning() {
+		return demandRepositioning;
+	}
+
+	/**
+	 * @param demandRepositioning whether idle AGVs wait near the stations 
+	 * where calls are expected, instead of roaming at random
+	 */
+	public void setDemandRepositioning(boolean demandRepositioning) {
+		this.demandRepositioning = demandRepositioning;
+	}
+
+	/**
+	 * @return whether idle AGVs top up at nearby charge stations while 
+	 * demand is low, and may leave a charge station early for a contract
+	 */
+	public boolean isOpportunisticCharging() {
+		return opportunisticCharging;
+	}
+
+	/**
+	 * @param opportunisticCharging whether idle AGVs top up at nearby charge
+	 * stations while demand is low, and may leave a charge station early 
+	 * for a contract
+	 */
+	public void setOpportunisticCharging(boolean opportunisticCharging) {
+		this.opportunisticCharging = opportunisticCharging;
+	}
+
+	/**
+	 * @return the charge level below which an idle AGV tops up
+	 */
+	public double getTopUpChargeLevel() {
+		return topUpChargeLevel;
+	}
+
+	/**
+	 * @param topUpChargeLevel the charge level below which an idle AGV tops
+	 * up
+	 */
+	public void setTopUpChargeLevel(double topUpChargeLevel) {
+		this.topUpChargeLevel = topUpChargeLevel;
+	}
+
+	/**
+	 * @return the largest distance an idle AGV travels to top up
+	 */
+	public double getTopUpDistance() {
+		return topUpDistance;
+	}
+
+	/**
+	 * @param topUpDistance the largest distance an idle AGV travels to top 
+	 * up
+	 */
+	public void setTopUpDistance(double topUpDistance) {
+		this.topUpDistance = topUpDistance;
+	}
+
+	/**
+	 * @return the charge level from which charging may be cut short for a 
+	 * contract
+	 */
+	public double getMinimumChargeToLeave() {
+		return minimumChargeToLeave;
+	}
+
+	/**
+	 * @param minimumChargeToLeave the charge level from which charging may 
+	 * be cut short for a contract
+	 */
+	public void setMinimumChargeToLeave(double minimumChargeToLeave) {
+		this.minimumChargeToLeave = minimumChargeToLeave;
+	}
+
+	/**
+	 * @return whether AGVs book a slot at a charge station before heading 
+	 * there
+	 */
+	public boolean isChargeReservation() {
+		return chargeReservation;
+	}
+
+	/**
+	 * @param chargeReservation whether AGVs book a slot at a charge station 
+	 * before heading there
+	 */
+	public void setChargeReservation(boolean chargeReservation) {
+		this.chargeReservation = chargeReservation;
+	}
+
+	/**
+	 * @return whether charging is staggered over the fleet
+	 */
+	public boolean isStaggeredCharging() {
+		return staggeredCharging;
+	}
+
+	/**
+	 * @param staggeredCharging whether charging is staggered over the fleet
+	 */
+	public void setStaggeredCharging(boolean staggeredCharging) {
+		this.staggeredCharging = staggeredCharging;
+	}
+
+	/**
+	 * @return the share of the fleet kept available for contracts when 
+	 * charging is staggered
+	 */
+	public double getMinAvailableShare() {
+		return minAvailableShare;
+	}
+
+	/**
+	 * @param minAvailableShare the share of the fleet kept available for 
+	 * contracts when charging is staggered
+	 */
+	public void setMinAvailableShare(double minAvailableShare) {
+		this.minAvailableShare = minAvailableShare;
+	}
+
+	/**
+	 * @return the smallest cost saving, in metres, for which a contract is 
+	 * switched to another AGV or an AGV switches contracts
+	 */
+	public double getSwitchAbsoluteGain() {
+		return switchAbsoluteGain;
+	}
+
+	/**
+	 * @param switchAbsoluteGain the smallest cost saving, in metres, for 
+	 * which a contract is switched to another AGV or an AGV switches 
+	 * contracts
+	 */
+	public void setSwitchAbsoluteGain(double switchAbsoluteGain) {
+		this.switchAbsoluteGain = switchAbsoluteGain;
+	}
+
+	/**
+	 * @return the smallest cost saving, as a fraction of the current cost, 
+	 * for which a contract is switched to another AGV or an AGV switches 
+	 * contracts
+	 */
+	public double getSwitchRelativeGain() {
+		return switchRelativeGain;
+	}
+
+	/**
+	 * @param switchRelativeGain the smallest cost saving, as a fraction of 
+	 * the current cost, for which a contract is switched to another AGV or 
+	 * an AGV switches contracts
+	 */
+	public void setSwitchRelativeGain(double switchRelativeGain) {
+		this.switchRelativeGain = switchRelativeGain;
+	}
+
+	/**
+	 * @return how often a contract may be moved to another AGV, and an AGV 
+	 * may switch before picking up; -1 for no limit
+	 */
+	public int getMaxSwitchesPerContract() {
+		return maxSwitchesPerContract;
+	}
+
+	/**
+	 * @param maxSwitchesPerContract how often a contract may be moved to 
+	 * another AGV, and an AGV may switch before picking up; -1 for no limit
+	 */
+	public void setMaxSwitchesPerContract(int maxSwitchesPerContract) {
+		this.maxSwitchesPerContract = maxSwitchesPerContract;
+	}
+
+	/**
+	 * @return the generator of calls at each station
+	 */
+	public WorkloadGenerator.Type getWorkload() {
+		return workload;
+	}
+
+	/**
+	 * @param workload the generator of calls at each station
+	 */
+	public void setWorkload(WorkloadGenerator.Type workload) {
+		this.workload = workload;
+	}
+
+	/**
+	 * @return the mean rate of calls per station, in calls per second; 
+	 * unless set, cfpProbability per second
+	 */
+	public double getArrivalRate() {
+		return (arrivalRate >= 0 ? arrivalRate : cfpProbability);
+	}
+
+	/**
+	 * @param arrivalRate the mean rate of calls per station, in calls per 
+	 * second; -1 for cfpProbability per second
+	 */
+	public void setArrivalRate(double arrivalRate) {
+		this.arrivalRate = arrivalRate;
+	}
+
+	/**
+	 * @return how many times the rate is higher in a burst than outside, 
+	 * for a BURSTY workload
+	 */
+	public double getBurstFactor() {
+		return burstFactor;
+	}
+
+	/**
+	 * @param burstFactor how many times the rate is higher in a burst than
+	 * outside, for a BURSTY workload
+	 */
+	public void setBurstFactor(double burstFactor) {
+		this.burstFactor = burstFactor;
+	}
+
+	/**
+	 * @return the mean length of a burst, in seconds
+	 */
+	public double getMeanBurstLength() {
+		return meanBurstLength;
+	}
+
+	/**
+	 * @param meanBurstLength the mean length of a burst, in seconds
+	 */
+	public void setMeanBurstLength(double meanBurstLength) {
+		this.meanBurstLength = meanBurstLength;
+	}
+
+	/**
+	 * @return the mean time between bursts, in seconds
+	 */
+	public double getMeanQuietLength() {
+		return meanQuietLength;
+	}
+
+	/**
+	 * @param meanQuietLength the mean time between bursts, in seconds
+	 */
+	public void setMeanQuietLength(double meanQuietLength) {
+		this.meanQuietLength = meanQuietLength;
+	}
+
+	/**
+	 * @return the factor applied to the rate in each slot, for a 
+	 * TIME_OF_DAY workload; the profile repeats
+	 */
+	public double[] getDailyProfile() {
+		return dailyProfile;
+	}
+
+	/**
+	 * @param dailyProfile the factor applied to the rate in each slot, for 
+	 * a TIME_OF_DAY workload; the profile repeats
+	 */
+	public void setDailyProfile(double[] dailyProfile) {
+		this.dailyProfile = dailyProfile;
+	}
+
+	/**
+	 * @return the length of a slot of the daily profile, in seconds
+	 */
+	public long getProfileSlotLength() {
+		return profileSlotLength;
+	}
+
+	/**
+	 * @param profileSlotLength the length of a slot of the daily profile, 
+	 * in seconds; shorter slots compress the day
+	 */
+	public void setProfileSlotLength(long profileSlotLength) {
+		this.profileSlotLength = profileSlotLength;
+	}
+
+	/**
+	 * @return relative weights of calls between stations, by order of 
+	 * registration, for an ORIGIN_DESTINATION workload; null for uniform
+	 */
+	public double[][] getOdMatrix() {
+		return odMatrix;
+	}
+
+	/**
+	 * @param odMatrix relative weights of calls between stations, by order 
+	 * of registration, for an ORIGIN_DESTINATION workload; null for uniform
+	 */
+	public void setOdMatrix(double[][] odMatrix) {
+		this.odMatrix = odMatrix;
+	}
+
+	/**
+	 * @return the file of orders replayed by a TRACE workload
+	 */
+	public String getTraceFile() {
+		return traceFile;
+	}
+
+	/**
+	 * @param traceFile the file of orders replayed by a TRACE workload
+	 */
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	/**
+	 * @return how many times faster than recorded orders are replayed
+	 */
+	public double getTraceSpeed() {
+		return traceSpeed;
+	}
+
+	/**
+	 * @param traceSpeed how many times faster than recorded orders are 
+	 * replayed, e.g. 100
+	 */
+	public void setTraceSpeed(double traceSpeed) {
+		this.traceSpeed = traceSpeed;
+	}
+
+	/**
+	 * @return whether the trace starts over once replayed
+	 */
+	public boolean isTraceLoop() {
+		return traceLoop;
+	}
+
+	/**
+	 * @param traceLoop whether the trace starts over once replayed
+	 */
+	public void setTraceLoop(boolean traceLoop) {
+		this.traceLoop = traceLoop;
+	}
+
+	/**
+	 * @return whether routes and contract costs weigh edges by congestion
+	 */
+	public boolean isCongestionAwareRouting() {
+		return congestionAwareRouting;
+	}
+
+	/**
+	 * @param congestionAwareRouting whether routes and contract costs weigh 
+	 * edges by congestion
+	 */
+	public void setCongestionAwareRouting(boolean congestionAwareRouting) {
+		this.congestionAwareRouting = congestionAwareRouting;
+	}
+
+	/**
+	 * @return the extra cost of an edge per AGV on it, relative to its length
+	 */
+	public double getCongestionWeight() {
+		return congestionWeight;
+	}
+
+	/**
+	 * @param congestionWeight the extra cost of an edge per AGV on it, 
+	 * relative to its length
+	 */
+	public void setCongestionWeight(double congestionWeight) {
+		this.congestionWeight = congestionWeight;
+	}
+
+	/**
+	 * @return whether deadlocks are found over the fleet and broken by 
+	 * letting one AGV step aside
+	 */
+	public boolean isDeadlockDetection() {
+		return deadlockDetection;
+	}
+
+	/**
+	 * @param deadlockDetection whether deadlocks are found over the fleet 
+	 * and broken by letting one AGV step aside
+	 */
+	public void setDeadlockDetection(boolean deadlockDetection) {
+		this.deadlockDetection = deadlockDetection;
+	}
+
+	/**
+	 * @return the file the per-connection traffic heatmap is written to, 
+	 * or null
+	 */
+	public String getHeatmapFile() {
+		return heatmapFile;
+	}
+
+	/**
+	 * @param heatmapFile the file the per-connection traffic heatmap is 
+	 * written to, or null
+	 */
+	public void setHeatmapFile(String heatmapFile) {
+		this.heatmapFile = heatmapFile;
+	}
+
+	/**
+	 * @return seconds between heatmap snapshots, 0 for the final table only
+	 */
+	public long getHeatmapInterval() {
+		return heatmapInterval;
+	}
+
+	/**
+	 * @param heatmapInterval seconds between heatmap snapshots, 0 for the 
+	 * final table only
+	 */
+	public void setHeatmapInterval(long heatmapInterval) {
+		this.heatmapInterval = heatmapInterval;
+	}
+
+	/**
+	 * @return whether stations draw the time of their next call rather 
+	 * than deciding every tick whether to create one
+	 */
+	public boolean isEventDrivenArrivals() {
+		return eventDrivenArrivals;
+	}
+
+	/**
+	 * @param eventDrivenArrivals whether stations draw the time of their 
+	 * next call rather than deciding every tick whether to create one
+	 */
+	public void setEventDrivenArrivals(boolean eventDrivenArrivals) {
+		this.eventDrivenArrivals = eventDrivenArrivals;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SimulationConfig [seed=");
+		builder.append(seed);
+		builder.append(", endTime=");
+		builder.append(endTime);
+		builder.append(", numAGVs=");
+		builder.append(numAGVs);
+		builder.append(", numStations=");
+		builder.append(numStations);
+		builder.append(", cfpProbability=");
+		builder.append(cfpProbability);
+		builder.append(", workload=");
+		builder.append(workload);
+		builder.append(", arrivalRate=");
+		builder.append(getArrivalRate());
+		builder.append(", agvCommRange=");
+		builder.append(agvCommRange);
+		builder.append(", stationCommRange=");
+		builder.append(stationCommRange);
+		builder.append(", chargeCapacity=");
+		builder.append(chargeCapacity);
+		builder.append(", criticalChargeLevel=");
+		builder.append(criticalChargeLevel);
+		builder.append("]");
+		return builder.toString();
+	}
+}
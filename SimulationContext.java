@@ -0,0 +1,487 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Graph;
+
+/**
+ * holds all state belonging to a single simulation run
+ *
+ * every agent is handed the context of the simulator it is registered with,
+ * so that several simulators can run side by side in the same JVM without
+ * sharing station lists, id counters or delivery records
+ */
+public class SimulationContext {
+
+	private final SimulationConfig config;
+
+	/**
+	 * all AGVs in this simulation, in order of id
+	 */
+	private final ArrayList<AGV> agvs = new ArrayList<AGV>();
+
+	/**
+	 * all transport agents (PDP stations) in this simulation
+	 */
+	private final ArrayList<PDPStation> transportAgents = new ArrayList<PDPStation>();
+
+	/**
+	 * the transport agents by id; in zoned runs, ids are those over the 
+	 * whole layout
+	 */
+	private final Map<Integer, PDPStation> transportAgentsById = new HashMap<Integer, PDPStation>();
+
+	/**
+	 * all charge stations in this simulation
+	 */
+	private final ArrayList<ChargeStation> chargeStations = new ArrayList<ChargeStation>();
+
+	/**
+	 * delivery records for this simulation
+	 */
+	private final DeliveryRecorder deliveryRecorder = new DeliveryRecorder();
+
+	/**
+	 * demand estimate used to position idle AGVs
+	 */
+	private final IdlePositioning idlePositioning = new IdlePositioning(this);
+	private ChargingScheduler chargingScheduler = null;
+	private OrderTrace orderTrace = null;
+	private TrafficModel trafficModel = null;
+	private DeadlockDetector deadlockDetector = null;
+	private TrafficHeatmap trafficHeatmap = null;
+	private MailboxRuntime mailboxRuntime = null;
+	private EdgeIndex edgeIndex = null;
+	private ZoneProcess zoneProcess = null;
+
+	private int agvCounter = 0;
+	private int transportAgentCounter = 0;
+
+	/**
+	 * simulated time already passed before the simulator started, in ms;
+	 * non-zero for a run restored from a snapshot
+	 */
+	private long timeOffset = 0;
+
+	/**
+	 * master generator of the simulator
+	 */
+	private RandomGenerator rng;
+	private final AtomicInteger msgCounter = new AtomicInteger();
+
+	/**
+	 * whether protocol messages are handled by a phase ahead of the agents
+	 */
+	private boolean messagePhase = false;
+
+	SimulationContext()
+	{
+		this(new SimulationConfig());
+	}
+
+	SimulationContext(SimulationConfig c)
+	{
+		config = c;
+	}
+
+	/**
+	 * register a transport agent
+	 *
+	 * @param t
+	 * @return the id of the transport agent, starting from 1
+	 */
+	int addTransportAgent(PDPStation t)
+	{
+		transportAgents.add(t);
+		transportAgentsById.put(++transportAgentCounter, t);
+		return transportAgentCounter;
+	}
+
+	/**
+	 * pass over the id of a transport agent registered in another zone, so 
+	 * every zone numbers agents as a run over the whole layout would
+	 */
+	void skipTransportAgentId()
+	{
+		transportAgentCounter++;
+	}
+
+	/**
+	 * pass over the id of an AGV registered in another zone
+	 */
+	void skipAGVId()
+	{
+		agvCounter++;
+	}
+
+	/**
+	 * register a charge station
+	 *
+	 * @param c
+	 * @return the id of the charge station, starting from 1
+	 */
+	int addChargeStation(ChargeStation c)
+	{
+		chargeStations.add(c);
+		return chargeStations.size();
+	}
+
+	/**
+	 * register an AGV
+	 *
+	 * @param a
+	 * @return the id of the AGV, starting from 0
+	 */
+	int addAGV(AGV a)
+	{
+		return addAGV(a, -1);
+	}
+
+	/**
+	 * register an AGV with a given id
+	 *
+	 * @param a
+	 * @param id - the id, or -1 for the next free id
+	 * @return the id of the AGV
+	 */
+	int addAGV(AGV a, int id)
+	{
+		agvs.add(a);
+		if (id < 0)
+			return agvCounter++;
+
+		agvCounter = Math.max(agvCounter, id + 1);
+		return id;
+	}
+
+	/**
+	 * remove an AGV which has left this simulation
+	 *
+	 * @param a
+	 */
+	void removeAGV(AGV a)
+	{
+		agvs.remove(a);
+	}
+
+	/**
+	 * @return the next protocol message id, starting from 1
+	 */
+	int nextMessageId()
+	{
+		return msgCounter.incrementAndGet();
+	}
+
+	/**
+	 * print a trace message, unless running quietly
+	 *
+	 * @param msg
+	 */
+	void log(String msg)
+	{
+		if (config.isVerbose())
+			System.out.println(msg);
+	}
+
+	/**
+	 * @param b whether protocol messages are handled by a phase ahead of the
+	 * agents' own tick
+	 */
+	void setMessagePhase(boolean b)
+	{
+		messagePhase = b;
+	}
+
+	/**
+	 * @return whether protocol messages are handled by a phase ahead of the
+	 * agents' own tick
+	 */
+	boolean hasMessagePhase()
+	{
+		return messagePhase;
+	}
+
+	/**
+	 * @param t simulated time passed before the simulator started, in ms
+	 */
+	void setTimeOffset(long t)
+	{
+		timeOffset = t;
+	}
+
+	/**
+	 * @return simulated time passed before the simulator started, in ms
+	 */
+	long getTimeOffset()
+	{
+		return timeOffset;
+	}
+
+	/**
+	 * @param timeLapse
+	 * @return the simulated time at the end of the tick, in seconds
+	 */
+	long getTimeIndex(TimeLapse timeLapse)
+	{
+		return (timeLapse.getEndTime() + timeOffset) / 1000;
+	}
+
+	/**
+	 * @param timeLapse
+	 * @return end of the tick in seconds, unrounded
+	 */
+	double getTime(TimeLapse timeLapse)
+	{
+		return (timeLapse.getEndTime() + timeOffset) / 1000d;
+	}
+
+	/**
+	 * @param r master generator of the simulator
+	 */
+	void setRandomGenerator(RandomGenerator r)
+	{
+		rng = r;
+	}
+
+	/**
+	 * @return master generator of the simulator
+	 */
+	RandomGenerator getRandomGenerator()
+	{
+		return rng;
+	}
+
+	/**
+	 * @return the config
+	 */
+	public SimulationConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * @return the number of protocol messages created so far
+	 */
+	public int getMsgCounter() {
+		return msgCounter.get();
+	}
+
+	/**
+	 * @return the AGVs
+	 */
+	public List<AGV> getAGVs() {
+		return agvs;
+	}
+
+	/**
+	 * @return the transport agents
+	 */
+	public List<PDPStation> getTransportAgents() {
+		return transportAgents;
+	}
+
+	/**
+	 * @param id
+	 * @return the transport agent with this id, or null if there is none
+	 * in this simulation
+	 */
+	PDPStation getTransportAgent(int id) {
+		return transportAgentsById.get(id);
+	}
+
+	/**
+	 * @return the charge stations
+	 */
+	public List<ChargeStation> getChargeStations() {
+		return chargeStations;
+	}
+
+	/**
+	 * @return the deliveryRecorder
+	 */
+	public DeliveryRecorder getDeliveryRecorder() {
+		return deliveryRecorder;
+	}
+
+	/**
+	 * @return the idlePositioning
+	 */
+	public IdlePositioning getIdlePositioning() {
+		return idlePositioning;
+	}
+
+	/**
+	 * @return the charging scheduler, or null if charging is not scheduled
+	 */
+	public ChargingScheduler getChargingScheduler() {
+		return chargingScheduler;
+	}
+
+	/**
+	 * @param s
+	 */
+	void setChargingScheduler(ChargingScheduler s)
+	{
+		chargingScheduler = s;
+	}
+
+	/**
+	 * @return the congestion-aware edge costs, or null if routes ignore 
+	 * congestion
+	 */
+	public TrafficModel getTrafficModel() {
+		return trafficModel;
+	}
+
+	/**
+	 * @param m
+	 */
+	void setTrafficModel(TrafficModel m)
+	{
+		trafficModel = m;
+	}
+
+	/**
+	 * @return the fleet-level deadlock detector, or null if AGVs only 
+	 * reroute by themselves
+	 */
+	public DeadlockDetector getDeadlockDetector() {
+		return deadlockDetector;
+	}
+
+	/**
+	 * @param d
+	 */
+	void setDeadlockDetector(DeadlockDetector d)
+	{
+		deadlockDetector = d;
+	}
+
+	/**
+	 * @return the per-connection traffic counters, or null if not kept
+	 */
+	public TrafficHeatmap getTrafficHeatmap() {
+		return trafficHeatmap;
+	}
+
+	/**
+	 * @param h
+	 */
+	void setTrafficHeatmap(TrafficHeatmap h)
+	{
+		trafficHeatmap = h;
+	}
+
+	/**
+	 * @param z the zone this simulation is part of
+	 */
+	void setZoneProcess(ZoneProcess z)
+	{
+		zoneProcess = z;
+	}
+
+	/**
+	 * in a zoned run an AGV is replaced when it moves to another zone, so 
+	 * references held to it go stale
+	 *
+	 * @param u
+	 * @return where messages for u go now: u itself, or the AGV or stand-in 
+	 * which replaced it
+	 */
+	CommUser resolve(CommUser u)
+	{
+		return (zoneProcess == null ? u : zoneProcess.resolve(u));
+	}
+
+	/**
+	 * @param g the graph of the road model
+	 * @return the numbering of the nodes and connections of g, created on 
+	 * first use
+	 */
+	synchronized EdgeIndex getEdgeIndex(Graph<?> g)
+	{
+		if (edgeIndex == null)
+			edgeIndex = new EdgeIndex(g);
+		return edgeIndex;
+	}
+
+	/**
+	 * @return the order trace replayed by the stations, opened on first use
+	 */
+	synchronized OrderTrace getOrderTrace()
+	{
+		if (orderTrace == null)
+		{
+			try
+			{
+				orderTrace = new OrderTrace(this, new File(config.getTraceFile()),
+					config.getTraceSpeed(), config.isTraceLoop());
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("cannot open order trace", e);
+			}
+		}
+		return orderTrace;
+	}
+
+	/**
+	 * close the order trace, if one was opened
+	 */
+	synchronized void closeOrderTrace()
+	{
+		if (orderTrace == null)
+			return;
+
+		try
+		{
+			orderTrace.close();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot close order trace", e);
+		}
+	}
+
+	/**
+	 * @param m
+	 */
+	void setMailboxRuntime(MailboxRuntime m)
+	{
+		mailboxRuntime = m;
+	}
+
+	/**
+	 * stop the worker threads of the mailbox runtime, if one was used
+	 */
+	void closeMailboxRuntime()
+	{
+		if (mailboxRuntime != null)
+			mailboxRuntime.close();
+	}
+
+	/**
+	 * write the final traffic heatmap, if counters were kept
+	 */
+	void closeTrafficHeatmap()
+	{
+		if (trafficHeatmap == null)
+			return;
+
+		try
+		{
+			trafficHeatmap.close();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("cannot write traffic heatmap", e);
+		}
+	}
+}
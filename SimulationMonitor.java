@@ -0,0 +1,396 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+
+/**
+ * publishes metrics of a running simulation as MBeans, for JConsole and
+ * other JMX clients
+ *
+ * the monitor samples the agents on the simulation thread, after each
+ * SAMPLE_INTERVAL of simulated time, and keeps the results in volatile
+ * fields; JMX reads only those, so it never touches agent state and costs
+ * the simulation nothing between samples. Stations and outboxes keep
+ * running counts, so a sample is linear in the number of agents.
+ *
+ * one fleet MBean is registered per simulation, plus one MBean per AGV and
+ * per station, named
+ * <pre>
+ * MASProject:sim=&lt;n&gt;,type=Fleet
+ * MASProject:sim=&lt;n&gt;,type=AGV,id=&lt;id&gt;
+ * MASProject:sim=&lt;n&gt;,type=Station,id=&lt;id&gt;
+ * </pre>
+ *
+ * must be registered after all agents
+ */
+public class SimulationMonitor implements TickListener, SimulationMonitorMXBean {
+
+	static final long SAMPLE_INTERVAL = 5000L;
+	static final int CHARGE_BUCKETS = 10;
+
+	private static final AtomicInteger simCounter = new AtomicInteger();
+
+	/**
+	 * metrics of one AGV
+	 */
+	public interface AGVMXBean
+	{
+		public String getHeading();
+		public double getChargeLevel();
+		public String getState();
+		public String getContractId();
+		public long getMessageCount();
+	}
+
+	/**
+	 * metrics of one station
+	 */
+	public interface StationMXBean
+	{
+		public Map<String, Integer> getContractStateCounts();
+		public int getCfpCount();
+		public long getMessageCount();
+	}
+
+	static class AGVBean implements AGVMXBean
+	{
+		volatile String heading;
+		volatile double chargeLevel;
+		volatile String state;
+		volatile String contractId;
+		volatile long messageCount;
+
+		void sample(AGV a)
+		{
+			heading = String.valueOf(a.getHeading());
+			chargeLevel = a.getChargeLevel();
+			state = String.valueOf(a.getState());
+			Proposal p = a.deliveryAgent.getContract();
+			contractId = (p != null ? p.getContractId() : null);
+			messageCount = a.deliveryAgent.outbox.getMessageCount();
+		}
+
+		@Override
+		public String getHeading() {
+			return heading;
+		}
+
+		@Override
+		public double getChargeLevel() {
+			return chargeLevel;
+		}
+
+		@Override
+		public String getState() {
+			return state;
+		}
+
+		@Override
+		public String getContractId() {
+			return contractId;
+		}
+
+		@Override
+		public long getMessageCount() {
+			return messageCount;
+		}
+	}
+
+	static class StationBean implements StationMXBean
+	{
+		volatile int[] stateCounts = new int[0];
+		volatile int cfpCount;
+		volatile long messageCount;
+
+		void sample(PDPStation s)
+		{
+			int[] counts = new int[ContractNet.TransportAgentState.values().length];
+			for (ContractNet.TransportAgentState st : ContractNet.TransportAgentState.values())
+				counts[st.ordinal()] = s.transportAgent.getStateCount(st);
+			stateCounts = counts;
+			cfpCount = s.transportAgent.getCfpCounter();
+			messageCount = s.transportAgent.outbox.getMessageCount();
+		}
+
+		@Override
+		public Map<String, Integer> getContractStateCounts() {
+			return toMap(ContractNet.TransportAgentState.values(), stateCounts);
+		}
+
+		@Override
+		public int getCfpCount() {
+			return cfpCount;
+		}
+
+		@Override
+		public long getMessageCount() {
+			return messageCount;
+		}
+	}
+
+	private final SimulationContext context;
+	private final MBeanServer server;
+	private final String domain;
+
+	private final Map<Integer, AGVBean> agvBeans = new HashMap<Integer, AGVBean>();
+	private final Map<Integer, StationBean> stationBeans = new HashMap<Integer, StationBean>();
+
+	private long nextSample = 0;
+	private long lastMessageCount = 0;
+
+	private volatile long time = 0;
+	private volatile int agvCount = 0;
+	private volatile int[] headingCounts = new int[0];
+	private volatile int[] chargeCounts = new int[0];
+	private volatile int[] agvStateCounts = new int[0];
+	private volatile int[] contractStateCounts = new int[0];
+	private volatile long messageCount = 0;
+	private volatile double messageRate = 0;
+
+	/**
+	 * register the fleet MBean with the platform MBean server
+	 *
+	 * @param ctx
+	 */
+	SimulationMonitor(SimulationContext ctx)
+	{
+		context = ctx;
+		server = ManagementFactory.getPlatformMBeanServer();
+		domain = "MASProject:sim=" + simCounter.incrementAndGet();
+		register(domain + ",type=Fleet", this);
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse) {}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse)
+	{
+		long t = timeLapse.getEndTime() + context.getTimeOffset();
+		if (t < nextSample)
+			return;
+
+		sample(t);
+		nextSample = t + SAMPLE_INTERVAL;
+	}
+
+	/**
+	 * @param t simulated time, in ms
+	 */
+	private void sample(long t)
+	{
+		int[] headings = new int[AGV.AGVHeading.values().length];
+		int[] charge = new int[CHARGE_BUCKETS];
+		int[] agvStates = new int[ContractNet.AGVState.values().length];
+		double capacity = context.getConfig().getChargeCapacity();
+
+		Map<Integer, AGVBean> gone = new HashMap<Integer, AGVBean>(agvBeans);
+		for (AGV a : context.getAGVs())
+		{
+			headings[a.getHeading().ordinal()]++;
+			int bucket = (int) (a.getChargeLevel() / capacity * CHARGE_BUCKETS);
+			charge[Math.max(0, Math.min(CHARGE_BUCKETS - 1, bucket))]++;
+			agvStates[a.getState().ordinal()]++;
+
+			AGVBean b = gone.remove(a.getId());
+			if (b == null)
+			{
+				b = new AGVBean();
+				agvBeans.put(a.getId(), b);
+				register(domain + ",type=AGV,id=" + a.getId(), b);
+			}
+			b.sample(a);
+		}
+
+		// AGVs handed over to another zone
+		for (Integer id : gone.keySet())
+		{
+			agvBeans.remove(id);
+			unregister(domain + ",type=AGV,id=" + id);
+		}
+
+		int[] contractStates = new int[ContractNet.TransportAgentState.values().length];
+		for (PDPStation s : context.getTransportAgents())
+		{
+			StationBean b = stationBeans.get(s.getId());
+			if (b == null)
+			{
+				b = new StationBean();
+				stationBeans.put(s.getId(), b);
+				register(domain + ",type=Station,id=" + s.getId(), b);
+			}
+			b.sample(s);
+
+			int[] counts = b.stateCounts;
+			for (int i = 0; i < counts.length; i++)
+				contractStates[i] += counts[i];
+		}
+
+		long messages = context.getMsgCounter();
+		if (t > time)
+			messageRate = (messages - lastMessageCount) * 1000d / (t - time);
+		lastMessageCount = messages;
+
+		agvCount = context.getAGVs().size();
+		headingCounts = headings;
+		chargeCounts = charge;
+		agvStateCounts = agvStates;
+		contractStateCounts = contractStates;
+		messageCount = messages;
+		time = t;
+	}
+
+	/**
+	 * unregister all MBeans of this simulation
+	 */
+	void close()
+	{
+		for (Iterator<Integer> it = agvBeans.keySet().iterator(); it.hasNext();)
+		{
+			unregister(domain + ",type=AGV,id=" + it.next());
+			it.remove();
+		}
+		for (Iterator<Integer> it = stationBeans.keySet().iterator(); it.hasNext();)
+		{
+			unregister(domain + ",type=Station,id=" + it.next());
+			it.remove();
+		}
+		unregister(domain + ",type=Fleet");
+	}
+
+	private void register(String name, Object bean)
+	{
+		try
+		{
+			server.registerMBean(bean, new ObjectName(name));
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("cannot register " + name, e);
+		}
+	}
+
+	private void unregister(String name)
+	{
+		try
+		{
+			server.unregisterMBean(new ObjectName(name));
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("cannot unregister " + name, e);
+		}
+	}
+
+	/**
+	 * @param keys
+	 * @param counts count for each key, by ordinal
+	 * @return the counts by name of the key, in order of the keys
+	 */
+	static Map<String, Integer> toMap(Enum<?>[] keys, int[] counts)
+	{
+		Map<String, Integer> retVal = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < counts.length; i++)
+			retVal.put(keys[i].name(), counts[i]);
+		return retVal;
+	}
+
+	@Override
+	public long getTime() {
+		return time / 1000;
+	}
+
+	@Override
+	public int getAGVCount() {
+		return agvCount;
+	}
+
+	@Override
+	public Map<String, Integer> getHeadingCounts() {
+		return toMap(AGV.AGVHeading.values(), headingCounts);
+	}
+
+	@Override
+	public Map<String, Integer> getChargeDistribution() {
+		int[] counts = chargeCounts;
+		Map<String, Integer> retVal = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < counts.length; i++)
+			retVal.put((i * 100 / CHARGE_BUCKETS) + "-" + ((i + 1) * 100 / CHARGE_BUCKETS) + "%",
+					counts[i]);
+		return retVal;
+	}
+
+	@Override
+	public Map<String, Integer> getAGVStateCounts() {
+		return toMap(ContractNet.AGVState.values(), agvStateCounts);
+	}
+
+	@Override
+	public Map<String, Integer> getContractStateCounts() {
+		return toMap(ContractNet.TransportAgentState.values(), contractStateCounts);
+	}
+
+	@Override
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	@Override
+	public double getMessageRate() {
+		return messageRate;
+	}
+
+	// delivery KPIs are read live, the statistics are thread safe
+
+	@Override
+	public long getDeliveriesRequested() {
+		return context.getDeliveryRecorder().getStatistics().getRequestedCount();
+	}
+
+	@Override
+	public long getDeliveriesCompleted() {
+		return context.getDeliveryRecorder().getStatistics().getCompletedCount();
+	}
+
+	@Override
+	public long getDeliveriesFailed() {
+		return context.getDeliveryRecorder().getStatistics().getFailedCount();
+	}
+
+	@Override
+	public double getThroughput() {
+		return context.getDeliveryRecorder().getStatistics().getThroughput();
+	}
+
+	@Override
+	public double getMeanDeliveryTime() {
+		return context.getDeliveryRecorder().getStatistics().getCfpToDelivery().getMean();
+	}
+
+	@Override
+	public long getMedianDeliveryTime() {
+		return context.getDeliveryRecorder().getStatistics().getCfpToDelivery().getPercentile(50);
+	}
+
+	@Override
+	public long getP95DeliveryTime() {
+		return context.getDeliveryRecorder().getStatistics().getCfpToDelivery().getPercentile(95);
+	}
+
+	// the scheduler keeps its projection in a volatile field
+
+	@Override
+	public double getProjectedAvailability() {
+		ChargingScheduler s = context.getChargingScheduler();
+		return (s != null ? s.getProjectedAvailability() : -1d);
+	}
+}
@@ -0,0 +1,67 @@
+import java.util.Map;
+
+/**
+ * fleet-wide metrics of a running simulation, as published through JMX
+ */
+public interface SimulationMonitorMXBean {
+
+	/**
+	 * @return simulated time of the last sample, in seconds
+	 */
+	public long getTime();
+
+	public int getAGVCount();
+
+	/**
+	 * @return number of AGVs per heading
+	 */
+	public Map<String, Integer> getHeadingCounts();
+
+	/**
+	 * @return number of AGVs per tenth of the charge capacity
+	 */
+	public Map<String, Integer> getChargeDistribution();
+
+	/**
+	 * @return number of AGV agents per contract net state
+	 */
+	public Map<String, Integer> getAGVStateCounts();
+
+	/**
+	 * @return number of calls per state, over all stations
+	 */
+	public Map<String, Integer> getContractStateCounts();
+
+	/**
+	 * @return messages created since the start of the run
+	 */
+	public long getMessageCount();
+
+	/**
+	 * @return messages per simulated second, over the last sample interval
+	 */
+	public double getMessageRate();
+
+	public long getDeliveriesRequested();
+
+	public long getDeliveriesCompleted();
+
+	public long getDeliveriesFailed();
+
+	/**
+	 * @return deliveries completed per simulated hour
+	 */
+	public double getThroughput();
+
+	public double getMeanDeliveryTime();
+
+	public long getMedianDeliveryTime();
+
+	public long getP95DeliveryTime();
+
+	/**
+	 * @return the smallest share of the fleet projected to be available for
+	 * contracts within the next hour, or -1 if charging is not scheduled
+	 */
+	public double getProjectedAvailability();
+}
@@ -0,0 +1,570 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * compact binary image of a running simulation, from which new runs can
+ * be started instead of from an empty warehouse
+ *
+ * holds AGV position, heading and charge, the contract of each AGV, the
+ * contract tables of each PDP station, all delivery records and the state
+ * of every random generator. Messages in transit are not kept: CFPs are
+ * broadcast again, and AGVs propose again for all but their current
+ * contract. AGVs between nodes are placed on the next node of their path.
+ */
+public class SimulationSnapshot {
+
+	static final int MAGIC = 0x4D415332;
+
+	static class AGVState
+	{
+		int id;
+		Point position;
+		AGV.AGVHeading heading;
+		Point destination;
+		double charge;
+		boolean loaded;
+		int countdown;
+		ContractNet.AGVState deliveryState;
+		String contractId;
+		String proposalId;
+		double cost;
+		int proposalCounter;
+	}
+
+	static class CallState
+	{
+		String contractId;
+		Point destination;
+		ContractNet.TransportAgentState state;
+		int agvId = -1;
+		double cost;
+	}
+
+	static class StationState
+	{
+		int id;
+		int cfpCounter;
+		byte[] rng;
+		List<CallState> calls = new ArrayList<CallState>();
+	}
+
+	static class RecordState
+	{
+		String contractId;
+		int stationId;
+		Point origin;
+		Point destination;
+		long cfpTime;
+		long boundTime;
+		long deliveryTime;
+		long failedTime;
+		boolean failed;
+		int agvId = -1;
+		String proposalId;
+		double cost;
+	}
+
+	/**
+	 * simulated time of the snapshot, in ms
+	 */
+	private long time;
+	private byte[] simRandom;
+	private final List<AGVState> agvs = new ArrayList<AGVState>();
+	private final Map<Integer, StationState> stations = new HashMap<Integer, StationState>();
+	private final List<RecordState> records = new ArrayList<RecordState>();
+
+	private SimulationSnapshot() {}
+
+	/**
+	 * @return simulated time of the snapshot, in ms
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the restored master generator of the simulator
+	 */
+	RandomGenerator getRandomGenerator()
+	{
+		return toRandomGenerator(simRandom);
+	}
+
+	/**
+	 * @param stationId
+	 * @return the restored generator of a station, or null if unknown
+	 */
+	RandomGenerator getStationRandomGenerator(int stationId)
+	{
+		StationState s = stations.get(stationId);
+		return (s == null ? null : toRandomGenerator(s.rng));
+	}
+
+	/**
+	 * take a snapshot at the end of a tick
+	 *
+	 * @param ctx
+	 * @param t - simulated time, in ms
+	 * @return
+	 */
+	static SimulationSnapshot capture(SimulationContext ctx, long t)
+	{
+		SimulationSnapshot snap = new SimulationSnapshot();
+		snap.time = t;
+		snap.simRandom = toBytes(ctx.getRandomGenerator());
+
+		for (AGV a : ctx.getAGVs())
+		{
+			AGVState s = new AGVState();
+			s.id = a.getId();
+			s.position = a.getNodePosition();
+			s.heading = a.getPlannedHeading();
+			s.destination = a.getDestination();
+			s.charge = a.getChargeLevel();
+			s.loaded = a.isLoaded();
+			s.countdown = a.getCountdown();
+			s.deliveryState = a.deliveryAgent.getState();
+			s.proposalCounter = a.deliveryAgent.getProposalCounter();
+
+			Proposal p = a.deliveryAgent.getContract();
+			if (p != null)
+			{
+				s.contractId = p.getContractId();
+				s.proposalId = p.getProposalId();
+				s.cost = p.getCost();
+			}
+			snap.agvs.add(s);
+		}
+
+		for (PDPStation st : ctx.getTransportAgents())
+		{
+			StationState s = new StationState();
+			CNPTransportAgent ta = st.transportAgent;
+			s.id = st.getId();
+			s.cfpCounter = ta.getCfpCounter();
+			s.rng = toBytes(st.getRandomGenerator());
+
+			for (Map.Entry<String, ContractNet.TransportAgentState> e : ta.state.entrySet())
+			{
+				CallState c = new CallState();
+				c.contractId = e.getKey();
+				c.state = e.getValue();
+				c.destination = ta.calls.get(c.contractId).getDestination();
+
+				Proposal accepted = ta.acceptedProposals.get(c.contractId);
+				if (accepted != null)
+				{
+					c.agvId = accepted.getAVGId();
+					c.cost = accepted.getCost();
+				}
+				s.calls.add(c);
+			}
+			snap.stations.put(s.id, s);
+		}
+
+		for (DeliveryRecorder.DeliveryRecord d : ctx.getDeliveryRecorder().getDeliveries())
+		{
+			RecordState r = new RecordState();
+			r.contractId = d.getRequest().getContractId();
+			r.stationId = stationId(ctx, d.getRequest().getSender());
+			r.origin = d.getRequest().getOrigin();
+			r.destination = d.getRequest().getDestination();
+			r.cfpTime = d.getCFPTime();
+			r.boundTime = d.getBoundTime();
+			r.deliveryTime = d.getDeliveryTime();
+			r.failedTime = d.getFailedTime();
+			r.failed = d.isFailed();
+			if (d.getProposal() != null)
+			{
+				r.agvId = d.getProposal().getAVGId();
+				r.proposalId = d.getProposal().getProposalId();
+				r.cost = d.getProposal().getCost();
+			}
+			snap.records.add(r);
+		}
+		return snap;
+	}
+
+	/**
+	 * create and register the AGVs of the snapshot
+	 *
+	 * @param ctx
+	 * @param sim
+	 */
+	void restoreAGVs(SimulationContext ctx, Simulator sim)
+	{
+		for (AGVState s : agvs)
+		{
+			AGV a = new AGV(ctx, sim.getRandomGenerator(), s.position, s.id);
+			a.restore(s.heading, s.destination, s.charge, s.loaded, s.countdown);
+			sim.register(a);
+		}
+	}
+
+	/**
+	 * restore contracts of AGVs and stations, and the delivery records;
+	 * all AGVs and stations must have been registered
+	 *
+	 * where AGV and station disagree because a message was in transit, an
+	 * AGV executing a contract keeps it, otherwise the station's view wins
+	 *
+	 * @param ctx
+	 */
+	void restoreContracts(SimulationContext ctx)
+	{
+		Map<Integer, PDPStation> stationById = new HashMap<Integer, PDPStation>();
+		for (PDPStation st : ctx.getTransportAgents())
+		{
+			stationById.put(st.getId(), st);
+		}
+		Map<Integer, AGV> agvById = new HashMap<Integer, AGV>();
+		for (AGV a : ctx.getAGVs())
+		{
+			agvById.put(a.getId(), a);
+		}
+
+		// calls, by contract id
+		Map<String, CallForProposalMessage> cfps = new HashMap<String, CallForProposalMessage>();
+		Map<String, CallState> callStates = new HashMap<String, CallState>();
+		for (StationState s : stations.values())
+		{
+			PDPStation st = stationById.get(s.id);
+			if (st == null)
+				continue;
+
+			for (CallState c : s.calls)
+			{
+				cfps.put(c.contractId, new CallForProposalMessage(ctx, st,
+						c.contractId, st.getPosition().get(), c.destination));
+				callStates.put(c.contractId, c);
+			}
+		}
+
+		// contracts held by AGVs
+		Map<String, Proposal> accepted = new HashMap<String, Proposal>();
+		List<String> executing = new ArrayList<String>();
+		for (AGVState s : agvs)
+		{
+			agvById.get(s.id).deliveryAgent.restoreProposalCounter(s.proposalCounter);
+
+			CallState c = (s.contractId == null ? null : callStates.get(s.contractId));
+			if (c == null)
+				continue;
+
+			boolean bound = s.deliveryState == ContractNet.AGVState.EXECUTING;
+			if (!bound && c.agvId != s.id)
+				continue;
+
+			AGV a = agvById.get(s.id);
+			Proposal p = new Proposal(ctx, a, cfps.get(s.contractId), s.id, s.cost,
+					s.proposalId);
+			a.deliveryAgent.restoreContract(p, bound ?
+					ContractNet.AGVState.EXECUTING : ContractNet.AGVState.INTENTIONAL);
+			accepted.put(s.contractId, p);
+			if (bound)
+				executing.add(s.contractId);
+		}
+
+		for (StationState s : stations.values())
+		{
+			PDPStation st = stationById.get(s.id);
+			if (st == null)
+				continue;
+
+			for (CallState c : s.calls)
+			{
+				Proposal p = accepted.get(c.contractId);
+				ContractNet.TransportAgentState state = c.state;
+				if (executing.contains(c.contractId))
+					state = ContractNet.TransportAgentState.EXECUTING;
+				else if (state == ContractNet.TransportAgentState.ASSIGNED
+					  || state == ContractNet.TransportAgentState.ABORTING
+					  || state == ContractNet.TransportAgentState.WAITING_TO_ABORT)
+					state = (p == null ? ContractNet.TransportAgentState.AWARDING
+							: ContractNet.TransportAgentState.ASSIGNED);
+
+				st.transportAgent.restoreCall(cfps.get(c.contractId), state, p,
+						s.cfpCounter);
+			}
+		}
+
+		DeliveryRecorder recorder = ctx.getDeliveryRecorder();
+		for (RecordState r : records)
+		{
+			CallForProposalMessage cfp = cfps.get(r.contractId);
+			if (cfp == null)
+				cfp = new CallForProposalMessage(ctx, stationById.get(r.stationId),
+						r.contractId, r.origin, r.destination);
+
+			DeliveryRecorder.DeliveryRecord d = new DeliveryRecorder.DeliveryRecord(cfp, r.cfpTime);
+			d.boundTime = r.boundTime;
+			d.deliveryTime = r.deliveryTime;
+			d.failedTime = r.failedTime;
+			d.failed = r.failed;
+			Proposal p = accepted.get(r.contractId);
+			if (p == null && r.agvId >= 0 && agvById.containsKey(r.agvId))
+				p = new Proposal(ctx, agvById.get(r.agvId), cfp, r.agvId, r.cost,
+						r.proposalId);
+			d.proposal = p;
+			recorder.restoreDelivery(d);
+		}
+	}
+
+	/**
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeLong(time);
+		writeBytes(out, simRandom);
+
+		out.writeInt(agvs.size());
+		for (AGVState s : agvs)
+		{
+			out.writeInt(s.id);
+			writePoint(out, s.position);
+			out.writeByte(s.heading == null ? -1 : s.heading.ordinal());
+			writePoint(out, s.destination);
+			out.writeDouble(s.charge);
+			out.writeBoolean(s.loaded);
+			out.writeInt(s.countdown);
+			out.writeByte(s.deliveryState.ordinal());
+			writeString(out, s.contractId);
+			writeString(out, s.proposalId);
+			out.writeDouble(s.cost);
+			out.writeInt(s.proposalCounter);
+		}
+
+		out.writeInt(stations.size());
+		for (StationState s : stations.values())
+		{
+			out.writeInt(s.id);
+			out.writeInt(s.cfpCounter);
+			writeBytes(out, s.rng);
+			out.writeInt(s.calls.size());
+			for (CallState c : s.calls)
+			{
+				out.writeUTF(c.contractId);
+				writePoint(out, c.destination);
+				out.writeByte(c.state.ordinal());
+				out.writeInt(c.agvId);
+				out.writeDouble(c.cost);
+			}
+		}
+
+		out.writeInt(records.size());
+		for (RecordState r : records)
+		{
+			out.writeUTF(r.contractId);
+			out.writeInt(r.stationId);
+			writePoint(out, r.origin);
+			writePoint(out, r.destination);
+			out.writeLong(r.cfpTime);
+			out.writeLong(r.boundTime);
+			out.writeLong(r.deliveryTime);
+			out.writeLong(r.failedTime);
+			out.writeBoolean(r.failed);
+			out.writeInt(r.agvId);
+			writeString(out, r.proposalId);
+			out.writeDouble(r.cost);
+		}
+		out.flush();
+	}
+
+	/**
+	 * @param is
+	 * @return
+	 * @throws IOException
+	 */
+	public static SimulationSnapshot read(InputStream is) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != MAGIC)
+			throw new IOException("not a simulation snapshot");
+
+		SimulationSnapshot snap = new SimulationSnapshot();
+		snap.time = in.readLong();
+		snap.simRandom = readBytes(in);
+
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			AGVState s = new AGVState();
+			s.id = in.readInt();
+			s.position = readPoint(in);
+			int h = in.readByte();
+			s.heading = (h < 0 ? AGV.AGVHeading.RANDOM : AGV.AGVHeading.values()[h]);
+			s.destination = readPoint(in);
+			s.charge = in.readDouble();
+			s.loaded = in.readBoolean();
+			s.countdown = in.readInt();
+			s.deliveryState = ContractNet.AGVState.values()[in.readByte()];
+			s.contractId = readString(in);
+			s.proposalId = readString(in);
+			s.cost = in.readDouble();
+			s.proposalCounter = in.readInt();
+			snap.agvs.add(s);
+		}
+
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			StationState s = new StationState();
+			s.id = in.readInt();
+			s.cfpCounter = in.readInt();
+			s.rng = readBytes(in);
+			int calls = in.readInt();
+			for (int j = 0; j < calls; j++)
+			{
+				CallState c = new CallState();
+				c.contractId = in.readUTF();
+				c.destination = readPoint(in);
+				c.state = ContractNet.TransportAgentState.values()[in.readByte()];
+				c.agvId = in.readInt();
+				c.cost = in.readDouble();
+				s.calls.add(c);
+			}
+			snap.stations.put(s.id, s);
+		}
+
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			RecordState r = new RecordState();
+			r.contractId = in.readUTF();
+			r.stationId = in.readInt();
+			r.origin = readPoint(in);
+			r.destination = readPoint(in);
+			r.cfpTime = in.readLong();
+			r.boundTime = in.readLong();
+			r.deliveryTime = in.readLong();
+			r.failedTime = in.readLong();
+			r.failed = in.readBoolean();
+			r.agvId = in.readInt();
+			r.proposalId = readString(in);
+			r.cost = in.readDouble();
+			snap.records.add(r);
+		}
+		return snap;
+	}
+
+	/**
+	 * @param ctx
+	 * @param u
+	 * @return the id of u among the stations of ctx, or -1
+	 */
+	private static int stationId(SimulationContext ctx, CommUser u)
+	{
+		for (PDPStation s : ctx.getTransportAgents())
+		{
+			if (s == u)
+				return s.getId();
+		}
+		return -1;
+	}
+
+	static void writePoint(DataOutputStream out, Point p) throws IOException
+	{
+		out.writeBoolean(p != null);
+		if (p != null)
+		{
+			out.writeDouble(p.x);
+			out.writeDouble(p.y);
+		}
+	}
+
+	static Point readPoint(DataInputStream in) throws IOException
+	{
+		if (!in.readBoolean())
+			return null;
+		return new Point(in.readDouble(), in.readDouble());
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	static String readString(DataInputStream in) throws IOException
+	{
+		return (in.readBoolean() ? in.readUTF() : null);
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] b) throws IOException
+	{
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return b;
+	}
+
+	/**
+	 * @param r - must be serializable, as are the commons-math generators
+	 * @return the serialized state of the generator
+	 */
+	private static byte[] toBytes(RandomGenerator r)
+	{
+		if (!(r instanceof Serializable))
+			throw new IllegalArgumentException("generator can not be saved: " + r);
+
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(r);
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static RandomGenerator toRandomGenerator(byte[] b)
+	{
+		try
+		{
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b));
+			return (RandomGenerator) in.readObject();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.DeadlockException;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * per-connection traffic counters, written as a heatmap table
+ *
+ * for every connection of the layout, numbered by the {@link EdgeIndex} of
+ * the simulation, it counts
+ * <ul>
+ * <li>traversals: AGVs entering the connection, seen at the end of a tick;
+ * an AGV passing a connection within one tick is not seen</li>
+ * <li>blocked ticks: ticks an AGV with somewhere to go did not move, on
+ * the connection or waiting on a node to enter it</li>
+ * <li>deadlocks: DeadlockExceptions of AGVs on or entering the connection</li>
+ * <li>reroutes: reroutes, and steps aside of the deadlock detector, of
+ * AGVs on or entering the connection</li>
+ * </ul>
+ *
+ * the table is written as CSV, one row per connection,
+ * <pre>
+ * time,edge,fromX,fromY,toX,toY,length,traversals,blockedTicks,deadlocks,reroutes
+ * </pre>
+ * with the counts since the start of the run. Every heatmapInterval seconds
+ * a snapshot of the connections with any count is appended, and on close the
+ * full table. Counts are kept in arrays and only written on the simulation
+ * thread.
+ *
+ * zoned runs count each zone separately, so the heatmap is meant for runs
+ * over the whole layout
+ *
+ * must be registered after all agents
+ */
+public class TrafficHeatmap implements TickListener, RoadUser, Closeable {
+
+	static final String HEADER = "time,edge,fromX,fromY,toX,toY,length,"
+		+ "traversals,blockedTicks,deadlocks,reroutes";
+
+	private final SimulationContext context;
+	private final long interval;
+	private final BufferedWriter writer;
+
+	private Optional<CollisionGraphRoadModel> roadModel = Optional.absent();
+	private EdgeIndex index;
+
+	private int[] traversals = new int[0];
+	private int[] blockedTicks = new int[0];
+	private int[] deadlocks = new int[0];
+	private int[] reroutes = new int[0];
+
+	/**
+	 * connection and position of each AGV at the last tick, by AGV id
+	 */
+	private final Map<Integer, Integer> lastEdge = new HashMap<Integer, Integer>();
+	private final Map<Integer, Point> lastPosition = new HashMap<Integer, Point>();
+
+	private long lastSnapshot = 0;
+	private long lastTime = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param ctx
+	 * @param f the file to write; an existing file is overwritten
+	 * @param snapshotInterval seconds between snapshots, 0 for none
+	 * @throws IOException
+	 */
+	TrafficHeatmap(SimulationContext ctx, File f, long snapshotInterval)
+			throws IOException
+	{
+		context = ctx;
+		interval = snapshotInterval;
+		writer = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(f), StandardCharsets.UTF_8));
+		writer.write(HEADER);
+		writer.newLine();
+		context.setTrafficHeatmap(this);
+	}
+
+	@Override
+	public void initRoadUser(RoadModel model)
+	{
+		roadModel = Optional.of((CollisionGraphRoadModel) model);
+		index = context.getEdgeIndex(roadModel.get().getGraph());
+
+		int n = index.getEdgeCount();
+		traversals = new int[n];
+		blockedTicks = new int[n];
+		deadlocks = new int[n];
+		reroutes = new int[n];
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse) {}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse)
+	{
+		if (!roadModel.isPresent())
+			return;
+
+		CollisionGraphRoadModel rm = roadModel.get();
+		for (AGV a : context.getAGVs())
+		{
+			Point p = rm.getPosition(a);
+			int e = index.getEdgeOf(rm, a);
+			boolean onEdge = rm.getConnection(a).isPresent();
+
+			Integer last = lastEdge.get(a.getId());
+			if (onEdge && (last == null || last != e))
+				traversals[e]++;
+			else if (e >= 0 && p.equals(lastPosition.get(a.getId())))
+				blockedTicks[e]++;
+
+			lastEdge.put(a.getId(), (onEdge ? e : -1));
+			lastPosition.put(a.getId(), p);
+		}
+
+		lastTime = context.getTimeIndex(timeLapse);
+		if (interval > 0 && lastTime - lastSnapshot >= interval)
+		{
+			write(lastTime, false);
+			lastSnapshot = lastTime;
+		}
+	}
+
+	/**
+	 * count a reroute of a
+	 *
+	 * @param a
+	 * @param e the cause, or null
+	 */
+	void recordReroute(AGV a, Exception e)
+	{
+		if (!roadModel.isPresent())
+			return;
+
+		int edge = index.getEdgeOf(roadModel.get(), a);
+		if (edge < 0)
+			return;
+
+		reroutes[edge]++;
+		if (e instanceof DeadlockException)
+			deadlocks[edge]++;
+	}
+
+	/**
+	 * append the counts
+	 *
+	 * @param t
+	 * @param all whether to write connections without any count
+	 */
+	private void write(long t, boolean all)
+	{
+		try
+		{
+			for (int e = 0; e < traversals.length; e++)
+			{
+				if (!all && traversals[e] == 0 && blockedTicks[e] == 0
+				 && reroutes[e] == 0)
+					continue;
+
+				Point from = index.getNode(index.getFrom(e));
+				Point to = index.getNode(index.getTo(e));
+				StringBuilder b = new StringBuilder();
+				b.append(t);
+				b.append(",");
+				b.append(e);
+				b.append(",");
+				b.append(from.x);
+				b.append(",");
+				b.append(from.y);
+				b.append(",");
+				b.append(to.x);
+				b.append(",");
+				b.append(to.y);
+				b.append(",");
+				b.append(index.getLength(e));
+				b.append(",");
+				b.append(traversals[e]);
+				b.append(",");
+				b.append(blockedTicks[e]);
+				b.append(",");
+				b.append(deadlocks[e]);
+				b.append(",");
+				b.append(reroutes[e]);
+				writer.write(b.toString());
+				writer.newLine();
+			}
+			writer.flush();
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException("cannot write traffic heatmap", ex);
+		}
+	}
+
+	/**
+	 * @param e
+	 * @return the number of AGVs seen entering connection e
+	 */
+	int getTraversals(int e)
+	{
+		return traversals[e];
+	}
+
+	/**
+	 * @param e
+	 * @return the ticks AGVs were blocked on or before connection e
+	 */
+	int getBlockedTicks(int e)
+	{
+		return blockedTicks[e];
+	}
+
+	/**
+	 * @return the ticks AGVs were blocked, over all connections
+	 */
+	public long getTotalBlockedTicks()
+	{
+		long retVal = 0;
+		for (int b : blockedTicks)
+			retVal += b;
+		return retVal;
+	}
+
+	/**
+	 * write the full table, and close the file
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		try
+		{
+			write(lastTime, true);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}
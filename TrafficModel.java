@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * congestion-aware edge costs, for routing and contract costs
+ *
+ * every tick the AGVs on each connection are counted: an AGV between two
+ * nodes counts for its connection, an AGV on a node for the connection to
+ * the next node of its path, so queues waiting to enter an aisle count
+ * against it. The counts are smoothed exponentially with time constant
+ * OCCUPANCY_TIME_CONSTANT, and a connection costs its length times
+ * 1 + congestionWeight * occupancy, an estimate of the traversal time at
+ * unit speed. Shortest paths under these costs are found with A*, with the
+ * straight-line distance as heuristic, which stays admissible since no
+ * connection costs less than its length.
+ *
+ * connections are numbered by the {@link EdgeIndex} of the simulation, and
+ * all per-connection state is kept in arrays. Costs are only written on the
+ * simulation thread, after the agents have ticked, so paths may be planned
+ * from parallel phases.
+ *
+ * must be registered after all agents
+ */
+public class TrafficModel implements TickListener, RoadUser {
+
+	/**
+	 * time constant of the smoothed occupancy, in seconds
+	 */
+	static final double OCCUPANCY_TIME_CONSTANT = 30d;
+
+	private final SimulationContext context;
+	private final double weight;
+
+	private Optional<CollisionGraphRoadModel> roadModel = Optional.absent();
+	private EdgeIndex index;
+
+	private double[] occupancy = new double[0];
+	private volatile double[] cost = new double[0];
+	private int[] counts = new int[0];
+
+	TrafficModel(SimulationContext ctx)
+	{
+		context = ctx;
+		weight = ctx.getConfig().getCongestionWeight();
+		context.setTrafficModel(this);
+	}
+
+	@Override
+	public void initRoadUser(RoadModel model)
+	{
+		roadModel = Optional.of((CollisionGraphRoadModel) model);
+		index = context.getEdgeIndex(roadModel.get().getGraph());
+
+		int n = index.getEdgeCount();
+		occupancy = new double[n];
+		counts = new int[n];
+		double[] c = new double[n];
+		for (int e = 0; e < n; e++)
+			c[e] = index.getLength(e);
+		cost = c;
+	}
+
+	/**
+	 * @return whether the graph is known, so costs can be given
+	 */
+	boolean isReady()
+	{
+		return roadModel.isPresent();
+	}
+
+	@Override
+	public void tick(TimeLapse timeLapse) {}
+
+	@Override
+	public void afterTick(TimeLapse timeLapse)
+	{
+		if (!isReady())
+			return;
+
+		Arrays.fill(counts, 0);
+		for (AGV a : context.getAGVs())
+		{
+			int e = index.getEdgeOf(roadModel.get(), a);
+			if (e >= 0)
+				counts[e]++;
+		}
+
+		double alpha = 1 - Math.exp(-timeLapse.getTickLength() / 1000d
+			/ OCCUPANCY_TIME_CONSTANT);
+		double[] c = new double[counts.length];
+		for (int e = 0; e < counts.length; e++)
+		{
+			occupancy[e] += alpha * (counts[e] - occupancy[e]);
+			c[e] = index.getLength(e) * (1 + weight * occupancy[e]);
+		}
+		cost = c;
+	}
+
+	/**
+	 * @param e
+	 * @return the smoothed number of AGVs on connection e
+	 */
+	double getOccupancy(int e)
+	{
+		return occupancy[e];
+	}
+
+	/**
+	 * @param from a node
+	 * @param to a node
+	 * @return the cheapest path under the current costs, from and to
+	 * included, or null if there is none
+	 */
+	List<Point> getShortestPath(Point from, Point to)
+	{
+		double[] g = new double[index.getNodeCount()];
+		int[] via = search(from, to, g);
+		if (via == null)
+			return null;
+
+		LinkedList<Point> retVal = new LinkedList<Point>();
+		int v = index.getNodeId(to);
+		retVal.addFirst(index.getNode(v));
+		while (via[v] >= 0)
+		{
+			v = index.getFrom(via[v]);
+			retVal.addFirst(index.getNode(v));
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param from a node
+	 * @param to a node
+	 * @return the cost of the cheapest path under the current costs, or
+	 * infinity if there is none
+	 */
+	double getPathCost(Point from, Point to)
+	{
+		double[] g = new double[index.getNodeCount()];
+		if (search(from, to, g) == null)
+			return Double.POSITIVE_INFINITY;
+		return g[index.getNodeId(to)];
+	}
+
+	/**
+	 * A* from one node to another
+	 *
+	 * @param from
+	 * @param to
+	 * @param g receives the cost of the cheapest path to each settled node
+	 * @return the connection by which each node was reached, or null if to
+	 * cannot be reached
+	 */
+	private int[] search(Point from, Point to, double[] g)
+	{
+		int start = index.getNodeId(from);
+		int target = index.getNodeId(to);
+		if (start < 0 || target < 0)
+			return null;
+
+		// read once, the costs may be replaced between ticks
+		double[] c = cost;
+
+		int n = index.getNodeCount();
+		int[] via = new int[n];
+		boolean[] closed = new boolean[n];
+		Arrays.fill(g, Double.POSITIVE_INFINITY);
+		Arrays.fill(via, -1);
+		g[start] = 0;
+
+		PriorityQueue<double[]> open = new PriorityQueue<double[]>(16,
+			new Comparator<double[]>() {
+				@Override
+				public int compare(double[] a, double[] b) {
+					return Double.compare(a[0], b[0]);
+				}
+			});
+		open.add(new double[] { Point.distance(from, to), start });
+
+		while (!open.isEmpty())
+		{
+			int v = (int) open.poll()[1];
+			if (closed[v])
+				continue;
+			if (v == target)
+				return via;
+			closed[v] = true;
+
+			for (int e : index.getOutgoing(v))
+			{
+				int w = index.getTo(e);
+				double d = g[v] + c[e];
+				if (closed[w] || d >= g[w])
+					continue;
+
+				g[w] = d;
+				via[w] = e;
+				open.add(new double[] { d + Point.distance(index.getNode(w), to), w });
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the connections by smoothed occupancy, most occupied first
+	 */
+	List<Integer> getBusiestEdges()
+	{
+		List<Integer> retVal = new ArrayList<Integer>();
+		for (int e = 0; e < occupancy.length; e++)
+			retVal.add(e);
+		Collections.sort(retVal, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(occupancy[b], occupancy[a]);
+			}
+		});
+		return retVal;
+	}
+}
@@ -21,6 +21,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 	// save all agents
 	private static ArrayList<TransportAgent> allTransportAgents = new ArrayList<TransportAgent>();
 	
+	private final SimulationContext context;
 	private final RandomGenerator rng;
 	private Optional<Point> location;
 	private double range;
@@ -63,7 +64,8 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 	 */
 	private Point extent;
 
-	TransportAgent(RandomGenerator r, Point loc, Point limit) {
+	TransportAgent(SimulationContext ctx, RandomGenerator r, Point loc, Point limit) {
+		context = ctx;
 		rng = r;
 		range = 12d;
 		roadModel = Optional.absent();
@@ -191,7 +193,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 		if (destination == this)
 			return null;
 		
-		CallForProposalMessage retVal = new CallForProposalMessage(this, 
+		CallForProposalMessage retVal = new CallForProposalMessage(context, this, 
 			contractId, location.get(), destination.location.get());
 
 		StringBuilder b = new StringBuilder();
@@ -204,7 +206,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 		calls.put(contractId, retVal);
 		state.put(contractId, ContractNet.TransportAgentState.AWARDING);
 		
-		DeliveryRecorder.addDelivery(retVal, timeIndex);
+		context.getDeliveryRecorder().addDelivery(retVal, timeIndex);
 		
 		return retVal;
 	}
@@ -237,7 +239,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 		
 		state.put(pm.getContractId(), ContractNet.TransportAgentState.EXECUTING);
 		
-		DeliveryRecorder.setDeliveryBoundTime(pm.getContractId(), timeIndex);
+		context.getDeliveryRecorder().setDeliveryBoundTime(pm.getContractId(), timeIndex);
 
 	}
 	
@@ -257,7 +259,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 			return;
 		
 		// create and send abort message from the currently accepted proposal 
-		ProtocolMessage abort = new ProtocolMessage(this,
+		ProtocolMessage abort = new ProtocolMessage(context, this,
 				ProtocolMessage.MessageType.ABORT, p, true);
 		
 		// delete currently accepted proposal
@@ -286,7 +288,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 			return;
 		
 		String contractId = p.getContractId();
-		ProtocolMessage accept = new ProtocolMessage(this, 
+		ProtocolMessage accept = new ProtocolMessage(context, this, 
 				ProtocolMessage.MessageType.PROVISIONAL_ACCEPT, p, true);
 		
 		// record the currently accepted proposal
@@ -300,7 +302,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 		b.append(" }}");
 		System.out.println(b.toString());
 		
-		DeliveryRecorder.setProposal(contractId, p);
+		context.getDeliveryRecorder().setProposal(contractId, p);
 		
 		device.get().send(accept, accept.getReceiver());
 	}
@@ -335,7 +337,7 @@ public class TransportAgent implements TickListener, CommUser, RoadUser {
 		case ASSIGNED:
 			// remove 
 			acceptedProposals.put(contractId, null);
-			DeliveryRecorder.setProposal(contractId, null);
+			context.getDeliveryRecorder().setProposal(contractId, null);
 
 			state.put(contractId, ContractNet.TransportAgentState.AWARDING);
 
@@ -0,0 +1,75 @@
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * decides when a station creates calls, and where they go
+ *
+ * every station has its own generator, created by
+ * {@link Workloads#create(SimulationContext)}, and draws from its own random
+ * generator, so stations may run in parallel
+ *
+ * stations either ask every tick how many calls to create, or, with
+ * event-driven arrivals, ask once per call when the next one arrives and
+ * do nothing until then
+ */
+public interface WorkloadGenerator {
+
+	/**
+	 * the generators available to a scenario
+	 */
+	public enum Type {
+		/**
+		 * at most one call per tick, with probability cfpProbability
+		 */
+		BERNOULLI,
+		/**
+		 * Poisson arrivals at arrivalRate
+		 */
+		POISSON,
+		/**
+		 * Poisson arrivals whose rate switches between a quiet and a burst
+		 * level, a two-state Markov modulated Poisson process
+		 */
+		BURSTY,
+		/**
+		 * Poisson arrivals whose rate follows a daily profile
+		 */
+		TIME_OF_DAY,
+		/**
+		 * Poisson arrivals whose rate and destinations follow an
+		 * origin-destination matrix
+		 */
+		ORIGIN_DESTINATION,
+		/**
+		 * orders replayed from the trace file
+		 */
+		TRACE
+	}
+
+	/**
+	 * @param station
+	 * @param t end of the tick, in seconds
+	 * @param tickLength in seconds
+	 * @param rng the generator of the station
+	 * @return the number of calls the station creates in this tick
+	 */
+	public int getCallCount(PDPStation station, long t, double tickLength,
+			RandomGenerator rng);
+
+	/**
+	 * @param station
+	 * @param t time of the last arrival, or of the start, in seconds
+	 * @param tickLength in seconds
+	 * @param rng the generator of the station
+	 * @return the time of the next arrival after t, in seconds; infinity if
+	 * there is none
+	 */
+	public double getNextArrival(PDPStation station, double t, double tickLength,
+			RandomGenerator rng);
+
+	/**
+	 * @param origin
+	 * @param rng the generator of the station
+	 * @return the destination of a new call from origin
+	 */
+	public PDPStation getDestination(PDPStation origin, RandomGenerator rng);
+}
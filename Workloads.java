@@ -0,0 +1,472 @@
+import java.util.ArrayDeque;
+import java.util.List;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * the workload generators, selected per scenario by
+ * {@link SimulationConfig#getWorkload()}
+ *
+ * rates are in calls per second per station. With a BERNOULLI workload
+ * the draws are the same as before generators were pluggable, so runs
+ * reproduce earlier results.
+ */
+public final class Workloads {
+
+	private Workloads() {}
+
+	/**
+	 * @param ctx
+	 * @return a new generator for one station
+	 */
+	public static WorkloadGenerator create(SimulationContext ctx)
+	{
+		SimulationConfig c = ctx.getConfig();
+		switch (c.getWorkload())
+		{
+		case POISSON:
+			return new Poisson(c.getArrivalRate());
+		case BURSTY:
+			return new Bursty(c.getArrivalRate(), c.getBurstFactor(),
+				c.getMeanBurstLength(), c.getMeanQuietLength());
+		case TIME_OF_DAY:
+			return new TimeOfDay(c.getArrivalRate(), c.getDailyProfile(),
+				c.getProfileSlotLength());
+		case ORIGIN_DESTINATION:
+			return new OriginDestination(c.getArrivalRate(), c.getOdMatrix());
+		case TRACE:
+			return new Trace(ctx.getOrderTrace());
+		case BERNOULLI:
+		default:
+			return new Bernoulli(c.getCfpProbability());
+		}
+	}
+
+	/**
+	 * @param mean
+	 * @param rng
+	 * @return a draw from the Poisson distribution with the given mean
+	 */
+	static int poisson(double mean, RandomGenerator rng)
+	{
+		if (mean <= 0)
+			return 0;
+
+		// Knuth's method; means per tick are small
+		double limit = Math.exp(-mean);
+		double p = rng.nextDouble();
+		int k = 0;
+		while (p > limit)
+		{
+			k++;
+			p *= rng.nextDouble();
+		}
+		return k;
+	}
+
+	/**
+	 * @param rate
+	 * @param rng
+	 * @return a draw from the exponential distribution with the given rate
+	 */
+	static double exponential(double rate, RandomGenerator rng)
+	{
+		return -Math.log(1 - rng.nextDouble()) / rate;
+	}
+
+	/**
+	 * a call per tick with fixed probability, to a random other station
+	 */
+	static class Bernoulli implements WorkloadGenerator
+	{
+		private final double probability;
+
+		Bernoulli(double p)
+		{
+			probability = p;
+		}
+
+		@Override
+		public int getCallCount(PDPStation station, long t, double tickLength,
+				RandomGenerator rng)
+		{
+			return (rng.nextDouble() < probability ? 1 : 0);
+		}
+
+		/**
+		 * the number of ticks up to the next call is geometric
+		 */
+		@Override
+		public double getNextArrival(PDPStation station, double t, double tickLength,
+				RandomGenerator rng)
+		{
+			if (probability <= 0)
+				return Double.POSITIVE_INFINITY;
+			if (probability >= 1)
+				return t + tickLength;
+
+			double ticks = Math.floor(Math.log(1 - rng.nextDouble())
+				/ Math.log(1 - probability));
+			return t + (ticks + 1) * tickLength;
+		}
+
+		@Override
+		public PDPStation getDestination(PDPStation origin, RandomGenerator rng)
+		{
+			return PDPStation.getDestination(origin);
+		}
+	}
+
+	/**
+	 * Poisson arrivals at a fixed rate, to a random other station
+	 */
+	static class Poisson implements WorkloadGenerator
+	{
+		private final double rate;
+
+		Poisson(double r)
+		{
+			rate = r;
+		}
+
+		/**
+		 * @param station
+		 * @param t
+		 * @return the arrival rate at t
+		 */
+		double getRate(PDPStation station, long t)
+		{
+			return rate;
+		}
+
+		/**
+		 * bring the rate up to t
+		 *
+		 * @param station
+		 * @param t
+		 * @param rng
+		 * @return the time after t at which the rate next changes; infinity
+		 * if it stays the same
+		 */
+		double getRateChange(PDPStation station, double t, RandomGenerator rng)
+		{
+			return Double.POSITIVE_INFINITY;
+		}
+
+		/**
+		 * @return the time after which the rate repeats; infinity if it does
+		 * not
+		 */
+		double getPeriod()
+		{
+			return Double.POSITIVE_INFINITY;
+		}
+
+		@Override
+		public int getCallCount(PDPStation station, long t, double tickLength,
+				RandomGenerator rng)
+		{
+			return poisson(getRate(station, t) * tickLength, rng);
+		}
+
+		/**
+		 * the rate is constant between changes, and arrivals are memoryless,
+		 * so a gap is drawn at the current rate and drawn again from the
+		 * change if it would pass one. A rate of 0 for a whole period stays
+		 * 0, so there is no next call.
+		 */
+		@Override
+		public double getNextArrival(PDPStation station, double t, double tickLength,
+				RandomGenerator rng)
+		{
+			double s = t;
+			// start of the current stretch of rate 0
+			double quiet = t;
+			while (true)
+			{
+				double change = getRateChange(station, s, rng);
+				double r = getRate(station, (long) s);
+				if (r > 0)
+				{
+					double next = s + exponential(r, rng);
+					if (next < change)
+						return next;
+					quiet = change;
+				}
+				else if (change - quiet >= getPeriod())
+					return Double.POSITIVE_INFINITY;
+				if (Double.isInfinite(change))
+					return Double.POSITIVE_INFINITY;
+				s = change;
+			}
+		}
+
+		@Override
+		public PDPStation getDestination(PDPStation origin, RandomGenerator rng)
+		{
+			return PDPStation.getDestination(origin);
+		}
+	}
+
+	/**
+	 * two-state Markov modulated Poisson process; the rate is burstFactor
+	 * times higher during bursts, and the quiet rate is chosen so the long
+	 * run mean stays at the given rate. Phase lengths are exponential.
+	 */
+	static class Bursty extends Poisson
+	{
+		private final double quietRate;
+		private final double burstRate;
+		private final double meanBurst;
+		private final double meanQuiet;
+
+		private boolean inBurst = false;
+		private double phaseEnd = -1;
+
+		Bursty(double r, double factor, double burstLength, double quietLength)
+		{
+			super(r);
+			meanBurst = burstLength;
+			meanQuiet = quietLength;
+			quietRate = r * (burstLength + quietLength)
+				/ (factor * burstLength + quietLength);
+			burstRate = factor * quietRate;
+		}
+
+		@Override
+		public int getCallCount(PDPStation station, long t, double tickLength,
+				RandomGenerator rng)
+		{
+			getRateChange(station, t, rng);
+			return super.getCallCount(station, t, tickLength, rng);
+		}
+
+		/**
+		 * without any rate, the phases would be passed one by one for ever
+		 */
+		@Override
+		public double getNextArrival(PDPStation station, double t, double tickLength,
+				RandomGenerator rng)
+		{
+			if (burstRate <= 0)
+				return Double.POSITIVE_INFINITY;
+			return super.getNextArrival(station, t, tickLength, rng);
+		}
+
+		@Override
+		double getRateChange(PDPStation station, double t, RandomGenerator rng)
+		{
+			if (phaseEnd < 0)
+				phaseEnd = t + phaseLength(meanQuiet, rng);
+
+			while (t >= phaseEnd)
+			{
+				inBurst = !inBurst;
+				phaseEnd += phaseLength(inBurst ? meanBurst : meanQuiet, rng);
+			}
+			return phaseEnd;
+		}
+
+		/**
+		 * @param mean
+		 * @param rng
+		 * @return an exponential phase length, of at least a second
+		 */
+		private static double phaseLength(double mean, RandomGenerator rng)
+		{
+			return Math.max(1, -Math.log(1 - rng.nextDouble()) * mean);
+		}
+
+		@Override
+		double getRate(PDPStation station, long t)
+		{
+			return (inBurst ? burstRate : quietRate);
+		}
+
+		/**
+		 * @return whether the station is in a burst
+		 */
+		boolean isInBurst() {
+			return inBurst;
+		}
+	}
+
+	/**
+	 * the rate is scaled by the profile entry for the current slot; the
+	 * profile repeats, so with 24 slots of an hour it describes a day
+	 */
+	static class TimeOfDay extends Poisson
+	{
+		private final double baseRate;
+		private final double[] profile;
+		private final long slotLength;
+
+		TimeOfDay(double r, double[] p, long slot)
+		{
+			super(r);
+			baseRate = r;
+			profile = p;
+			slotLength = Math.max(1, slot);
+		}
+
+		@Override
+		double getRate(PDPStation station, long t)
+		{
+			return baseRate * profile[(int) ((t / slotLength) % profile.length)];
+		}
+
+		@Override
+		double getRateChange(PDPStation station, double t, RandomGenerator rng)
+		{
+			return (Math.floor(t / slotLength) + 1) * slotLength;
+		}
+
+		@Override
+		double getPeriod()
+		{
+			return (double) profile.length * slotLength;
+		}
+	}
+
+	/**
+	 * entry [i][j] of the matrix weighs calls from the i-th to the j-th
+	 * station, in order of registration. Each station creates calls in
+	 * proportion to its row, scaled so the fleet-wide rate is the given rate
+	 * times the number of stations, and picks destinations in proportion to
+	 * the row. Without a matrix, or for stations beyond it, all pairs weigh
+	 * the same.
+	 */
+	static class OriginDestination extends Poisson
+	{
+		private final double baseRate;
+		private final double[][] matrix;
+
+		/**
+		 * rate of the station, found on first use
+		 */
+		private double rate = -1;
+
+		OriginDestination(double r, double[][] m)
+		{
+			super(r);
+			baseRate = r;
+			matrix = m;
+		}
+
+		/**
+		 * @param i
+		 * @param j
+		 * @return the weight of calls from station i to station j
+		 */
+		private double weight(int i, int j)
+		{
+			if (i == j)
+				return 0;
+			if (matrix == null || i >= matrix.length || j >= matrix[i].length)
+				return 1;
+			return matrix[i][j];
+		}
+
+		@Override
+		double getRate(PDPStation station, long t)
+		{
+			if (rate >= 0)
+				return rate;
+
+			List<PDPStation> stations = station.getContext().getTransportAgents();
+			int n = stations.size();
+			int origin = stations.indexOf(station);
+
+			double row = 0, total = 0;
+			for (int i = 0; i < n; i++)
+			{
+				for (int j = 0; j < n; j++)
+				{
+					total += weight(i, j);
+					if (i == origin)
+						row += weight(i, j);
+				}
+			}
+			rate = (total > 0 ? baseRate * n * row / total : 0);
+			return rate;
+		}
+
+		@Override
+		public PDPStation getDestination(PDPStation origin, RandomGenerator rng)
+		{
+			List<PDPStation> stations = origin.getContext().getTransportAgents();
+			int n = stations.size();
+			int i = stations.indexOf(origin);
+
+			double row = 0;
+			for (int j = 0; j < n; j++)
+				row += weight(i, j);
+			if (row <= 0)
+				return origin;
+
+			double x = rng.nextDouble() * row;
+			for (int j = 0; j < n; j++)
+			{
+				x -= weight(i, j);
+				if (x < 0 && weight(i, j) > 0)
+					return stations.get(j);
+			}
+			return origin;
+		}
+	}
+
+	/**
+	 * orders of the trace shared by all stations, each taking those which
+	 * start at it
+	 */
+	static class Trace implements WorkloadGenerator
+	{
+		private final OrderTrace trace;
+
+		/**
+		 * orders due in this tick, not yet turned into calls
+		 */
+		private ArrayDeque<OrderTrace.Order> pending = new ArrayDeque<OrderTrace.Order>();
+
+		Trace(OrderTrace t)
+		{
+			trace = t;
+		}
+
+		@Override
+		public int getCallCount(PDPStation station, long t, double tickLength,
+				RandomGenerator rng)
+		{
+			pending = trace.take(station.getId(), t);
+			return pending.size();
+		}
+
+		/**
+		 * the trace is read in order for all stations at once, so the next
+		 * order of one station is not known ahead; the orders due by the
+		 * next tick are taken, and arrive one after another at that tick.
+		 * Without orders, the station still looks at the next tick, and its
+		 * call goes nowhere.
+		 */
+		@Override
+		public double getNextArrival(PDPStation station, double t, double tickLength,
+				RandomGenerator rng)
+		{
+			if (!pending.isEmpty())
+				return t;
+
+			double next = t + tickLength;
+			pending = trace.take(station.getId(), (long) next);
+			return next;
+		}
+
+		@Override
+		public PDPStation getDestination(PDPStation origin, RandomGenerator rng)
+		{
+			OrderTrace.Order o = pending.poll();
+			if (o == null)
+				return origin;
+			return origin.getContext().getTransportAgent(o.destination);
+		}
+	}
+}
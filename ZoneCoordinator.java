@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * runs a simulation split into zones, each simulated by a
+ * {@link ZoneProcess} in its own JVM on this host
+ *
+ * the coordinator talks to the zones over loopback sockets: once per tick
+ * it tells every zone to advance, and waits until all have answered. It
+ * keeps the zone of every station and AGV, relays the positions of the AGVs
+ * and the drop-offs and failures of calls to the other zones, and routes
+ * protocol messages to the zone of their receiver, all at the start of the
+ * next tick. AGVs standing in the band of another zone are offered to that
+ * zone right away, and the zone they leave is told which were taken on.
+ */
+public class ZoneCoordinator {
+
+	private final int numZones;
+	private final long seed;
+	private final long numTicks;
+
+	private final DataInputStream[] in;
+	private final DataOutputStream[] out;
+
+	/**
+	 * zone of each station and AGV, by id
+	 */
+	private final Map<Integer, Integer> stationZone = new HashMap<Integer, Integer>();
+	private final Map<Integer, Integer> agvZone = new HashMap<Integer, Integer>();
+
+	/**
+	 * last position of each AGV, by id, as x, y pairs
+	 */
+	private final Map<Integer, double[]> positions = new HashMap<Integer, double[]>();
+
+	/**
+	 * drop-offs and failures, and protocol messages, for the next tick
+	 */
+	private final ArrayList<DeliveryRecorder.ForeignUpdate> updates = new ArrayList<DeliveryRecorder.ForeignUpdate>();
+	private final ArrayList<byte[]> messages = new ArrayList<byte[]>();
+
+	ZoneCoordinator(int zones, long s, long ticks)
+	{
+		numZones = zones;
+		seed = s;
+		numTicks = ticks;
+		in = new DataInputStream[zones];
+		out = new DataOutputStream[zones];
+	}
+
+	/**
+	 * start the zone processes, run all ticks and print the totals
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void run() throws IOException, InterruptedException
+	{
+		ServerSocket server = new ServerSocket(0, numZones, 
+				InetAddress.getLoopbackAddress());
+		ArrayList<Process> processes = new ArrayList<Process>();
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+		try
+		{
+			String java = System.getProperty("java.home") + File.separator 
+					+ "bin" + File.separator + "java";
+			for (int z = 0; z < numZones; z++)
+			{
+				processes.add(new ProcessBuilder(java, 
+						"-cp", System.getProperty("java.class.path"),
+						"ZoneProcess", 
+						String.valueOf(z), 
+						String.valueOf(numZones),
+						String.valueOf(server.getLocalPort()),
+						String.valueOf(seed))
+					.inheritIO()
+					.start());
+			}
+
+			for (int i = 0; i < numZones; i++)
+			{
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				sockets.add(s);
+				DataInputStream din = new DataInputStream(
+						new BufferedInputStream(s.getInputStream()));
+				int z = din.readInt();
+				in[z] = din;
+				out[z] = new DataOutputStream(
+						new BufferedOutputStream(s.getOutputStream()));
+
+				int n = din.readInt();
+				for (int j = 0; j < n; j++)
+				{
+					stationZone.put(din.readInt(), z);
+				}
+				n = din.readInt();
+				for (int j = 0; j < n; j++)
+				{
+					agvZone.put(din.readInt(), z);
+				}
+			}
+
+			for (long t = 0; t < numTicks; t++)
+			{
+				tick();
+			}
+
+			int deliveries = 0, completed = 0, failed = 0;
+			for (int z = 0; z < numZones; z++)
+			{
+				out[z].writeInt(ZoneProcess.CMD_STOP);
+				out[z].flush();
+			}
+			for (int z = 0; z < numZones; z++)
+			{
+				deliveries += in[z].readInt();
+				completed += in[z].readInt();
+				failed += in[z].readInt();
+			}
+
+			StringBuilder b = new StringBuilder();
+			b.append("[Zones] { zones: ");
+			b.append(numZones);
+			b.append(", deliveries: ");
+			b.append(deliveries);
+			b.append(", completed: ");
+			b.append(completed);
+			b.append(", failed: ");
+			b.append(failed);
+			b.append(" }");
+			System.out.println(b.toString());
+		}
+		finally
+		{
+			for (Socket s : sockets)
+			{
+				s.close();
+			}
+			server.close();
+			for (Process p : processes)
+			{
+				p.waitFor();
+			}
+		}
+	}
+
+	/**
+	 * advance all zones by one tick, and hand over the AGVs they offer
+	 *
+	 * @throws IOException
+	 */
+	private void tick() throws IOException
+	{
+		ArrayList<ArrayList<byte[]>> routed = new ArrayList<ArrayList<byte[]>>();
+		for (int z = 0; z < numZones; z++)
+		{
+			routed.add(new ArrayList<byte[]>());
+		}
+		for (byte[] m : messages)
+		{
+			Integer z = zoneOf(m);
+			if (z != null)
+			{
+				routed.get(z).add(m);
+			}
+		}
+		messages.clear();
+
+		for (int z = 0; z < numZones; z++)
+		{
+			out[z].writeInt(ZoneProcess.CMD_TICK);
+
+			int n = 0;
+			for (int id : positions.keySet())
+			{
+				if (agvZone.get(id) != z)
+					n++;
+			}
+			out[z].writeInt(n);
+			for (Map.Entry<Integer, double[]> e : positions.entrySet())
+			{
+				if (agvZone.get(e.getKey()) == z)
+					continue;
+				out[z].writeInt(e.getKey());
+				out[z].writeDouble(e.getValue()[0]);
+				out[z].writeDouble(e.getValue()[1]);
+			}
+
+			// only the zone that issued a call holds its record
+			out[z].writeInt(updates.size());
+			for (DeliveryRecorder.ForeignUpdate u : updates)
+			{
+				out[z].writeUTF(u.contractId);
+				out[z].writeLong(u.time);
+				out[z].writeBoolean(u.failed);
+			}
+
+			out[z].writeInt(routed.get(z).size());
+			for (byte[] m : routed.get(z))
+			{
+				SimulationSnapshot.writeBytes(out[z], m);
+			}
+			out[z].flush();
+		}
+		updates.clear();
+
+		// barrier: every zone answers once its tick is done
+		ArrayList<int[]> offered = new ArrayList<int[]>();
+		ArrayList<ArrayList<byte[]>> offers = new ArrayList<ArrayList<byte[]>>();
+		for (int z = 0; z < numZones; z++)
+		{
+			offers.add(new ArrayList<byte[]>());
+		}
+		for (int z = 0; z < numZones; z++)
+		{
+			int n = in[z].readInt();
+			for (int i = 0; i < n; i++)
+			{
+				int id = in[z].readInt();
+				positions.put(id, new double[] { in[z].readDouble(), in[z].readDouble() });
+			}
+
+			n = in[z].readInt();
+			for (int i = 0; i < n; i++)
+			{
+				String contractId = in[z].readUTF();
+				long t = in[z].readLong();
+				updates.add(new DeliveryRecorder.ForeignUpdate(contractId, t, 
+						in[z].readBoolean()));
+			}
+
+			n = in[z].readInt();
+			for (int i = 0; i < n; i++)
+			{
+				messages.add(SimulationSnapshot.readBytes(in[z]));
+			}
+
+			// offers as source, AGV id, target
+			n = in[z].readInt();
+			for (int i = 0; i < n; i++)
+			{
+				int id = in[z].readInt();
+				int target = in[z].readInt();
+				offered.add(new int[] { z, id, target });
+				offers.get(target).add(SimulationSnapshot.readBytes(in[z]));
+			}
+		}
+
+		for (int z = 0; z < numZones; z++)
+		{
+			out[z].writeInt(offers.get(z).size());
+			for (byte[] agv : offers.get(z))
+			{
+				SimulationSnapshot.writeBytes(out[z], agv);
+			}
+			out[z].flush();
+		}
+
+		// answers come in the order of the offers to each zone
+		boolean[] taken = new boolean[offered.size()];
+		for (int z = 0; z < numZones; z++)
+		{
+			for (int i = 0; i < offered.size(); i++)
+			{
+				if (offered.get(i)[2] != z)
+					continue;
+				taken[i] = in[z].readBoolean();
+				if (taken[i])
+				{
+					agvZone.put(offered.get(i)[1], z);
+				}
+			}
+		}
+
+		for (int z = 0; z < numZones; z++)
+		{
+			for (int i = 0; i < offered.size(); i++)
+			{
+				if (offered.get(i)[0] == z)
+				{
+					out[z].writeBoolean(taken[i]);
+				}
+			}
+			out[z].flush();
+		}
+	}
+
+	/**
+	 * @param m - a message as written by the zone process, led by the kind
+	 * and id of its receiver
+	 * @return the zone of the receiver, or null if unknown
+	 * @throws IOException
+	 */
+	private Integer zoneOf(byte[] m) throws IOException
+	{
+		DataInputStream din = new DataInputStream(new ByteArrayInputStream(m));
+		boolean station = din.readBoolean();
+		return (station ? stationZone : agvZone).get(din.readInt());
+	}
+
+	/**
+	 * @param args - number of zones, seed, number of ticks
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int zones = (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 123L);
+		long ticks = (args.length > 2 ? Long.parseLong(args[2]) : 600L);
+
+		new ZoneCoordinator(zones, seed, ticks).run();
+	}
+}
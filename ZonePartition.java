@@ -0,0 +1,44 @@
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.LengthData;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * splits the warehouse layout into vertical bands of equal width, one per
+ * zone
+ */
+public class ZonePartition {
+
+	private final int numZones;
+	private final double minX;
+	private final double width;
+
+	ZonePartition(Graph<LengthData> g, int zones)
+	{
+		double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+		for (Point p : g.getNodes())
+		{
+			lo = Math.min(lo, p.x);
+			hi = Math.max(hi, p.x);
+		}
+		numZones = Math.max(1, zones);
+		minX = lo;
+		width = Math.max(hi - lo, 1d) / numZones;
+	}
+
+	/**
+	 * @param p
+	 * @return index of the zone containing p, from 0 to getNumZones() - 1
+	 */
+	public int zoneOf(Point p)
+	{
+		int z = (int) ((p.x - minX) / width);
+		return Math.max(0, Math.min(numZones - 1, z));
+	}
+
+	/**
+	 * @return the number of zones
+	 */
+	public int getNumZones() {
+		return numZones;
+	}
+}
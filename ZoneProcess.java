@@ -0,0 +1,621 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.comm.Message;
+import com.github.rinde.rinsim.core.model.road.CollisionGraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.LengthData;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * simulates one zone of the warehouse in its own process
+ *
+ * the zone owns the stations and AGVs located in its band of the layout;
+ * the agents of other zones are stood in for by a {@link ZoneProxy} each.
+ * Each tick is started by the {@link ZoneCoordinator}, which delivers
+ * <ul>
+ * <li>the positions of the AGVs of other zones, for their proxies;</li>
+ * <li>drop-offs and failures, by AGVs elsewhere, of calls issued here;</li>
+ * <li>protocol messages from agents of other zones, which are sent on
+ * from the proxy of the sender.</li>
+ * </ul>
+ * After the tick the zone answers with the same for its own AGVs and the
+ * messages waiting at its proxies, and offers every AGV standing on a node
+ * in another band, with its heading, charge and contracts, to the zone of
+ * that band. A zone takes an AGV on only if its node is free there;
+ * otherwise the AGV stays, and is offered again from its next node. An AGV
+ * taken on elsewhere is replaced here by a proxy, and the messages it had
+ * not read yet are sent after it.
+ *
+ * a proposal crosses zones once, so a station keeps the first cost it got
+ * from an AGV of another zone. An AGV refuses accepts of proposals made
+ * before it was handed over, and the call is offered again. Charge stations
+ * serve their own zone: an AGV on its way to charge gives up its booking
+ * when handed over, and its new zone sends it charging again if needed.
+ * With batch assignment, calls are only matched to AGVs of their own zone.
+ */
+public class ZoneProcess implements RoadUser {
+
+	static final int CMD_STOP = 0;
+	static final int CMD_TICK = 1;
+
+	private static final byte AGENT_NONE = 0;
+	private static final byte AGENT_STATION = 1;
+	private static final byte AGENT_AGV = 2;
+
+	private final SimulationContext context;
+	private final Simulator sim;
+	private final ZonePartition zones;
+	private final Graph<LengthData> graph;
+	private final int zone;
+
+	private Optional<CollisionGraphRoadModel> roadModel = Optional.absent();
+
+	/**
+	 * the station, or its proxy, by id
+	 */
+	private final Map<Integer, CNPUser> stations = new HashMap<Integer, CNPUser>();
+
+	/**
+	 * the AGV, or its proxy, by id; AGVs of other zones are added when
+	 * first heard of
+	 */
+	private final Map<Integer, CNPUser> agvs = new HashMap<Integer, CNPUser>();
+
+	/**
+	 * messages for agents of other zones, until the end of the tick
+	 */
+	private final ArrayList<byte[]> outgoing = new ArrayList<byte[]>();
+
+	/**
+	 * AGVs offered to other zones after the last tick, in order
+	 */
+	private final ArrayList<AGV> leaving = new ArrayList<AGV>();
+
+	ZoneProcess(SimulationConfig config, int zone, int numZones)
+	{
+		this.zone = zone;
+		context = new SimulationContext(config);
+		context.setZoneProcess(this);
+		context.getDeliveryRecorder().keepForeignUpdates();
+
+		MASProject.GraphCreator layout = new MASProject.GraphCreator();
+		graph = layout.createGraph();
+		zones = new ZonePartition(graph, numZones);
+		sim = MASProject.createSimulator(context, null, zones, zone, null);
+		sim.register(this);
+
+		for (PDPStation s : context.getTransportAgents())
+			stations.put(s.getId(), s);
+		for (AGV a : context.getAGVs())
+			agvs.put(a.getId(), a);
+
+		// stations of other zones, numbered as by createSimulator
+		int n = Math.min(config.getNumStations(), layout.transportAgentLocations.size());
+		for (int i = 0; i < n; i++)
+		{
+			Point loc = layout.transportAgentLocations.get(i);
+			if (zones.zoneOf(loc) != zone)
+				register(new ZoneProxy(context, true, i + 1, loc));
+		}
+	}
+
+	@Override
+	public void initRoadUser(RoadModel model)
+	{
+		roadModel = Optional.of((CollisionGraphRoadModel) model);
+	}
+
+	/**
+	 * @param p
+	 */
+	private void register(ZoneProxy p)
+	{
+		sim.register(p);
+		(p.isStation() ? stations : agvs).put(p.getId(), p);
+	}
+
+	/**
+	 * @param u
+	 * @return the AGV or proxy now standing for u, if u is or stood for an
+	 * AGV; u otherwise
+	 */
+	CommUser resolve(CommUser u)
+	{
+		int id = -1;
+		if (u instanceof AGV)
+			id = ((AGV) u).getId();
+		else if (u instanceof ZoneProxy && !((ZoneProxy) u).isStation())
+			id = ((ZoneProxy) u).getId();
+
+		CNPUser retVal = (id < 0 ? null : agvs.get(id));
+		return (retVal == null ? u : retVal.getCommUser());
+	}
+
+	/**
+	 * run ticks on request of the coordinator, until told to stop
+	 *
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	void serve(DataInputStream in, DataOutputStream out) throws IOException
+	{
+		out.writeInt(zone);
+		out.writeInt(context.getTransportAgents().size());
+		for (PDPStation s : context.getTransportAgents())
+			out.writeInt(s.getId());
+		out.writeInt(context.getAGVs().size());
+		for (AGV a : context.getAGVs())
+			out.writeInt(a.getId());
+		out.flush();
+
+		while (in.readInt() == CMD_TICK)
+		{
+			readTick(in);
+			sim.tick();
+			writeTick(out);
+			takeOver(in, out);
+			handOver(in);
+		}
+
+		DeliveryRecorder r = context.getDeliveryRecorder();
+		out.writeInt(r.getDeliveryCount());
+		out.writeInt(r.getCompletedCount());
+		out.writeInt(r.getFailedCount());
+		out.flush();
+	}
+
+	/**
+	 * take in what other zones sent for this tick
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	private void readTick(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			int id = in.readInt();
+			Point p = new Point(in.readDouble(), in.readDouble());
+			CNPUser a = agvs.get(id);
+			if (a == null)
+				register(new ZoneProxy(context, false, id, p));
+			else if (a instanceof ZoneProxy)
+				((ZoneProxy) a).setPosition(p);
+		}
+
+		DeliveryRecorder r = context.getDeliveryRecorder();
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			String contractId = in.readUTF();
+			long t = in.readLong();
+			r.applyForeignUpdate(new DeliveryRecorder.ForeignUpdate(contractId, t,
+					in.readBoolean()));
+		}
+
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+			deliver(SimulationSnapshot.readBytes(in));
+	}
+
+	/**
+	 * report the AGVs, record updates and messages for other zones, and
+	 * offer the AGVs standing in other bands to their zones
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeTick(DataOutputStream out) throws IOException
+	{
+		passOn(stations);
+		passOn(agvs);
+
+		List<AGV> local = context.getAGVs();
+		out.writeInt(local.size());
+		for (AGV a : local)
+		{
+			Point p = a.getPosition().get();
+			out.writeInt(a.getId());
+			out.writeDouble(p.x);
+			out.writeDouble(p.y);
+		}
+
+		List<DeliveryRecorder.ForeignUpdate> updates =
+				context.getDeliveryRecorder().takeForeignUpdates();
+		out.writeInt(updates.size());
+		for (DeliveryRecorder.ForeignUpdate u : updates)
+		{
+			out.writeUTF(u.contractId);
+			out.writeLong(u.time);
+			out.writeBoolean(u.failed);
+		}
+
+		out.writeInt(outgoing.size());
+		for (byte[] m : outgoing)
+			SimulationSnapshot.writeBytes(out, m);
+		outgoing.clear();
+
+		// AGVs between nodes can not be placed, so wait for the next node
+		leaving.clear();
+		for (AGV a : local)
+		{
+			Point p = a.getPosition().get();
+			if (graph.containsNode(p) && zones.zoneOf(p) != zone)
+				leaving.add(a);
+		}
+		out.writeInt(leaving.size());
+		for (AGV a : leaving)
+		{
+			out.writeInt(a.getId());
+			out.writeInt(zones.zoneOf(a.getPosition().get()));
+			SimulationSnapshot.writeBytes(out, writeAGV(a));
+		}
+		out.flush();
+	}
+
+	/**
+	 * answer the AGVs offered by other zones, taking on those whose node is
+	 * free here
+	 *
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	private void takeOver(DataInputStream in, DataOutputStream out) throws IOException
+	{
+		int n = in.readInt();
+		boolean[] taken = new boolean[n];
+		for (int i = 0; i < n; i++)
+			taken[i] = readAGV(SimulationSnapshot.readBytes(in));
+
+		for (boolean b : taken)
+			out.writeBoolean(b);
+		out.flush();
+	}
+
+	/**
+	 * replace the AGVs taken on by other zones with proxies
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	private void handOver(DataInputStream in) throws IOException
+	{
+		for (AGV a : leaving)
+		{
+			if (!in.readBoolean())
+				continue;
+
+			Point p = a.getPosition().get();
+			a.leaveZone();
+			for (Message m : a.getDevice().get().getUnreadMessages())
+				passOn(m, false, a.getId());
+
+			sim.unregister(a);
+			context.removeAGV(a);
+			register(new ZoneProxy(context, false, a.getId(), p));
+		}
+		leaving.clear();
+	}
+
+	/**
+	 * queue the messages waiting at the proxies among users
+	 *
+	 * @param users
+	 */
+	private void passOn(Map<Integer, CNPUser> users) throws IOException
+	{
+		for (CNPUser u : users.values())
+		{
+			if (!(u instanceof ZoneProxy))
+				continue;
+
+			ZoneProxy p = (ZoneProxy) u;
+			for (Message m : p.getDevice().get().getUnreadMessages())
+				passOn(m, p.isStation(), p.getId());
+		}
+	}
+
+	/**
+	 * queue a message for an agent of another zone; charge stations serve
+	 * their own zone, so their messages stay behind
+	 *
+	 * @param m
+	 * @param toStation
+	 * @param to
+	 * @throws IOException
+	 */
+	private void passOn(Message m, boolean toStation, int to) throws IOException
+	{
+		if (!(m.getContents() instanceof ProtocolMessage)
+		 || m.getContents() instanceof ChargeReservationMessage)
+			return;
+
+		ProtocolMessage pm = (ProtocolMessage) m.getContents();
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+
+		out.writeBoolean(toStation);
+		out.writeInt(to);
+		out.writeByte(pm.getType().ordinal());
+		out.writeInt(pm.getMessageId());
+		out.writeInt(pm.getPreviousMessageId());
+		SimulationSnapshot.writeString(out, pm.getContractId());
+		SimulationSnapshot.writePoint(out, pm.getOrigin());
+		SimulationSnapshot.writePoint(out, pm.getDestination());
+		writeAgent(out, pm.getSender());
+		writeAgent(out, pm.getReceiver());
+		if (pm instanceof Proposal)
+		{
+			Proposal p = (Proposal) pm;
+			out.writeInt(p.getAVGId());
+			out.writeDouble(p.getCost());
+			SimulationSnapshot.writeString(out, p.getProposalId());
+			SimulationSnapshot.writeString(out, p.getChainedTo());
+		}
+		out.flush();
+		outgoing.add(b.toByteArray());
+	}
+
+	/**
+	 * send a message from another zone to its receiver here, from the
+	 * stand-in of its sender; a message for an AGV which has moved on is
+	 * passed on again
+	 *
+	 * @param b - as written by passOn
+	 * @throws IOException
+	 */
+	private void deliver(byte[] b) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		boolean toStation = in.readBoolean();
+		CNPUser to = (toStation ? stations : agvs).get(in.readInt());
+		if (to instanceof ZoneProxy)
+		{
+			outgoing.add(b);
+			return;
+		}
+
+		ProtocolMessage.MessageType t = ProtocolMessage.MessageType.values()[in.readByte()];
+		int messageId = in.readInt();
+		int previousMessageId = in.readInt();
+		String contractId = SimulationSnapshot.readString(in);
+		Point origin = SimulationSnapshot.readPoint(in);
+		Point destination = SimulationSnapshot.readPoint(in);
+		CNPUser sender = readAgent(in);
+		CNPUser receiver = readAgent(in);
+		if (to == null || sender == null)
+			return;
+
+		ProtocolMessage pm;
+		if (t == ProtocolMessage.MessageType.CALL_FOR_PROPOSAL)
+		{
+			pm = new CallForProposalMessage(context, sender.getCommUser(),
+					contractId, origin, destination);
+		}
+		else if (t == ProtocolMessage.MessageType.PROPOSAL)
+		{
+			CallForProposalMessage cfp = new CallForProposalMessage(context,
+					to.getCommUser(), contractId, origin, destination);
+			int agvId = in.readInt();
+			double cost = in.readDouble();
+			Proposal p = new Proposal(context, sender.getCommUser(), cfp, agvId,
+					cost, SimulationSnapshot.readString(in));
+			p.setChainedTo(SimulationSnapshot.readString(in));
+			pm = p;
+		}
+		else
+		{
+			pm = new ProtocolMessage(context, sender.getCommUser(), null, t,
+					contractId, origin, destination);
+		}
+		pm.messageId = messageId;
+		pm.previousMessageId = previousMessageId;
+		pm.receiver = (receiver == null ? null : receiver.getCommUser());
+
+		sender.getDevice().get().send(pm, to.getCommUser());
+	}
+
+	/**
+	 * @param out
+	 * @param u
+	 * @throws IOException
+	 */
+	private static void writeAgent(DataOutputStream out, CommUser u) throws IOException
+	{
+		if (u instanceof PDPStation || (u instanceof ZoneProxy && ((ZoneProxy) u).isStation()))
+			out.writeByte(AGENT_STATION);
+		else if (u instanceof AGV || u instanceof ZoneProxy)
+			out.writeByte(AGENT_AGV);
+		else
+		{
+			out.writeByte(AGENT_NONE);
+			return;
+		}
+		out.writeInt(((CNPUser) u).getId());
+	}
+
+	/**
+	 * @param in
+	 * @return the stand-in here for the agent written by writeAgent, or null
+	 * @throws IOException
+	 */
+	private CNPUser readAgent(DataInputStream in) throws IOException
+	{
+		byte kind = in.readByte();
+		if (kind == AGENT_NONE)
+			return null;
+
+		int id = in.readInt();
+		return (kind == AGENT_STATION ? stations : agvs).get(id);
+	}
+
+	/**
+	 * @param a
+	 * @return the state of a, to be taken on by another zone
+	 * @throws IOException
+	 */
+	private static byte[] writeAGV(AGV a) throws IOException
+	{
+		AGV.AGVHeading heading = a.getPlannedHeading();
+		Point destination = a.getDestination();
+		// charge stations serve their own zone
+		if (heading == AGV.AGVHeading.TO_CHARGING || heading == AGV.AGVHeading.CHARGING)
+		{
+			heading = AGV.AGVHeading.RANDOM;
+			destination = null;
+		}
+
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		out.writeInt(a.getId());
+		SimulationSnapshot.writePoint(out, a.getPosition().get());
+		out.writeByte(heading.ordinal());
+		SimulationSnapshot.writePoint(out, destination);
+		out.writeDouble(a.getChargeLevel());
+		out.writeBoolean(a.isLoaded());
+		out.writeInt(a.getCountdown());
+
+		CNPAGVAgent d = a.deliveryAgent;
+		out.writeByte(d.getState().ordinal());
+		out.writeInt(d.getContractSwitchCount());
+		out.writeInt(d.getProposalCounter());
+		out.writeBoolean(d.getContract() != null);
+		if (d.getContract() != null)
+			writeContract(out, d.getContract());
+		out.writeInt(d.getQueuedContracts().size());
+		for (Proposal p : d.getQueuedContracts())
+			writeContract(out, p);
+		out.flush();
+		return b.toByteArray();
+	}
+
+	/**
+	 * take on an AGV of another zone, unless its node is taken here
+	 *
+	 * @param b - as written by writeAGV
+	 * @return whether the AGV was taken on
+	 * @throws IOException
+	 */
+	private boolean readAGV(byte[] b) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		int id = in.readInt();
+		Point p = SimulationSnapshot.readPoint(in);
+		if (roadModel.get().isOccupied(p))
+			return false;
+
+		AGV.AGVHeading heading = AGV.AGVHeading.values()[in.readByte()];
+		Point destination = SimulationSnapshot.readPoint(in);
+		double charge = in.readDouble();
+		boolean loaded = in.readBoolean();
+		int countdown = in.readInt();
+		ContractNet.AGVState s = ContractNet.AGVState.values()[in.readByte()];
+		int switched = in.readInt();
+		int counter = in.readInt();
+
+		AGV a = new AGV(context, sim.getRandomGenerator(), p, id);
+		a.restore(heading, destination, charge, loaded, countdown);
+
+		Proposal current = (in.readBoolean() ? readContract(in, a) : null);
+		List<Proposal> queued = new ArrayList<Proposal>();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			queued.add(readContract(in, a));
+		a.deliveryAgent.takeOver(s, current, queued, switched, counter);
+
+		CNPUser proxy = agvs.get(id);
+		if (proxy instanceof ZoneProxy)
+			sim.unregister(proxy);
+		agvs.put(id, a);
+		sim.register(a);
+		return true;
+	}
+
+	/**
+	 * @param out
+	 * @param p - a contract of an AGV
+	 * @throws IOException
+	 */
+	private static void writeContract(DataOutputStream out, Proposal p) throws IOException
+	{
+		out.writeUTF(p.getContractId());
+		out.writeInt(((CNPUser) p.getReceiver()).getId());
+		SimulationSnapshot.writePoint(out, p.getOrigin());
+		SimulationSnapshot.writePoint(out, p.getDestination());
+		out.writeDouble(p.getCost());
+		SimulationSnapshot.writeString(out, p.getProposalId());
+		SimulationSnapshot.writeString(out, p.getChainedTo());
+		out.writeInt(p.getMessageId());
+	}
+
+	/**
+	 * @param in
+	 * @param a - the AGV holding the contract
+	 * @return the contract, made out to the stand-in here of its station
+	 * @throws IOException
+	 */
+	private Proposal readContract(DataInputStream in, AGV a) throws IOException
+	{
+		String contractId = in.readUTF();
+		CNPUser station = stations.get(in.readInt());
+		Point origin = SimulationSnapshot.readPoint(in);
+		Point destination = SimulationSnapshot.readPoint(in);
+
+		CallForProposalMessage cfp = new CallForProposalMessage(context,
+				station.getCommUser(), contractId, origin, destination);
+		Proposal p = new Proposal(context, a, cfp, a.getId(), in.readDouble(),
+				SimulationSnapshot.readString(in));
+		p.setChainedTo(SimulationSnapshot.readString(in));
+		p.messageId = in.readInt();
+		return p;
+	}
+
+	/**
+	 * @param args - zone index, number of zones, coordinator port, seed
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int zone = Integer.parseInt(args[0]);
+		int numZones = Integer.parseInt(args[1]);
+		int port = Integer.parseInt(args[2]);
+
+		SimulationConfig config = new SimulationConfig();
+		config.setSeed(Long.parseLong(args[3]) + zone);
+		config.setVerbose(false);
+
+		ZoneProcess z = new ZoneProcess(config, zone, numZones);
+
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+		try
+		{
+			s.setTcpNoDelay(true);
+			z.serve(new DataInputStream(new BufferedInputStream(s.getInputStream())),
+					new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+import com.github.rinde.rinsim.core.model.comm.CommDevice;
+import com.github.rinde.rinsim.core.model.comm.CommDeviceBuilder;
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * stands in for a station or AGV simulated by another zone
+ *
+ * messages sent to the proxy wait in its comm device until the
+ * {@link ZoneProcess} passes them on; messages of the agent it stands for
+ * are delivered from it, so local agents answer the proxy as they would the
+ * agent. The proxy is not on the road, and its range is not limited: range
+ * was already checked in the zone the message came from.
+ */
+public class ZoneProxy implements CommUser, CNPUser {
+
+	private final SimulationContext context;
+	private final boolean station;
+	private final int id;
+	private Point position;
+	private Optional<CommDevice> device = Optional.absent();
+
+	/**
+	 * @param ctx
+	 * @param isStation - whether the proxy stands for a station or an AGV
+	 * @param agentId
+	 * @param p - position of the agent
+	 */
+	ZoneProxy(SimulationContext ctx, boolean isStation, int agentId, Point p)
+	{
+		context = ctx;
+		station = isStation;
+		id = agentId;
+		position = p;
+	}
+
+	/**
+	 * @return whether the proxy stands for a station, rather than an AGV
+	 */
+	boolean isStation()
+	{
+		return station;
+	}
+
+	/**
+	 * @param p last known position of the AGV
+	 */
+	void setPosition(Point p)
+	{
+		position = p;
+	}
+
+	@Override
+	public Optional<Point> getPosition() {
+		return Optional.of(position);
+	}
+
+	@Override
+	public void setCommDevice(CommDeviceBuilder builder) {
+		device = Optional.of(builder
+			.setReliability(1d)
+			.build());
+	}
+
+	@Override
+	public Optional<CommDevice> getDevice() {
+		return device;
+	}
+
+	/**
+	 * costs are only known to the agent itself
+	 */
+	@Override
+	public double getContractCost(ProtocolMessage pm) {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public boolean validateContract(ProtocolMessage pm) {
+		return false;
+	}
+
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public CommUser getCommUser() {
+		return this;
+	}
+
+	@Override
+	public SimulationContext getContext() {
+		return context;
+	}
+
+	@Override
+	public long getTimeIndex() {
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ZoneProxy [");
+		builder.append(station ? "station=" : "AGV=");
+		builder.append(id);
+		builder.append("]");
+		return builder.toString();
+	}
+}